@@ -0,0 +1,80 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Base64PasswordEncoder#isPasswordValid(String, String, Object)} against the implementation it replaced, which
+ * built the encoded form of the raw password and compared it with <code>String.equals</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64PasswordEncoderBenchmark {
+
+  // ~ Instance fields =================================================================================================
+
+  @Param({ "8", "64", "512" })
+  private int length;
+
+  private Base64PasswordEncoder encoder = new Base64PasswordEncoder();
+
+  private String rawPass;
+
+  private String encPass;
+
+  // ~ Methods =========================================================================================================
+
+  @Setup
+  public void encodePassword() {
+    StringBuilder password = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      password.append((char) ('a' + i % 26));
+    }
+    rawPass = password.toString();
+    encPass = encoder.encodePassword(rawPass, null);
+  }
+
+  @Benchmark
+  public boolean isPasswordValid() {
+    return encoder.isPasswordValid(encPass, rawPass, null);
+  }
+
+  @Benchmark
+  public boolean reencode() {
+    return new String(Base64.encodeBase64(rawPass.getBytes())).equals(encPass);
+  }
+
+}
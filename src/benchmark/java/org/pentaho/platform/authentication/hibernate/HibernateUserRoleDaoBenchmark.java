@@ -0,0 +1,101 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.platform.authentication.hibernate.messages.Messages;
+import org.springframework.util.Assert;
+
+/**
+ * Lookups of a user and a role by {@link HibernateUserRoleDao}, over an in-memory HSQLDB database, each next to the 
+ * same lookup preceded by the argument check as it was before messages were resolved lazily, which resolved its 
+ * message whether or not the check failed. Run with <code>-prof gc</code> and compare the 
+ * <code>gc.alloc.rate.norm</code> of each pair; the difference is what resolving the message cost each lookup, and 
+ * depends on the <code>MessagesBase</code> of the platform on the classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HibernateUserRoleDaoBenchmark {
+
+  // ~ Instance fields =================================================================================================
+
+  private HibernateTestSupport database;
+
+  private String username = "joe"; //$NON-NLS-1$
+
+  private String roleName = "Authenticated"; //$NON-NLS-1$
+
+  // ~ Methods =========================================================================================================
+
+  @Setup
+  public void createDatabase() throws Exception {
+    database = new HibernateTestSupport() {
+    };
+    database.setUpSessionFactory();
+    database.userRoleDao.createRole(new CustomRole(roleName));
+    CustomUser user = new CustomUser(username, "password", null, true); //$NON-NLS-1$
+    user.addRole(new CustomRole(roleName));
+    database.userRoleDao.createUser(user);
+  }
+
+  @TearDown
+  public void closeDatabase() {
+    database.tearDownSessionFactory();
+  }
+
+  @Benchmark
+  public IUser getUser() {
+    return database.hibernateUserRoleDao.getUser(username);
+  }
+
+  @Benchmark
+  public IUser getUserWithEagerMessage() {
+    Assert.hasLength(username, Messages.getInstance().getString(
+        "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+    return database.hibernateUserRoleDao.getUser(username);
+  }
+
+  @Benchmark
+  public IRole getRole() {
+    return database.hibernateUserRoleDao.getRole(roleName);
+  }
+
+  @Benchmark
+  public IRole getRoleWithEagerMessage() {
+    Assert.hasLength(roleName, Messages.getInstance().getString(
+        "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+    return database.hibernateUserRoleDao.getRole(roleName);
+  }
+
+}
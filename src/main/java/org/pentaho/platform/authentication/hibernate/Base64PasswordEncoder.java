@@ -20,6 +20,9 @@ package org.pentaho.platform.authentication.hibernate;
  */
 
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.Validate;
 import org.pentaho.platform.util.StringUtil;
@@ -29,7 +32,7 @@ import org.springframework.security.providers.encoding.PasswordEncoder;
 /**
  * Default password encoder for the BI Server.
  * 
- * <p>This encoder Base64-encodes the raw password.</p>
+ * <p>This encoder Base64-encodes the UTF-8 bytes of the raw password.</p>
  * 
  * <p>This class is instantiated by Pentaho Admin Console so there should not be a dependency on classes to which PAC
  * will not have access.</p>
@@ -37,23 +40,163 @@ import org.springframework.security.providers.encoding.PasswordEncoder;
  * <p>This implementation of password encoding is completely independent of any datasource connection password 
  * encoding.</p>
  * 
+ * <p>{@link #isPasswordValid(String, String, Object)} does not build the encoded form of the raw password. It encodes
+ * the password into a per-thread buffer, Base64-encodes that buffer on the fly and compares each character with the
+ * stored password, so that a login allocates nothing here. The comparison examines every character whether or not an
+ * earlier one differed, so its duration does not reveal how much of the stored password was matched.</p>
+ * 
  * @author mlowery
  */
 
 public class Base64PasswordEncoder implements PasswordEncoder {
 
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+  private static final char[] BASE64_ALPHABET = 
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray(); //$NON-NLS-1$
+
+  private static final char BASE64_PAD = '=';
+
+  /**
+   * Longer passwords are encoded into a buffer of their own rather than grow the per-thread one.
+   */
+  private static final int MAX_BUFFERED_BYTES = 1024;
+
+  /**
+   * Holds a plain byte array, so that a thread of a container does not keep this class's class loader reachable.
+   */
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+  /**
+   * Passwords encoded before the charset was fixed used the platform default; they differ from UTF-8 encoded ones
+   * only for non-ASCII passwords on a platform whose default is not UTF-8.
+   */
+  private static final boolean LEGACY_CHARSET_DIFFERS = !UTF_8.equals(Charset.defaultCharset());
+
+  // ~ Methods =========================================================================================================
+
   public String encodePassword(final String rawPass, final Object salt) throws DataAccessException {
     Validate.notNull(rawPass, "Raw password can not be null"); //$NON-NLS-1$
-    // same code as org.pentaho.platform.util.Base64PasswordService.encrypt()
-    return StringUtil.isEmpty(rawPass) ? rawPass : new String(Base64.encodeBase64(rawPass.getBytes()));
+    // same code as org.pentaho.platform.util.Base64PasswordService.encrypt(), but with a fixed charset
+    return StringUtil.isEmpty(rawPass) ? rawPass : new String(Base64.encodeBase64(rawPass.getBytes(UTF_8)));
   }
 
   public boolean isPasswordValid(final String encPass, final String rawPass, final Object salt)
       throws DataAccessException {
     Validate.notNull(encPass, "Encoded password can not be null"); //$NON-NLS-1$
     Validate.notNull(rawPass, "Raw password can not be null"); //$NON-NLS-1$
-    String encodedRawPass = encodePassword(rawPass, salt);
-    return encPass.equals(encodedRawPass);
+    int length = utf8Length(rawPass);
+    byte[] bytes = buffer(length);
+    boolean valid;
+    try {
+      encodeUtf8(rawPass, bytes);
+      valid = matches(encPass, bytes, length);
+    } finally {
+      // do not leave the password in a buffer that outlives the call
+      Arrays.fill(bytes, 0, length, (byte) 0);
+    }
+    if (!valid && LEGACY_CHARSET_DIFFERS && length != rawPass.length()) {
+      byte[] legacyBytes = rawPass.getBytes();
+      valid = matches(encPass, legacyBytes, legacyBytes.length);
+    }
+    return valid;
+  }
+
+  private static byte[] buffer(final int length) {
+    if (length > MAX_BUFFERED_BYTES) {
+      return new byte[length];
+    }
+    byte[] buffer = BUFFER.get();
+    if (buffer == null) {
+      buffer = new byte[MAX_BUFFERED_BYTES];
+      BUFFER.set(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Compares the Base64 encoding of the first <code>length</code> bytes with <code>encPass</code> without building 
+   * it. Takes the same time for every <code>encPass</code> of a given length.
+   */
+  static boolean matches(final String encPass, final byte[] bytes, final int length) {
+    int encodedLength = (length + 2) / 3 * 4;
+    int storedLength = encPass.length();
+    int diff = encodedLength ^ storedLength;
+    int position = 0;
+    for (int i = 0; i < length; i += 3) {
+      int b0 = bytes[i] & 0xff;
+      int b1 = i + 1 < length ? bytes[i + 1] & 0xff : 0;
+      int b2 = i + 2 < length ? bytes[i + 2] & 0xff : 0;
+      char c0 = BASE64_ALPHABET[b0 >>> 2];
+      char c1 = BASE64_ALPHABET[((b0 & 0x03) << 4) | (b1 >>> 4)];
+      char c2 = i + 1 < length ? BASE64_ALPHABET[((b1 & 0x0f) << 2) | (b2 >>> 6)] : BASE64_PAD;
+      char c3 = i + 2 < length ? BASE64_ALPHABET[b2 & 0x3f] : BASE64_PAD;
+      diff |= c0 ^ charAt(encPass, position++, storedLength);
+      diff |= c1 ^ charAt(encPass, position++, storedLength);
+      diff |= c2 ^ charAt(encPass, position++, storedLength);
+      diff |= c3 ^ charAt(encPass, position++, storedLength);
+    }
+    return diff == 0;
+  }
+
+  private static int charAt(final String text, final int index, final int length) {
+    return index < length ? text.charAt(index) : 0;
+  }
+
+  /**
+   * @return the number of bytes that {@link #encodeUtf8(String, byte[])} writes; as <code>String.getBytes</code>, an
+   * unpaired surrogate becomes a single <code>?</code>
+   */
+  static int utf8Length(final String text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (isSurrogatePair(text, i)) {
+        length += 4;
+        i++;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static boolean isSurrogatePair(final String text, final int index) {
+    return Character.isHighSurrogate(text.charAt(index)) && index + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(index + 1));
+  }
+
+  static void encodeUtf8(final String text, final byte[] bytes) {
+    int position = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        bytes[position++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[position++] = (byte) (0xc0 | (c >>> 6));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (isSurrogatePair(text, i)) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        bytes[position++] = (byte) (0xf0 | (codePoint >>> 18));
+        bytes[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+        bytes[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+        bytes[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        bytes[position++] = (byte) '?';
+      } else {
+        bytes[position++] = (byte) (0xe0 | (c >>> 12));
+        bytes[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
   }
 
 }
@@ -0,0 +1,106 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-item outcome of a bulk operation on {@link IUserRoleDao}, keyed by username or role name in the order the items
+ * were processed. An identifier given more than once is processed only once.
+ */
+public class BatchResult implements Serializable {
+
+  private static final long serialVersionUID = -4930291880412907467L;
+
+  public static enum Outcome {
+    CREATED, UPDATED, DELETED, ALREADY_EXISTS, NOT_FOUND, CONFLICT
+  }
+
+  private final Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+
+  /**
+   * Records the outcome for the given identifier unless one has already been recorded.
+   * 
+   * @return <code>true</code> if the outcome was recorded
+   */
+  public boolean add(final String id, final Outcome outcome) {
+    if (outcomes.containsKey(id)) {
+      return false;
+    }
+    outcomes.put(id, outcome);
+    return true;
+  }
+
+  public void addAll(final BatchResult other) {
+    for (Map.Entry<String, Outcome> entry : other.outcomes.entrySet()) {
+      add(entry.getKey(), entry.getValue());
+    }
+  }
+
+  public boolean contains(final String id) {
+    return outcomes.containsKey(id);
+  }
+
+  /**
+   * @return the outcome for the given identifier or <code>null</code> if it was not part of the operation
+   */
+  public Outcome getOutcome(final String id) {
+    return outcomes.get(id);
+  }
+
+  public Map<String, Outcome> getOutcomes() {
+    return Collections.unmodifiableMap(outcomes);
+  }
+
+  public int getCount(final Outcome outcome) {
+    int count = 0;
+    for (Outcome each : outcomes.values()) {
+      if (each == outcome) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the identifiers with the given outcome, in the order they were processed
+   */
+  public List<String> getIds(final Outcome outcome) {
+    List<String> ids = new ArrayList<String>();
+    for (Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+      if (entry.getValue() == outcome) {
+        ids.add(entry.getKey());
+      }
+    }
+    return ids;
+  }
+
+  public int size() {
+    return outcomes.size();
+  }
+
+  public String toString() {
+    return outcomes.toString();
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Hit, miss and put counts of one second-level or query cache region, read from the Hibernate statistics on every 
+ * call. A region that Hibernate has not created yet (a query region before its first query) reports zeros.
+ * 
+ * @see HibernateCacheStatisticsExporter
+ */
+public class CacheRegionStatistics implements CacheRegionStatisticsMBean {
+
+  // ~ Instance fields =================================================================================================
+
+  private final Statistics statistics;
+
+  private final String regionName;
+
+  // ~ Constructors ====================================================================================================
+
+  public CacheRegionStatistics(final Statistics statistics, final String regionName) {
+    this.statistics = statistics;
+    this.regionName = regionName;
+  }
+
+  // ~ Methods =========================================================================================================
+
+  public String getRegionName() {
+    return regionName;
+  }
+
+  public long getHitCount() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getHitCount() : 0;
+  }
+
+  public long getMissCount() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getMissCount() : 0;
+  }
+
+  public long getPutCount() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getPutCount() : 0;
+  }
+
+  public double getHitRatio() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    if (region == null) {
+      return 0;
+    }
+    long hits = region.getHitCount();
+    long lookups = hits + region.getMissCount();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  public long getElementCountInMemory() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getElementCountInMemory() : 0;
+  }
+
+  public long getElementCountOnDisk() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getElementCountOnDisk() : 0;
+  }
+
+  public long getSizeInMemory() {
+    SecondLevelCacheStatistics region = getRegionStatistics();
+    return region != null ? region.getSizeInMemory() : 0;
+  }
+
+  private SecondLevelCacheStatistics getRegionStatistics() {
+    return statistics.getSecondLevelCacheStatistics(regionName);
+  }
+
+}
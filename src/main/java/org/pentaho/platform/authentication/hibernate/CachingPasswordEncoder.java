@@ -0,0 +1,198 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.Validate;
+import org.springframework.dao.DataAccessException;
+import org.springframework.security.providers.encoding.PasswordEncoder;
+
+/**
+ * Wraps a slow {@link PasswordEncoder}, such as {@link Pbkdf2PasswordEncoder}, so that a password that has just been 
+ * verified is verified again without hashing. Clients that authenticate every request, such as REST clients using 
+ * HTTP Basic, then pay for the wrapped encoder once per <code>timeToLiveSeconds</code> rather than once per request.
+ * 
+ * <p>After a successful verification the cache maps the encoded password to an HMAC of the raw password, keyed with a 
+ * secret generated at startup and never stored. Raw passwords are not kept, and an entry is of no use outside this 
+ * process. Failed verifications are not cached, so guessing stays as slow as the wrapped encoder.</p>
+ * 
+ * <p>Entries are keyed by the encoded password, which changes whenever the password does (each hash has its own salt), 
+ * so an entry can never confirm a password that has since been changed. Whether the user is enabled is not decided 
+ * here; the authentication provider checks it on the user it has just loaded, before the password.</p>
+ */
+public class CachingPasswordEncoder implements PasswordEncoder {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 60;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256"; //$NON-NLS-1$
+
+  private static final int SECRET_BYTES = 32;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+  // ~ Instance fields =================================================================================================
+
+  private final SecretKeySpec secret;
+
+  /**
+   * Holds a JDK class, so that a thread of a container does not keep this class's class loader reachable.
+   */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  private PasswordEncoder passwordEncoder;
+
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+
+  private ExpiringLruCache<String, byte[]> verifiedCache = createCache();
+
+  // ~ Constructors ====================================================================================================
+
+  public CachingPasswordEncoder() {
+    byte[] key = new byte[SECRET_BYTES];
+    new SecureRandom().nextBytes(key);
+    secret = new SecretKeySpec(key, MAC_ALGORITHM);
+  }
+
+  // ~ Methods =========================================================================================================
+
+  public String encodePassword(final String rawPass, final Object salt) throws DataAccessException {
+    return passwordEncoder.encodePassword(rawPass, salt);
+  }
+
+  public boolean isPasswordValid(final String encPass, final String rawPass, final Object salt)
+      throws DataAccessException {
+    Validate.notNull(encPass, "Encoded password can not be null"); //$NON-NLS-1$
+    Validate.notNull(rawPass, "Raw password can not be null"); //$NON-NLS-1$
+    byte[] digest = digest(rawPass, salt);
+    byte[] verified = verifiedCache.get(encPass);
+    if (verified != null && MessageDigest.isEqual(verified, digest)) {
+      hitCount.incrementAndGet();
+      return true;
+    }
+    missCount.incrementAndGet();
+    long generation = verifiedCache.getGeneration(encPass);
+    boolean valid = passwordEncoder.isPasswordValid(encPass, rawPass, salt);
+    if (valid) {
+      verifiedCache.putIfGeneration(encPass, digest, generation);
+    }
+    return valid;
+  }
+
+  /**
+   * Forgets every verified password, so that the next verification of each goes to the wrapped encoder.
+   */
+  public void clear() {
+    verifiedCache.clear();
+  }
+
+  /**
+   * The salt is included since the wrapped encoder may give a different answer for a different salt.
+   */
+  private byte[] digest(final String rawPass, final Object salt) {
+    Mac mac = macs.get();
+    if (mac == null) {
+      try {
+        mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(secret);
+      } catch (GeneralSecurityException e) {
+        // HmacSHA256 is required of every Java platform
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+      macs.set(mac);
+    }
+    byte[] password = rawPass.getBytes(UTF_8);
+    // the length and a marker for the salt, so that no other pair produces the same input, even with a password 
+    // that contains the bytes that follow it
+    mac.update((byte) (password.length >>> 24));
+    mac.update((byte) (password.length >>> 16));
+    mac.update((byte) (password.length >>> 8));
+    mac.update((byte) password.length);
+    mac.update(password);
+    if (salt != null) {
+      mac.update((byte) 1);
+      mac.update(salt.toString().getBytes(UTF_8));
+    } else {
+      mac.update((byte) 0);
+    }
+    return mac.doFinal();
+  }
+
+  private ExpiringLruCache<String, byte[]> createCache() {
+    return new ExpiringLruCache<String, byte[]>(maxSize, TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+  }
+
+  /**
+   * @return the number of verifications answered from the cache
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of verifications that went to the wrapped encoder
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public void setPasswordEncoder(final PasswordEncoder passwordEncoder) {
+    this.passwordEncoder = passwordEncoder;
+  }
+
+  public PasswordEncoder getPasswordEncoder() {
+    return passwordEncoder;
+  }
+
+  public void setMaxSize(final int maxSize) {
+    this.maxSize = maxSize;
+    verifiedCache = createCache();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setTimeToLiveSeconds(final long timeToLiveSeconds) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    verifiedCache = createCache();
+  }
+
+  public long getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+}
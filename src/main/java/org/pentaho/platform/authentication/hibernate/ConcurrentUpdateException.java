@@ -0,0 +1,36 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+/**
+ * Thrown when a user or role is updated from a copy whose version is no longer current, because someone else updated
+ * it in the meantime. Reload and reapply the change.
+ */
+public class ConcurrentUpdateException extends UserRoleDaoException {
+
+  private static final long serialVersionUID = 4519672093518254087L;
+
+  public ConcurrentUpdateException(final String msg) {
+    super(msg);
+  }
+
+  public ConcurrentUpdateException(final String msg, final Throwable t) {
+    super(msg, t);
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of strings. <code>mightContain</code> never returns <code>false</code> for a string that
+ * was added and not removed since, and returns <code>true</code> for a string that was not added with roughly the
+ * false positive probability the filter was sized for.
+ *
+ * <p>Each position holds a 4-bit counter, packed 16 to a <code>long</code>, so that strings can be removed again.
+ * Counters are updated with compare-and-set, so the filter is thread-safe without locking. A counter that reaches 15
+ * sticks there, which can only cause false positives. Removing a string that was never added corrupts the filter;
+ * callers must only remove what they added.</p>
+ */
+public class CountingBloomFilter {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final int COUNTER_BITS = 4;
+
+  private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+
+  private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+  // ~ Instance fields =================================================================================================
+
+  private final AtomicLongArray words;
+
+  private final int counterCount;
+
+  private final int hashCount;
+
+  // ~ Constructors ====================================================================================================
+
+  /**
+   * @param expectedSize number of strings the filter will hold
+   * @param falsePositiveProbability wanted probability that <code>mightContain</code> is wrong once
+   * <code>expectedSize</code> strings have been added
+   */
+  public CountingBloomFilter(final int expectedSize, final double falsePositiveProbability) {
+    if (expectedSize <= 0) {
+      throw new IllegalArgumentException("expectedSize must be positive"); //$NON-NLS-1$
+    }
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1"); //$NON-NLS-1$
+    }
+    double ln2 = Math.log(2);
+    long counters = (long) Math.ceil(-expectedSize * Math.log(falsePositiveProbability) / (ln2 * ln2));
+    counterCount = (int) Math.min(Math.max(counters, COUNTERS_PER_WORD), Integer.MAX_VALUE - COUNTERS_PER_WORD);
+    hashCount = Math.max(1, (int) Math.round((double) counterCount / expectedSize * ln2));
+    words = new AtomicLongArray((counterCount + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+  }
+
+  // ~ Methods =========================================================================================================
+
+  public void add(final String value) {
+    int h1 = hash1(value);
+    int h2 = hash2(value);
+    for (int i = 0; i < hashCount; i++) {
+      increment(index(h1, h2, i));
+    }
+  }
+
+  public void remove(final String value) {
+    int h1 = hash1(value);
+    int h2 = hash2(value);
+    for (int i = 0; i < hashCount; i++) {
+      decrement(index(h1, h2, i));
+    }
+  }
+
+  /**
+   * @return <code>false</code> if the string is definitely absent
+   */
+  public boolean mightContain(final String value) {
+    int h1 = hash1(value);
+    int h2 = hash2(value);
+    for (int i = 0; i < hashCount; i++) {
+      if (count(index(h1, h2, i)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getCounterCount() {
+    return counterCount;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  private long count(final int index) {
+    return (words.get(index / COUNTERS_PER_WORD) >>> shift(index)) & MAX_COUNT;
+  }
+
+  private void increment(final int index) {
+    int word = index / COUNTERS_PER_WORD;
+    int shift = shift(index);
+    while (true) {
+      long value = words.get(word);
+      if (((value >>> shift) & MAX_COUNT) == MAX_COUNT) {
+        return;
+      }
+      if (words.compareAndSet(word, value, value + (1L << shift))) {
+        return;
+      }
+    }
+  }
+
+  private void decrement(final int index) {
+    int word = index / COUNTERS_PER_WORD;
+    int shift = shift(index);
+    while (true) {
+      long value = words.get(word);
+      long count = (value >>> shift) & MAX_COUNT;
+      // a saturated counter no longer knows how many strings share it
+      if (count == 0 || count == MAX_COUNT) {
+        return;
+      }
+      if (words.compareAndSet(word, value, value - (1L << shift))) {
+        return;
+      }
+    }
+  }
+
+  private static int shift(final int index) {
+    return (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+  }
+
+  /**
+   * Double hashing: the i-th position is <code>h1 + i * h2</code>.
+   */
+  private int index(final int h1, final int h2, final int i) {
+    return ((h1 + i * h2) & Integer.MAX_VALUE) % counterCount;
+  }
+
+  private static int hash1(final String value) {
+    return mix(value.hashCode());
+  }
+
+  /**
+   * FNV-1a over the characters, independent of <code>String.hashCode</code>. Forced odd, hence non-zero, so that
+   * the positions of one string do not all coincide.
+   */
+  private static int hash2(final String value) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x01000193;
+    }
+    return mix(hash) | 1;
+  }
+
+  /**
+   * Finalization step of MurmurHash3.
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+}
@@ -52,6 +52,14 @@ public class CustomRole implements IRole {
 
   private Set<IUser> users = new HashSet<IUser>();
 
+  private Long version;
+
+  /**
+   * Normalized name, mapped by field for case-insensitive search. Role names never change, so it is set along with 
+   * the name.
+   */
+  private String nameKey;
+
   // ~ Constructors ====================================================================================================
 
   public CustomRole() {
@@ -64,6 +72,7 @@ public class CustomRole implements IRole {
 
   public CustomRole(String name, String description) {
     this.name = name;
+    this.nameKey = SearchKeys.normalize(name);
     this.description = description;
   }
 
@@ -72,8 +81,10 @@ public class CustomRole implements IRole {
    */
   public CustomRole(IRole roleToCopy) {
     this.name = roleToCopy.getName();
+    this.nameKey = SearchKeys.normalize(name);
     this.description = roleToCopy.getDescription();
     users = new HashSet<IUser>(roleToCopy.getUsers());
+    this.version = roleToCopy.getVersion();
   }
 
   // ~ Methods =========================================================================================================
@@ -109,6 +120,14 @@ public class CustomRole implements IRole {
     return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append(FIELD_NAME, name).toString();
   }
 
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
   public void setUsers(Set<IUser> users) {
     this.users = users;
   }
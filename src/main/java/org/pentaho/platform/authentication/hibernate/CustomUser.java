@@ -63,6 +63,14 @@ public class CustomUser implements IUser {
 
   private Set<IRole> roles = new HashSet<IRole>();
 
+  private Long version;
+
+  /**
+   * Normalized username, mapped by field for case-insensitive search. Usernames never change, so it is set along 
+   * with the username.
+   */
+  private String usernameKey;
+
   // ~ Constructors ====================================================================================================
 
   public CustomUser() {
@@ -75,6 +83,7 @@ public class CustomUser implements IUser {
 
   public CustomUser(String username, String password, String description, boolean enabled) {
     this.username = username;
+    this.usernameKey = SearchKeys.normalize(username);
     this.password = password;
     this.description = description;
     this.enabled = enabled;
@@ -85,9 +94,11 @@ public class CustomUser implements IUser {
    */
   public CustomUser(IUser userToCopy) {
     this.username = userToCopy.getUsername();
+    this.usernameKey = SearchKeys.normalize(username);
     this.description = userToCopy.getDescription();
     this.enabled = userToCopy.isEnabled();
     roles = new HashSet<IRole>(userToCopy.getRoles());
+    this.version = userToCopy.getVersion();
   }
 
   // ~ Methods =========================================================================================================
@@ -148,6 +159,14 @@ public class CustomUser implements IUser {
         FIELD_PASSWORD, PASSWORD_MASK).append(FIELD_DESCRIPTION, description).append(FIELD_ENABLED, enabled).toString();
   }
 
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
   public boolean addRole(IRole role) {
     return roles.add(role);
   }
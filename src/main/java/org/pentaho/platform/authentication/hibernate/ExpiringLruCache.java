@@ -0,0 +1,252 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, size-bounded cache whose entries expire a fixed time after they were put. When full, the least
+ * recently used entry is evicted.
+ *
+ * <p>The cache is split into segments, each guarded by its own lock, so that concurrent lookups of different keys
+ * rarely contend. The size bound is enforced per segment.</p>
+ *
+ * <p>Every invalidation advances a generation counter of the segments it touches: <code>remove</code> that of the 
+ * key's segment, <code>removeAll</code> and <code>clear</code> those of all segments. A read-through caller that 
+ * captures the generation of its key before loading a value and then uses <code>putIfGeneration</code> will never 
+ * overwrite an invalidation that raced with its load, while invalidations of keys in other segments leave its load 
+ * alone.</p>
+ */
+public class ExpiringLruCache<K, V> {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final int SEGMENT_COUNT = 16;
+
+  // ~ Instance fields =================================================================================================
+
+  private final Segment<K, V>[] segments;
+
+  private final long timeToLiveNanos;
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  // ~ Constructors ====================================================================================================
+
+  public ExpiringLruCache(final int maxSize, final long timeToLiveMillis) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive"); //$NON-NLS-1$
+    }
+    if (timeToLiveMillis <= 0) {
+      throw new IllegalArgumentException("timeToLiveMillis must be positive"); //$NON-NLS-1$
+    }
+    this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    int segmentCount = Math.min(SEGMENT_COUNT, maxSize);
+    int segmentSize = (maxSize + segmentCount - 1) / segmentCount;
+    segments = newSegments(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment<K, V>(segmentSize);
+    }
+  }
+
+  // ~ Methods =========================================================================================================
+
+  /**
+   * @return the cached value or <code>null</code> if absent or expired
+   */
+  public V get(final K key) {
+    V value = segmentFor(key).get(key, System.nanoTime());
+    if (value != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  public void put(final K key, final V value) {
+    segmentFor(key).put(key, value, System.nanoTime() + timeToLiveNanos);
+  }
+
+  /**
+   * Puts the value only if no invalidation has reached the key's segment since <code>expectedGeneration</code> was 
+   * read from {@link #getGeneration(Object)}.
+   *
+   * @return <code>true</code> if the value was cached
+   */
+  public boolean putIfGeneration(final K key, final V value, final long expectedGeneration) {
+    return segmentFor(key).putIfGeneration(key, value, System.nanoTime() + timeToLiveNanos, expectedGeneration);
+  }
+
+  public void remove(final K key) {
+    segmentFor(key).remove(key);
+  }
+
+  /**
+   * Removes every entry the filter accepts. Unlike the other operations this visits every entry, one segment at a 
+   * time; it is meant for invalidations that cannot be expressed by key.
+   */
+  public void removeAll(final EntryFilter<? super K, ? super V> filter) {
+    for (Segment<K, V> segment : segments) {
+      segment.removeAll(filter);
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * @return the generation of the key's segment, to pass to {@link #putIfGeneration(Object, Object, long)}
+   */
+  public long getGeneration(final K key) {
+    return segmentFor(key).getGeneration();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Selects the entries removed by {@link ExpiringLruCache#removeAll(EntryFilter)}.
+   */
+  public interface EntryFilter<K, V> {
+    boolean accept(K key, V value);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static <K, V> Segment<K, V>[] newSegments(final int count) {
+    // arrays of a generic type can only be created raw
+    return new Segment[count];
+  }
+
+  private Segment<K, V> segmentFor(final K key) {
+    int h = key != null ? key.hashCode() : 0;
+    // spread the high bits so that keys differing only in their upper bits land in different segments
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * A lock-guarded, access-ordered map holding a share of the entries, with the generation of its invalidations.
+   */
+  private static final class Segment<K, V> {
+
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    private long generation;
+
+    Segment(final int maxSize) {
+      map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    synchronized V get(final K key, final long now) {
+      Entry<V> entry = map.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiresAt - now <= 0) {
+        map.remove(key);
+        return null;
+      }
+      return entry.value;
+    }
+
+    synchronized void put(final K key, final V value, final long expiresAt) {
+      map.put(key, new Entry<V>(value, expiresAt));
+    }
+
+    synchronized boolean putIfGeneration(final K key, final V value, final long expiresAt,
+        final long expectedGeneration) {
+      if (generation != expectedGeneration) {
+        return false;
+      }
+      map.put(key, new Entry<V>(value, expiresAt));
+      return true;
+    }
+
+    synchronized void remove(final K key) {
+      generation++;
+      map.remove(key);
+    }
+
+    synchronized long getGeneration() {
+      return generation;
+    }
+
+    synchronized void removeAll(final EntryFilter<? super K, ? super V> filter) {
+      generation++;
+      for (Iterator<Map.Entry<K, Entry<V>>> i = map.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<K, Entry<V>> entry = i.next();
+        if (filter.accept(entry.getKey(), entry.getValue().value)) {
+          i.remove();
+        }
+      }
+    }
+
+    synchronized void clear() {
+      generation++;
+      map.clear();
+    }
+
+    synchronized int size() {
+      return map.size();
+    }
+
+  }
+
+  private static final class Entry<V> {
+
+    final V value;
+
+    final long expiresAt;
+
+    Entry(final V value, final long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+  }
+
+}
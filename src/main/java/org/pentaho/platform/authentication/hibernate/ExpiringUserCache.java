@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.providers.dao.UserCache;
+import org.springframework.security.userdetails.UserDetails;
+
+/**
+ * A size-bounded {@link UserCache} whose entries expire a fixed time after they were cached, for the 
+ * <code>userCache</code> of a Spring Security authentication provider.
+ * 
+ * <p>Registered with a {@link UserRoleChangePoller}, it also drops users as soon as they are changed, on this server 
+ * or another. Without one, a change becomes visible once the entry expires.</p>
+ */
+public class ExpiringUserCache implements UserCache, IUserRoleChangeListener {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 300;
+
+  // ~ Instance fields =================================================================================================
+
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+
+  private ExpiringLruCache<String, UserDetails> userCache = createCache();
+
+  // ~ Methods =========================================================================================================
+
+  public UserDetails getUserFromCache(final String username) {
+    return userCache.get(username);
+  }
+
+  public void putUserInCache(final UserDetails user) {
+    userCache.put(user.getUsername(), user);
+  }
+
+  public void removeUserFromCache(final String username) {
+    userCache.remove(username);
+  }
+
+  public void usersChanged(final Set<String> usernames) {
+    for (String username : usernames) {
+      userCache.remove(username);
+    }
+  }
+
+  /**
+   * Changes of membership are also reported as changes of the users, but the deletion of a role is not, so the users 
+   * granted a changed role are dropped.
+   */
+  public void rolesChanged(final Set<String> roleNames) {
+    userCache.removeAll(new ExpiringLruCache.EntryFilter<String, UserDetails>() {
+      public boolean accept(final String username, final UserDetails user) {
+        for (GrantedAuthority authority : user.getAuthorities()) {
+          if (roleNames.contains(authority.getAuthority())) {
+            return true;
+          }
+        }
+        return false;
+      }
+    });
+  }
+
+  public void allChanged() {
+    clear();
+  }
+
+  /**
+   * Discards every cached user.
+   */
+  public void clear() {
+    userCache.clear();
+  }
+
+  private ExpiringLruCache<String, UserDetails> createCache() {
+    return new ExpiringLruCache<String, UserDetails>(maxSize, TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+  }
+
+  public long getHitCount() {
+    return userCache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return userCache.getMissCount();
+  }
+
+  public void setMaxSize(final int maxSize) {
+    this.maxSize = maxSize;
+    userCache = createCache();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setTimeToLiveSeconds(final long timeToLiveSeconds) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    userCache = createCache();
+  }
+
+  public long getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Registers one {@link CacheRegionStatisticsMBean} per second-level cache region of a session factory, plus the query 
+ * cache regions of {@link HibernateUserRoleDao}, with the platform MBean server under <code>objectNamePrefix</code> 
+ * plus <code>,region=&lt;region name&gt;</code>.
+ * 
+ * <p>Hibernate only gathers statistics when <code>hibernate.generate_statistics</code> is <code>true</code>; set 
+ * <code>enableStatistics</code> to switch them on from here instead. Call <code>init</code> after the session factory 
+ * is built and <code>destroy</code> before it is closed. Both can be called automatically if using Spring via the 
+ * <code>init-method</code> and <code>destroy-method</code> attributes.</p>
+ */
+public class HibernateCacheStatisticsExporter {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(HibernateCacheStatisticsExporter.class);
+
+  public static final String DEFAULT_OBJECT_NAME_PREFIX = 
+      "org.pentaho.platform.authentication.hibernate:type=CacheRegion"; //$NON-NLS-1$
+
+  // ~ Instance fields =================================================================================================
+
+  private SessionFactory sessionFactory;
+
+  private String objectNamePrefix = DEFAULT_OBJECT_NAME_PREFIX;
+
+  private boolean enableStatistics;
+
+  private MBeanServer mbeanServer;
+
+  private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+  // ~ Methods =========================================================================================================
+
+  public void init() throws JMException {
+    if (mbeanServer == null) {
+      mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+    Statistics statistics = sessionFactory.getStatistics();
+    if (enableStatistics) {
+      statistics.setStatisticsEnabled(true);
+    }
+    for (String regionName : getRegionNames(statistics)) {
+      ObjectName name = new ObjectName(objectNamePrefix + ",region=" + ObjectName.quote(regionName)); //$NON-NLS-1$
+      mbeanServer.registerMBean(new CacheRegionStatistics(statistics, regionName), name);
+      registeredNames.add(name);
+    }
+  }
+
+  public void destroy() {
+    for (ObjectName name : registeredNames) {
+      try {
+        mbeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn(e.getMessage(), e);
+      }
+    }
+    registeredNames.clear();
+  }
+
+  /**
+   * The query regions are only created on first use, so they are added by name, with any configured 
+   * <code>hibernate.cache.region_prefix</code> applied.
+   */
+  private Set<String> getRegionNames(final Statistics statistics) {
+    Set<String> regionNames = new LinkedHashSet<String>(Arrays.asList(statistics.getSecondLevelCacheRegionNames()));
+    String prefix = null;
+    if (sessionFactory instanceof SessionFactoryImplementor) {
+      prefix = ((SessionFactoryImplementor) sessionFactory).getSettings().getCacheRegionPrefix();
+    }
+    prefix = prefix != null ? prefix + "." : ""; //$NON-NLS-1$ //$NON-NLS-2$
+    regionNames.add(prefix + HibernateUserRoleDao.ALL_USERS_QUERY_CACHE_REGION);
+    regionNames.add(prefix + HibernateUserRoleDao.ALL_ROLES_QUERY_CACHE_REGION);
+    return regionNames;
+  }
+
+  public void setSessionFactory(final SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  public void setObjectNamePrefix(final String objectNamePrefix) {
+    this.objectNamePrefix = objectNamePrefix;
+  }
+
+  public void setEnableStatistics(final boolean enableStatistics) {
+    this.enableStatistics = enableStatistics;
+  }
+
+  public void setMbeanServer(final MBeanServer mbeanServer) {
+    this.mbeanServer = mbeanServer;
+  }
+
+}
@@ -17,11 +17,42 @@
 */
 package org.pentaho.platform.authentication.hibernate;
 
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.collections.CollectionUtils;
+import org.hibernate.Cache;
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.NonUniqueObjectException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.transform.DistinctRootEntityResultTransformer;
+import org.hibernate.type.StandardBasicTypes;
 import org.pentaho.platform.authentication.hibernate.AlreadyExistsException;
 import org.pentaho.platform.authentication.hibernate.IRole;
 import org.pentaho.platform.authentication.hibernate.IUser;
@@ -32,8 +63,12 @@ import org.pentaho.platform.authentication.hibernate.CustomUser;
 import org.pentaho.platform.authentication.hibernate.UncategorizedUserRoleDaoException;
 import org.pentaho.platform.authentication.hibernate.messages.Messages;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
-import org.springframework.util.Assert;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * An {@link IUserRoleDao} that uses Hibernate. Furthermore, it uses Spring's <code>HibernateDaoSupport</code>. This 
@@ -53,6 +88,156 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
 
   public static final String DEFAULT_ALL_ROLES_QUERY = "from CustomRole order by name"; //$NON-NLS-1$
 
+  /**
+   * Used instead of {@link #DEFAULT_ALL_USERS_QUERY} when the role fetch mode is {@link RoleFetchMode#JOIN}.
+   */
+  public static final String JOIN_FETCH_ALL_USERS_QUERY = "from CustomUser u left join fetch u.roles order by u.username"; //$NON-NLS-1$
+
+  /**
+   * Name of the collection role (and second-level cache region) of <code>CustomUser.roles</code>.
+   */
+  public static final String ROLES_COLLECTION = CustomUser.class.getName() + ".roles"; //$NON-NLS-1$
+
+  /**
+   * Query cache region of the all users query.
+   */
+  public static final String ALL_USERS_QUERY_CACHE_REGION = HibernateUserRoleDao.class.getName() + ".allUsersQuery"; //$NON-NLS-1$
+
+  /**
+   * Query cache region of the all roles query.
+   */
+  public static final String ALL_ROLES_QUERY_CACHE_REGION = HibernateUserRoleDao.class.getName() + ".allRolesQuery"; //$NON-NLS-1$
+
+  private static final String FIRST_USERS_PAGE_QUERY = "from CustomUser u order by u.username"; //$NON-NLS-1$
+
+  private static final String USERS_PAGE_QUERY = "from CustomUser u where u.username > :after order by u.username"; //$NON-NLS-1$
+
+  private static final String FIRST_ROLES_PAGE_QUERY = "from CustomRole r order by r.name"; //$NON-NLS-1$
+
+  private static final String ROLES_PAGE_QUERY = "from CustomRole r where r.name > :after order by r.name"; //$NON-NLS-1$
+
+  private static final String USER_CREDENTIALS_SQL = "select u.PASSWORD, u.ENABLED, g.AUTHORITY from USERS u " //$NON-NLS-1$
+      + "left outer join GRANTED_AUTHORITIES g on g.USERNAME = u.USERNAME " //$NON-NLS-1$
+      + "where u.USERNAME = :username order by g.AUTHORITY"; //$NON-NLS-1$
+
+  private static final String SCROLL_USERS_SQL = "select u.USERNAME, u.PASSWORD, u.DESCRIPTION, u.ENABLED, " //$NON-NLS-1$
+      + "u.VERSION, g.AUTHORITY from USERS u left outer join GRANTED_AUTHORITIES g on g.USERNAME = u.USERNAME " //$NON-NLS-1$
+      + "order by u.USERNAME, g.AUTHORITY"; //$NON-NLS-1$
+
+  private static final String FIRST_USERNAMES_PAGE_QUERY = "select u.username from CustomUser u order by u.username"; //$NON-NLS-1$
+
+  private static final String USERNAMES_PAGE_QUERY = "select u.username from CustomUser u where u.username > :after order by u.username"; //$NON-NLS-1$
+
+  private static final String JOIN_FETCH_USERS_QUERY = "from CustomUser u left join fetch u.roles " //$NON-NLS-1$
+      + "where u.username in (:usernames) order by u.username"; //$NON-NLS-1$
+
+  private static final String IS_USER_IN_ROLE_QUERY = "select count(*) from CustomUserRoleMapping m " //$NON-NLS-1$
+      + "where m.id.user = :username and m.id.role = :role"; //$NON-NLS-1$
+
+  private static final String ROLE_MEMBERS_QUERY = "select m.id.user from CustomUserRoleMapping m where m.id.role = :role"; //$NON-NLS-1$
+
+  private static final String EXISTING_USERNAMES_QUERY = "select u.username from CustomUser u where u.username in (:usernames)"; //$NON-NLS-1$
+
+  private static final String UPDATE_USER_ENABLED_SQL = "update USERS set ENABLED = ?, VERSION = VERSION + 1 " //$NON-NLS-1$
+      + "where USERNAME = ?"; //$NON-NLS-1$
+
+  private static final String UPDATE_USERS_ENABLED_SQL = "update USERS set ENABLED = ?, VERSION = VERSION + 1 " //$NON-NLS-1$
+      + "where USERNAME in "; //$NON-NLS-1$
+
+  private static final String UPDATE_USER_PASSWORD_SQL = "update USERS set PASSWORD = ?, VERSION = VERSION + 1 " //$NON-NLS-1$
+      + "where USERNAME = ?"; //$NON-NLS-1$
+
+  private static final String UPDATE_USER_DESCRIPTION_SQL = "update USERS set DESCRIPTION = ?, VERSION = VERSION + 1 " //$NON-NLS-1$
+      + "where USERNAME = ?"; //$NON-NLS-1$
+
+  private static final String UPDATE_ROLE_DESCRIPTION_SQL = "update AUTHORITIES set DESCRIPTION = ?, " //$NON-NLS-1$
+      + "VERSION = VERSION + 1 where AUTHORITY = ?"; //$NON-NLS-1$
+
+  private static final String USER_VERSIONS_QUERY = "select u.username, u.version from CustomUser u " //$NON-NLS-1$
+      + "where u.username in (:usernames)"; //$NON-NLS-1$
+
+  private static final String USER_VERSION_QUERY = "select u.version from CustomUser u where u.username = :key"; //$NON-NLS-1$
+
+  private static final String ROLE_VERSION_QUERY = "select r.version from CustomRole r where r.name = :key"; //$NON-NLS-1$
+
+  private static final String INSERT_ROLE_MEMBERS_SQL = "insert into GRANTED_AUTHORITIES (USERNAME, AUTHORITY) " //$NON-NLS-1$
+      + "select u.USERNAME, a.AUTHORITY from USERS u, AUTHORITIES a " //$NON-NLS-1$
+      + "where a.AUTHORITY = :role and u.USERNAME in (:usernames) and not exists " //$NON-NLS-1$
+      + "(select 1 from GRANTED_AUTHORITIES g where g.USERNAME = u.USERNAME and g.AUTHORITY = a.AUTHORITY)"; //$NON-NLS-1$
+
+  private static final String EXISTING_ROLE_NAMES_QUERY = "select r.name from CustomRole r where r.name in (:names)"; //$NON-NLS-1$
+
+  private static final String DELETE_USERS_SQL = "delete from USERS where USERNAME in (:usernames)"; //$NON-NLS-1$
+
+  private static final String DELETE_USERS_ROLES_SQL = "delete from GRANTED_AUTHORITIES where USERNAME in (:usernames)"; //$NON-NLS-1$
+
+  /**
+   * Served by the index on <code>GRANTED_AUTHORITIES (AUTHORITY, USERNAME)</code>; see 
+   * <code>CustomUserRoleMapping.hbm.xml</code>.
+   */
+  private static final String FIRST_ROLE_MEMBERS_PAGE_SQL = "select g.USERNAME, u.DESCRIPTION, u.ENABLED " //$NON-NLS-1$
+      + "from GRANTED_AUTHORITIES g inner join USERS u on u.USERNAME = g.USERNAME " //$NON-NLS-1$
+      + "where g.AUTHORITY = :role order by g.USERNAME"; //$NON-NLS-1$
+
+  private static final String ROLE_MEMBERS_PAGE_SQL = "select g.USERNAME, u.DESCRIPTION, u.ENABLED " //$NON-NLS-1$
+      + "from GRANTED_AUTHORITIES g inner join USERS u on u.USERNAME = g.USERNAME " //$NON-NLS-1$
+      + "where g.AUTHORITY = :role and g.USERNAME > :after order by g.USERNAME"; //$NON-NLS-1$
+
+  private static final String COUNT_ROLE_MEMBERS_SQL = "select count(*) from GRANTED_AUTHORITIES where AUTHORITY = :role"; //$NON-NLS-1$
+
+  private static final String FIND_USERS_QUERY = "select new " + UserSummary.class.getName() //$NON-NLS-1$
+      + "(u.username, u.description, u.enabled) from CustomUser u " //$NON-NLS-1$
+      + "where u.usernameKey like :pattern escape '" + SearchKeys.ESCAPE + "' order by u.usernameKey"; //$NON-NLS-1$ //$NON-NLS-2$
+
+  private static final String FIND_ROLES_QUERY = "from CustomRole r where r.nameKey like :pattern escape '" //$NON-NLS-1$
+      + SearchKeys.ESCAPE + "' order by r.nameKey"; //$NON-NLS-1$
+
+  private static final String DELETE_ROLE_MEMBERSHIPS_SQL = "delete from GRANTED_AUTHORITIES where AUTHORITY = :role"; //$NON-NLS-1$
+
+  private static final String DELETE_ROLE_MEMBERS_SQL = "delete from GRANTED_AUTHORITIES " //$NON-NLS-1$
+      + "where AUTHORITY = :role and USERNAME in (:usernames)"; //$NON-NLS-1$
+
+  private static final String BUMP_GENERATION_SQL = "update USER_ROLE_GENERATION set GENERATION = GENERATION + 1 " //$NON-NLS-1$
+      + "where ID = 1"; //$NON-NLS-1$
+
+  private static final String INSERT_GENERATION_SQL = "insert into USER_ROLE_GENERATION (ID, GENERATION) values (1, 1)"; //$NON-NLS-1$
+
+  private static final String SELECT_GENERATION_SQL = "select GENERATION from USER_ROLE_GENERATION where ID = 1"; //$NON-NLS-1$
+
+  private static final String INSERT_CHANGE_SQL = "insert into USER_ROLE_CHANGES " //$NON-NLS-1$
+      + "(GENERATION, KEY_TYPE, KEY_NAME, CHANGED_AT) values (?, ?, ?, ?)"; //$NON-NLS-1$
+
+  /**
+   * A range of the primary key of <code>USER_ROLE_CHANGES</code>, whose leading column is the generation.
+   */
+  private static final String PURGE_CHANGES_SQL = "delete from USER_ROLE_CHANGES where GENERATION <= ?"; //$NON-NLS-1$
+
+  /**
+   * Value of <code>USER_ROLE_CHANGES.KEY_TYPE</code> for a changed user.
+   */
+  public static final String USER_KEY_TYPE = "U"; //$NON-NLS-1$
+
+  /**
+   * Value of <code>USER_ROLE_CHANGES.KEY_TYPE</code> for a changed role.
+   */
+  public static final String ROLE_KEY_TYPE = "R"; //$NON-NLS-1$
+
+  /**
+   * Old change records are purged by every transaction whose generation is a multiple of this.
+   */
+  private static final int PURGE_INTERVAL_GENERATIONS = 100;
+
+  public static final long DEFAULT_CHANGE_RETENTION_GENERATIONS = 10000;
+
+  private static final Set<String> NO_NAMES = Collections.emptySet();
+
+  /**
+   * Upper bound on the number of values bound to a single <code>IN (...)</code> list. Oracle rejects more than 1000.
+   */
+  private static final int MAX_IN_LIST_SIZE = 500;
+
+  public static final int DEFAULT_BATCH_SIZE = 50;
+
   // ~ Instance fields =================================================================================================
 
   private String allUsersQuery = DEFAULT_ALL_USERS_QUERY;
@@ -61,6 +246,16 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
 
   private InitHandler initHandler;
 
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  private RoleFetchMode roleFetchMode = RoleFetchMode.JOIN;
+
+  private boolean cacheQueries = false;
+
+  private boolean changeTrackingEnabled;
+
+  private long changeRetentionGenerations = DEFAULT_CHANGE_RETENTION_GENERATIONS;
+
   // ~ Constructors ====================================================================================================
 
   public HibernateUserRoleDao() {
@@ -78,16 +273,22 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
     }
   }
 
-  public void createUser(IUser userToCreate) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
-    Assert.notNull(userToCreate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(userToCreate.getUsername(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    Assert.notNull(userToCreate.getPassword(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL")); //$NON-NLS-1$
+  /**
+   * The user is written as a copy whose roles are the ones held by the session; see 
+   * {@link #toPersistentUser(Session, IUser, Long)}. The caller's user is left as it was.
+   */
+  public void createUser(final IUser userToCreate) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    assertNotNull(userToCreate, "HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(userToCreate.getUsername(), "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertNotNull(userToCreate.getPassword(), "HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL"); //$NON-NLS-1$
 
     if (getUser(userToCreate.getUsername()) == null) {
       try {
-        getHibernateTemplate().save(userToCreate);
+        getHibernateTemplate().execute(new HibernateCallback<Object>() {
+          public Object doInHibernate(Session session) throws HibernateException {
+            return session.save(toPersistentUser(session, userToCreate, null));
+          }
+        });
       } catch (DataAccessException e) {
         throw new UncategorizedUserRoleDaoException(Messages.getInstance()
             .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
@@ -95,12 +296,12 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
     } else {
       throw new AlreadyExistsException(userToCreate.getUsername());
     }
+    recordChanges(Collections.singleton(userToCreate.getUsername()), NO_NAMES);
   }
 
   public void deleteUser(IUser userToDelete) throws NotFoundException, UncategorizedUserRoleDaoException {
-    Assert.notNull(userToDelete, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(userToDelete.getUsername(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+    assertNotNull(userToDelete, "HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(userToDelete.getUsername(), "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
     IUser user = getUser(userToDelete.getUsername());
     if (user != null) {
@@ -113,120 +314,227 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
     } else {
       throw new NotFoundException(userToDelete.getUsername());
     }
+    recordChanges(Collections.singleton(userToDelete.getUsername()), NO_NAMES);
   }
 
-  public IUser getUser(String username) throws UncategorizedUserRoleDaoException {
-    Assert.hasLength(username, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+  public IUser getUser(final String username) throws UncategorizedUserRoleDaoException {
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
     try {
-      return (CustomUser) getHibernateTemplate().get(CustomUser.class, username);
+      return getHibernateTemplate().execute(new HibernateCallback<IUser>() {
+        public IUser doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return (CustomUser) session.get(CustomUser.class, username);
+        }
+      });
     } catch (DataAccessException e) {
       throw new UncategorizedUserRoleDaoException(Messages.getInstance()
           .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
-  @SuppressWarnings("unchecked")
-  public List<IUser> getUsers() throws UncategorizedUserRoleDaoException {
+  /**
+   * Reads the credentials with a single SQL statement joining <code>USERS</code> to <code>GRANTED_AUTHORITIES</code>. 
+   * Only scalars are selected, so nothing is registered in the persistence context, and the session is not flushed 
+   * beforehand.
+   */
+  public UserCredentials getUserCredentials(final String username) throws UncategorizedUserRoleDaoException {
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
     try {
-      return (List<IUser>) getHibernateTemplate().find(getAllUsersQuery());
+      return getHibernateTemplate().execute(new HibernateCallback<UserCredentials>() {
+        public UserCredentials doInHibernate(Session session) throws HibernateException {
+          @SuppressWarnings("unchecked")
+          List<Object[]> rows = session.createSQLQuery(USER_CREDENTIALS_SQL)
+              .addScalar("PASSWORD", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("ENABLED", StandardBasicTypes.BOOLEAN) //$NON-NLS-1$
+              .addScalar("AUTHORITY", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .setFlushMode(FlushMode.MANUAL)
+              .setParameter("username", username) //$NON-NLS-1$
+              .list();
+          if (rows.isEmpty()) {
+            return null;
+          }
+          Object[] first = rows.get(0);
+          List<String> roleNames = new ArrayList<String>(rows.size());
+          for (Object[] row : rows) {
+            // the outer join yields a single row with a null authority for a user without roles
+            if (row[2] != null) {
+              roleNames.add((String) row[2]);
+            }
+          }
+          return new UserCredentials(username, (String) first[0], ((Boolean) first[1]).booleanValue(), roleNames);
+        }
+      });
     } catch (DataAccessException e) {
       throw new UncategorizedUserRoleDaoException(Messages.getInstance()
           .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
-  public void updateUser(IUser userToUpdate) throws NotFoundException, UncategorizedUserRoleDaoException {
-    Assert.notNull(userToUpdate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(userToUpdate.getUsername(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    Assert.notNull(userToUpdate.getPassword(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL")); //$NON-NLS-1$
+  /**
+   * Counts the single <code>GRANTED_AUTHORITIES</code> row, if any, without loading the user.
+   */
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertHasLength(roleName, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
-    if (getUser(userToUpdate.getUsername()) != null) {
-      try {
-        getHibernateTemplate().update(getHibernateTemplate().merge(userToUpdate));
-      } catch (DataAccessException e) {
-        throw new UncategorizedUserRoleDaoException(Messages.getInstance()
-            .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
-      }
-    } else {
-      throw new NotFoundException(userToUpdate.getUsername());
+    try {
+      Number count = getHibernateTemplate().execute(new HibernateCallback<Number>() {
+        public Number doInHibernate(Session session) throws HibernateException {
+          return (Number) session.createQuery(IS_USER_IN_ROLE_QUERY)
+              .setParameter("username", username) //$NON-NLS-1$
+              .setParameter("role", roleName) //$NON-NLS-1$
+              .uniqueResult();
+        }
+      });
+      return count.longValue() > 0;
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
   /**
-   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
-   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
-   * role must be managed manually.
+   * The number of statements issued does not depend on the number of users; see {@link RoleFetchMode}. When query 
+   * caching is in effect, the join fetch is not used: the cached result then holds one identifier per user, and the 
+   * users and their roles come from the second-level cache.
    */
-  public void createRole(IRole roleToCreate) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
-    Assert.notNull(roleToCreate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(roleToCreate.getName(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-
-    if (getRole(roleToCreate.getName()) == null) {
-      try {
-        getHibernateTemplate().save(roleToCreate);
-      } catch (DataAccessException e) {
-        throw new UncategorizedUserRoleDaoException(Messages.getInstance()
-            .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
-      }
+  @SuppressWarnings("unchecked")
+  public List<IUser> getUsers() throws UncategorizedUserRoleDaoException {
+    final boolean cacheable = isQueryCacheInEffect();
+    final String query;
+    if (roleFetchMode == RoleFetchMode.JOIN && !cacheable && DEFAULT_ALL_USERS_QUERY.equals(getAllUsersQuery())) {
+      query = JOIN_FETCH_ALL_USERS_QUERY;
     } else {
-      throw new AlreadyExistsException(roleToCreate.getName());
+      query = getAllUsersQuery();
     }
 
-    // manually manage users set
-
-    for (IUser user : roleToCreate.getUsers()) {
-      addUser(roleToCreate, user.getUsername());
+    try {
+      return (List<IUser>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return session.createQuery(query).setCacheable(cacheable).setCacheRegion(ALL_USERS_QUERY_CACHE_REGION)
+              .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE).list();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
   /**
-   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
-   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
-   * role must be managed manually.
+   * Keyset pagination on the primary key: each page is a range scan of the <code>USERNAME</code> index, so late pages 
+   * are as cheap as early ones. The roles of the page are loaded as configured by {@link RoleFetchMode}.
    */
-  public void deleteRole(IRole roleToDelete) throws NotFoundException, UncategorizedUserRoleDaoException {
-    Assert.notNull(roleToDelete, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(roleToDelete.getName(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+  @SuppressWarnings("unchecked")
+  public List<IUser> getUsers(final String afterUsername, final int limit) throws UncategorizedUserRoleDaoException {
+    assertTrue(limit > 0, "HibernateUserRoleDao.ERROR_0012_LIMIT_MUST_BE_POSITIVE"); //$NON-NLS-1$
 
-    IRole role = getRole(roleToDelete.getName());
-    if (role != null) {
-      try {
-        // for each user that is a member of this role, manually remove the role assignment from the user
-        for (IUser user : role.getUsers()) {
-          user.removeRole(role);
-          updateUser(user);
+    try {
+      return (List<IUser>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          if (roleFetchMode == RoleFetchMode.BATCH) {
+            return createPageQuery(session, USERS_PAGE_QUERY, FIRST_USERS_PAGE_QUERY, afterUsername, limit).list();
+          }
+          // a fetch join cannot be combined with a row limit in SQL, so select the page's keys first
+          @SuppressWarnings("unchecked")
+          List<String> usernames = createPageQuery(session, USERNAMES_PAGE_QUERY, FIRST_USERNAMES_PAGE_QUERY,
+              afterUsername, limit).list();
+          List<Object> users = new ArrayList<Object>(usernames.size());
+          for (List<String> chunk : Partitions.partition(usernames, MAX_IN_LIST_SIZE)) {
+            users.addAll(session.createQuery(JOIN_FETCH_USERS_QUERY)
+                .setParameterList("usernames", chunk) //$NON-NLS-1$
+                .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+                .list());
+          }
+          return users;
         }
-        // delete the role itself now that it is no longer referenced anywhere 
-        getHibernateTemplate().delete(role);
-      } catch (DataAccessException e) {
-        throw new UncategorizedUserRoleDaoException(Messages.getInstance()
-            .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
-      }
-    } else {
-      throw new NotFoundException(roleToDelete.getName());
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
-  public IRole getRole(String name) throws UncategorizedUserRoleDaoException {
-    Assert.hasLength(name, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+  /**
+   * Walks a forward-only cursor over one outer join of users and their memberships, one row per role, and builds each 
+   * user from its rows: no entity is loaded, so there is no statement per user for its roles and nothing accumulates 
+   * in the session. The roles of the users passed to the handler carry only their names.
+   */
+  public void scrollUsers(final UserHandler handler) throws UncategorizedUserRoleDaoException {
+    assertNotNull(handler, "HibernateUserRoleDao.ERROR_0013_HANDLER_CANNOT_BE_NULL"); //$NON-NLS-1$
 
     try {
-      return (CustomRole) getHibernateTemplate().get(CustomRole.class, name);
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          ScrollableResults results = session.createSQLQuery(SCROLL_USERS_SQL)
+              .addScalar("USERNAME", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("PASSWORD", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("DESCRIPTION", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("ENABLED", StandardBasicTypes.BOOLEAN) //$NON-NLS-1$
+              .addScalar("VERSION", StandardBasicTypes.LONG) //$NON-NLS-1$
+              .addScalar("AUTHORITY", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .setFlushMode(FlushMode.MANUAL)
+              .setFetchSize(batchSize)
+              .scroll(ScrollMode.FORWARD_ONLY);
+          try {
+            CustomUser user = null;
+            while (results.next()) {
+              Object[] row = results.get();
+              if (user == null || !user.getUsername().equals(row[0])) {
+                if (user != null) {
+                  handler.handleUser(user);
+                }
+                user = new CustomUser((String) row[0], (String) row[1], (String) row[2],
+                    ((Boolean) row[3]).booleanValue());
+                user.setVersion((Long) row[4]);
+              }
+              // the outer join yields a single row with a null authority for a user without roles
+              if (row[5] != null) {
+                user.addRole(new CustomRole((String) row[5]));
+              }
+            }
+            if (user != null) {
+              handler.handleUser(user);
+            }
+          } finally {
+            results.close();
+          }
+          return null;
+        }
+      });
     } catch (DataAccessException e) {
       throw new UncategorizedUserRoleDaoException(Messages.getInstance()
           .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
     }
   }
 
-  @SuppressWarnings("unchecked")
-  public List<IRole> getRoles() throws UncategorizedUserRoleDaoException {
+  /**
+   * Walks a forward-only cursor over the username column alone.
+   */
+  public void scrollUsernames(final UsernameHandler handler) throws UncategorizedUserRoleDaoException {
+    assertNotNull(handler, "HibernateUserRoleDao.ERROR_0013_HANDLER_CANNOT_BE_NULL"); //$NON-NLS-1$
+
     try {
-      return (List<IRole>) getHibernateTemplate().find(getAllRolesQuery());
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          ScrollableResults results = session.createQuery(FIRST_USERNAMES_PAGE_QUERY)
+              .setFlushMode(FlushMode.MANUAL)
+              .setFetchSize(batchSize)
+              .scroll(ScrollMode.FORWARD_ONLY);
+          try {
+            while (results.next()) {
+              handler.handleUsername(results.getString(0));
+            }
+          } finally {
+            results.close();
+          }
+          return null;
+        }
+      });
     } catch (DataAccessException e) {
       throw new UncategorizedUserRoleDaoException(Messages.getInstance()
           .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
@@ -234,117 +542,1309 @@ public class HibernateUserRoleDao extends HibernateDaoSupport implements IUserRo
   }
 
   /**
-   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
-   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
-   * role must be managed manually.
+   * A user that carries a version is written with a single versioned <code>UPDATE</code>, plus the statements for its 
+   * roles, without being read first. Only when no row matches is the table read, to tell a missing user from a 
+   * concurrent update. A user without a version is given the stored one first, so that it overwrites the stored user. 
+   * The caller's user is never attached to the session; only its version is changed, and only if it carries one: it 
+   * is advanced to the version just written, so that the same instance can be updated again.
    */
-  @SuppressWarnings("unchecked")
-  public void updateRole(IRole roleToUpdate) throws NotFoundException, UncategorizedUserRoleDaoException {
-    Assert.notNull(roleToUpdate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(roleToUpdate.getName(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-
-    IRole originalRole = getRole(roleToUpdate.getName());
-
-    // make a copy of originalRole's users since the merge call below will change the users
-    Set<IUser> originalRoleUsers = new HashSet<IUser>(originalRole.getUsers());
+  public void updateUser(IUser userToUpdate) throws NotFoundException, ConcurrentUpdateException,
+      UncategorizedUserRoleDaoException {
+    assertNotNull(userToUpdate, "HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(userToUpdate.getUsername(), "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertNotNull(userToUpdate.getPassword(), "HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL"); //$NON-NLS-1$
 
-    if (originalRole != null) {
-      try {
-        getHibernateTemplate().update(getHibernateTemplate().merge(roleToUpdate));
-      } catch (DataAccessException e) {
-        throw new UncategorizedUserRoleDaoException(Messages.getInstance()
-            .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    Long version = userToUpdate.getVersion();
+    if (version == null) {
+      version = getStoredVersion(USER_VERSION_QUERY, userToUpdate.getUsername());
+      if (version == null) {
+        throw new NotFoundException(userToUpdate.getUsername());
       }
-    } else {
-      throw new NotFoundException(roleToUpdate.getName());
     }
+    Long newVersion = updateVersioned(userToUpdate, version, userToUpdate.getUsername(), USER_VERSION_QUERY);
+    if (userToUpdate.getVersion() != null) {
+      userToUpdate.setVersion(newVersion);
+    }
+    recordChanges(Collections.singleton(userToUpdate.getUsername()), NO_NAMES);
+  }
 
-    // manually manage users set
+  /**
+   * A single <code>UPDATE</code> of the <code>ENABLED</code> column that also advances the version, so that copies 
+   * loaded earlier conflict when written back. Only the user's own entry is evicted from the second-level cache; its 
+   * roles are neither loaded nor touched.
+   */
+  public void setUserEnabled(String username, boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
-    // use relative complement (aka set-theoretic difference, aka subtraction) to get the users to add and users to 
-    // remove
-    Set<IUser> usersToAdd = new HashSet<IUser>(CollectionUtils.subtract(roleToUpdate.getUsers(),
-        originalRoleUsers));
-    Set<IUser> usersToRemove = new HashSet<IUser>(CollectionUtils.subtract(originalRoleUsers,
-        roleToUpdate.getUsers()));
+    updateColumn(UPDATE_USER_ENABLED_SQL, Boolean.valueOf(enabled), CustomUser.class, username);
+    recordChanges(Collections.singleton(username), NO_NAMES);
+  }
 
-    for (IUser user : usersToAdd) {
-      addUser(roleToUpdate, user.getUsername());
+  /**
+   * Per chunk of usernames, one query for the users that exist and one <code>UPDATE</code> for all of them. See 
+   * {@link #setUserEnabled(String, boolean)}.
+   */
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    assertNotNull(usernames, "HibernateUserRoleDao.ERROR_0009_USERS_CANNOT_BE_NULL"); //$NON-NLS-1$
+    for (String username : usernames) {
+      assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
     }
 
-    for (IUser user : usersToRemove) {
-      removeUser(roleToUpdate, user.getUsername());
-    }
+    BatchResult batchResult = executeBatch(new HibernateCallback<BatchResult>() {
+      public BatchResult doInHibernate(Session session) throws HibernateException {
+        session.flush();
+        BatchResult result = new BatchResult();
+        for (List<String> chunk : Partitions.partition(new LinkedHashSet<String>(usernames), MAX_IN_LIST_SIZE)) {
+          final Set<String> existing = getExistingUsernames(session, chunk);
+          for (String username : chunk) {
+            result.add(username, existing.contains(username) ? BatchResult.Outcome.UPDATED
+                : BatchResult.Outcome.NOT_FOUND);
+          }
+          if (!existing.isEmpty()) {
+            session.doWork(new Work() {
+              public void execute(Connection connection) throws SQLException {
+                StringBuilder sql = new StringBuilder(UPDATE_USERS_ENABLED_SQL).append('(');
+                for (int i = 0; i < existing.size(); i++) {
+                  sql.append(i == 0 ? "?" : ", ?"); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                PreparedStatement update = connection.prepareStatement(sql.append(')').toString());
+                try {
+                  int index = 1;
+                  update.setBoolean(index++, enabled);
+                  for (String username : existing) {
+                    update.setString(index++, username);
+                  }
+                  update.executeUpdate();
+                } finally {
+                  update.close();
+                }
+              }
+            });
+            for (String username : existing) {
+              evictFromSession(session, CustomUser.class, username);
+              getSessionFactory().getCache().evictEntity(CustomUser.class, username);
+            }
+          }
+        }
+        return result;
+      }
+    });
+    recordChanges(batchResult.getIds(BatchResult.Outcome.UPDATED), NO_NAMES);
+    return batchResult;
+  }
+
+  /**
+   * Replaces the stored password with a single <code>UPDATE</code>, as in {@link #setUserEnabled(String, boolean)}. 
+   * The password must already be encoded.
+   */
+  public void changePassword(String username, String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertNotNull(password, "HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL"); //$NON-NLS-1$
 
+    updateColumn(UPDATE_USER_PASSWORD_SQL, password, CustomUser.class, username);
+    recordChanges(Collections.singleton(username), NO_NAMES);
   }
 
   /**
-   * This method is necessary because this is the inverse end of a bidirectional many-to-many relationship. See 
-   * Hibernate documentation section 6.3.2. Bidirectional associations.
+   * A single <code>UPDATE</code>, as in {@link #setUserEnabled(String, boolean)}.
    */
-  protected void addUser(IRole roleToUpdate, String username) throws NotFoundException,
+  public void setUserDescription(String username, String description) throws NotFoundException,
       UncategorizedUserRoleDaoException {
-    Assert.notNull(roleToUpdate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(roleToUpdate.getName(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    Assert.hasLength(username, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
-    IUser user = getUser(username);
-    if (user != null) {
-      user.addRole(roleToUpdate);
-      updateUser(user);
-    } else {
-      throw new NotFoundException(username);
-    }
+    updateColumn(UPDATE_USER_DESCRIPTION_SQL, description, CustomUser.class, username);
+    recordChanges(Collections.singleton(username), NO_NAMES);
   }
 
   /**
-   * This method is necessary because this is the inverse end of a bidirectional many-to-many relationship. See 
-   * Hibernate documentation section 6.3.2. Bidirectional associations.
+   * A single <code>UPDATE</code> of the role, without loading or touching its members.
    */
-  protected void removeUser(IRole roleToUpdate, String username) throws NotFoundException,
+  public void setRoleDescription(String roleName, String description) throws NotFoundException,
       UncategorizedUserRoleDaoException {
-    Assert.notNull(roleToUpdate, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL")); //$NON-NLS-1$
-    Assert.hasLength(roleToUpdate.getName(), Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    Assert.hasLength(username, Messages.getInstance().getString("HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK")); //$NON-NLS-1$
+    assertHasLength(roleName, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
 
-    IUser user = getUser(username);
-    if (user != null) {
-      user.removeRole(roleToUpdate);
-      updateUser(user);
-    } else {
-      throw new NotFoundException(username);
+    updateColumn(UPDATE_ROLE_DESCRIPTION_SQL, description, CustomRole.class, roleName);
+    recordChanges(NO_NAMES, Collections.singleton(roleName));
+  }
+
+  /**
+   * Saves the users that do not exist yet. Existence is checked with one <code>IN (...)</code> query per batch; the 
+   * session is flushed and cleared after each batch so that memory use stays flat. Statements within a flush are only 
+   * sent as JDBC batches if <code>hibernate.jdbc.batch_size</code> is configured, ideally to {@link #getBatchSize()}.
+   */
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    assertNotNull(newUsers, "HibernateUserRoleDao.ERROR_0009_USERS_CANNOT_BE_NULL"); //$NON-NLS-1$
+    for (IUser user : newUsers) {
+      assertValidUser(user);
     }
+
+    BatchResult batchResult = executeBatch(new HibernateCallback<BatchResult>() {
+      public BatchResult doInHibernate(Session session) throws HibernateException {
+        BatchResult result = new BatchResult();
+        for (List<IUser> chunk : Partitions.partition(newUsers, batchSize)) {
+          Set<String> existing = getExistingUsernames(session, getUsernames(chunk));
+          for (IUser user : chunk) {
+            if (existing.contains(user.getUsername())) {
+              result.add(user.getUsername(), BatchResult.Outcome.ALREADY_EXISTS);
+            } else if (result.add(user.getUsername(), BatchResult.Outcome.CREATED)) {
+              session.save(toPersistentUser(session, user, null));
+            }
+          }
+          session.flush();
+          session.clear();
+        }
+        return result;
+      }
+    });
+    recordChanges(batchResult.getIds(BatchResult.Outcome.CREATED), NO_NAMES);
+    return batchResult;
   }
 
-  public void setAllUsersQuery(String allUsersQuery) {
-    Assert.hasLength(allUsersQuery, Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0007_ALL_USERS_QUERY_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    this.allUsersQuery = allUsersQuery;
+  /**
+   * Updates the users that exist, including their role assignments. Batching as in {@link #createUsers(Collection)}. 
+   * The stored versions are read together with the existence check; a user without a version is given the stored 
+   * one, and a user whose version differs is skipped as a conflict.
+   * 
+   * @throws ConcurrentUpdateException if a user is updated concurrently between the check and the write
+   */
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    assertNotNull(users, "HibernateUserRoleDao.ERROR_0009_USERS_CANNOT_BE_NULL"); //$NON-NLS-1$
+    for (IUser user : users) {
+      assertValidUser(user);
+    }
+
+    BatchResult batchResult = executeBatch(new HibernateCallback<BatchResult>() {
+      public BatchResult doInHibernate(Session session) throws HibernateException {
+        BatchResult result = new BatchResult();
+        for (List<IUser> chunk : Partitions.partition(users, batchSize)) {
+          Map<String, Long> versions = getStoredVersions(session, getUsernames(chunk));
+          for (IUser user : chunk) {
+            Long version = versions.get(user.getUsername());
+            if (version == null) {
+              result.add(user.getUsername(), BatchResult.Outcome.NOT_FOUND);
+            } else if (user.getVersion() != null && !user.getVersion().equals(version)) {
+              result.add(user.getUsername(), BatchResult.Outcome.CONFLICT);
+            } else if (result.add(user.getUsername(), BatchResult.Outcome.UPDATED)) {
+              // only scalars were loaded above, so the session holds no instance with this identifier
+              session.update(toPersistentUser(session, user, version));
+            }
+          }
+          session.flush();
+          session.clear();
+          evictUsers(versions.keySet());
+        }
+        return result;
+      }
+    });
+    recordChanges(batchResult.getIds(BatchResult.Outcome.UPDATED), NO_NAMES);
+    return batchResult;
   }
 
-  public String getAllUsersQuery() {
-    return allUsersQuery;
+  /**
+   * Deletes the users that exist with two set-based statements per batch: one for their role assignments and one for 
+   * the users themselves. Both are SQL statements synchronized only with the role assignments, so that Hibernate does 
+   * not evict the whole user region; the deleted users are evicted one by one, together with the cached all users 
+   * query results.
+   */
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    assertNotNull(users, "HibernateUserRoleDao.ERROR_0009_USERS_CANNOT_BE_NULL"); //$NON-NLS-1$
+    for (IUser user : users) {
+      assertNotNull(user, "HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL"); //$NON-NLS-1$
+      assertHasLength(user.getUsername(), "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    }
+
+    BatchResult batchResult = executeBatch(new HibernateCallback<BatchResult>() {
+      public BatchResult doInHibernate(Session session) throws HibernateException {
+        BatchResult result = new BatchResult();
+        for (List<IUser> chunk : Partitions.partition(users, batchSize)) {
+          Set<String> existing = getExistingUsernames(session, getUsernames(chunk));
+          for (IUser user : chunk) {
+            result.add(user.getUsername(), existing.contains(user.getUsername()) ? BatchResult.Outcome.DELETED
+                : BatchResult.Outcome.NOT_FOUND);
+          }
+          if (!existing.isEmpty()) {
+            session.createSQLQuery(DELETE_USERS_ROLES_SQL)
+                .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+                .setParameterList("usernames", existing) //$NON-NLS-1$
+                .executeUpdate();
+            session.createSQLQuery(DELETE_USERS_SQL)
+                .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+                .setParameterList("usernames", existing) //$NON-NLS-1$
+                .executeUpdate();
+            for (String username : existing) {
+              evictFromSession(session, CustomUser.class, username);
+            }
+            evictUsers(existing);
+            getSessionFactory().getCache().evictQueryRegion(ALL_USERS_QUERY_CACHE_REGION);
+          }
+        }
+        return result;
+      }
+    });
+    recordChanges(batchResult.getIds(BatchResult.Outcome.DELETED), NO_NAMES);
+    return batchResult;
   }
 
-  public void setAllRolesQuery(String allRolesQuery) {
-    Assert.hasLength(allUsersQuery, Messages.getInstance()
-        .getString("HibernateUserRoleDao.ERROR_0008_ALL_ROLES_QUERY_CANNOT_BE_BLANK")); //$NON-NLS-1$
-    this.allRolesQuery = allRolesQuery;
+  /**
+   * A range scan of the index on <code>USERS.USERNAME_LOWER</code>: a <code>like</code> pattern without a leading 
+   * wildcard is bounded by the prefix, and the index also provides the order, so the database stops after 
+   * <code>limit</code> rows. Only the summary columns are selected.
+   */
+  @SuppressWarnings("unchecked")
+  public List<UserSummary> findUsers(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    assertNotNull(prefix, "HibernateUserRoleDao.ERROR_0016_PREFIX_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertTrue(limit > 0, "HibernateUserRoleDao.ERROR_0012_LIMIT_MUST_BE_POSITIVE"); //$NON-NLS-1$
+
+    try {
+      return (List<UserSummary>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          return session.createQuery(FIND_USERS_QUERY)
+              .setParameter("pattern", SearchKeys.prefixPattern(prefix)) //$NON-NLS-1$
+              .setMaxResults(limit)
+              .list();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
   }
 
-  public String getAllRolesQuery() {
-    return allRolesQuery;
+  /**
+   * A range scan of the index on <code>AUTHORITIES.AUTHORITY_LOWER</code>. See {@link #findUsers(String, int)}.
+   */
+  @SuppressWarnings("unchecked")
+  public List<IRole> findRoles(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    assertNotNull(prefix, "HibernateUserRoleDao.ERROR_0016_PREFIX_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertTrue(limit > 0, "HibernateUserRoleDao.ERROR_0012_LIMIT_MUST_BE_POSITIVE"); //$NON-NLS-1$
+
+    try {
+      return (List<IRole>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return session.createQuery(FIND_ROLES_QUERY)
+              .setParameter("pattern", SearchKeys.prefixPattern(prefix)) //$NON-NLS-1$
+              .setMaxResults(limit)
+              .list();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
   }
 
-  public void setInitHandler(InitHandler initHandler) {
-    this.initHandler = initHandler;
+  /**
+   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
+   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
+   * role must be managed manually.
+   * 
+   * @throws NotFoundException if a user to which the role is assigned does not exist, in which case the role is not 
+   *           created
+   */
+  public void createRole(IRole roleToCreate) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    assertNotNull(roleToCreate, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(roleToCreate.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    Set<String> members = getUsernames(roleToCreate.getUsers());
+    if (getRole(roleToCreate.getName()) == null) {
+      assertUsersExist(members);
+      try {
+        getHibernateTemplate().save(toPersistentRole(roleToCreate, null));
+      } catch (DataAccessException e) {
+        throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+            .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+      }
+    } else {
+      throw new AlreadyExistsException(roleToCreate.getName());
+    }
+    recordChanges(NO_NAMES, Collections.singleton(roleToCreate.getName()));
+
+    // manually manage users set
+
+    addUsers(roleToCreate, members);
+  }
+
+  /**
+   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
+   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
+   * role must be managed manually.
+   * 
+   * <p>The role is loaded by its identifier and its memberships are removed with one set-based <code>DELETE</code>; 
+   * the role itself is then deleted as an entity, which invalidates only its own cache entry. The members are never 
+   * read: the cached role collections of users are evicted as a whole, and a single change of the role is recorded, 
+   * for listeners of a {@link UserRoleChangePoller} to drop or reload the users holding it. The number of statements 
+   * does not depend on the number of members.</p>
+   */
+  public void deleteRole(IRole roleToDelete) throws NotFoundException, UncategorizedUserRoleDaoException {
+    assertNotNull(roleToDelete, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(roleToDelete.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    final String name = roleToDelete.getName();
+    boolean deleted;
+    try {
+      deleted = getHibernateTemplate().execute(new HibernateCallback<Boolean>() {
+        public Boolean doInHibernate(Session session) throws HibernateException {
+          Object role = session.get(CustomRole.class, name);
+          if (role == null) {
+            return Boolean.FALSE;
+          }
+          session.createSQLQuery(DELETE_ROLE_MEMBERSHIPS_SQL)
+              .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+              .setParameter("role", name) //$NON-NLS-1$
+              .executeUpdate();
+          session.delete(role);
+          session.flush();
+          return Boolean.TRUE;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    if (!deleted) {
+      // without the role there were no memberships either, so nothing has changed
+      throw new NotFoundException(name);
+    }
+    // which users held the role is not known, so every cached role collection goes; the users themselves stay cached
+    getSessionFactory().getCache().evictCollectionRegion(ROLES_COLLECTION);
+    recordChanges(NO_NAMES, Collections.singleton(name));
+  }
+
+  /**
+   * Saves the roles that do not exist yet and assigns them to their users. Batching as in 
+   * {@link #createUsers(Collection)}.
+   * 
+   * @throws NotFoundException if a user to which one of the roles is assigned does not exist, in which case no role 
+   *           is created
+   */
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertNotNull(newRoles, "HibernateUserRoleDao.ERROR_0010_ROLES_CANNOT_BE_NULL"); //$NON-NLS-1$
+    Set<String> members = new HashSet<String>();
+    for (IRole role : newRoles) {
+      assertNotNull(role, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+      assertHasLength(role.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+      members.addAll(getUsernames(role.getUsers()));
+    }
+    assertUsersExist(members);
+
+    final List<IRole> created = new ArrayList<IRole>();
+    BatchResult batchResult = executeBatch(new HibernateCallback<BatchResult>() {
+      public BatchResult doInHibernate(Session session) throws HibernateException {
+        BatchResult result = new BatchResult();
+        for (List<IRole> chunk : Partitions.partition(newRoles, batchSize)) {
+          List<String> names = new ArrayList<String>(chunk.size());
+          for (IRole role : chunk) {
+            names.add(role.getName());
+          }
+          @SuppressWarnings("unchecked")
+          List<String> existing = session.createQuery(EXISTING_ROLE_NAMES_QUERY)
+              .setParameterList("names", names) //$NON-NLS-1$
+              .list();
+          for (IRole role : chunk) {
+            if (existing.contains(role.getName())) {
+              result.add(role.getName(), BatchResult.Outcome.ALREADY_EXISTS);
+            } else if (result.add(role.getName(), BatchResult.Outcome.CREATED)) {
+              session.save(toPersistentRole(role, null));
+              created.add(role);
+            }
+          }
+          session.flush();
+          session.clear();
+        }
+        return result;
+      }
+    });
+
+    recordChanges(NO_NAMES, batchResult.getIds(BatchResult.Outcome.CREATED));
+
+    // manually manage users set
+
+    for (IRole role : created) {
+      addUsers(role, getUsernames(role.getUsers()));
+    }
+    return batchResult;
+  }
+
+  public IRole getRole(final String name) throws UncategorizedUserRoleDaoException {
+    assertHasLength(name, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    try {
+      return getHibernateTemplate().execute(new HibernateCallback<IRole>() {
+        public IRole doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return (CustomRole) session.get(CustomRole.class, name);
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<IRole> getRoles() throws UncategorizedUserRoleDaoException {
+    try {
+      return (List<IRole>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return session.createQuery(getAllRolesQuery()).setCacheable(isQueryCacheInEffect())
+              .setCacheRegion(ALL_ROLES_QUERY_CACHE_REGION).list();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Keyset pagination on the primary key. See {@link #getUsers(String, int)}.
+   */
+  @SuppressWarnings("unchecked")
+  public List<IRole> getRoles(final String afterName, final int limit) throws UncategorizedUserRoleDaoException {
+    assertTrue(limit > 0, "HibernateUserRoleDao.ERROR_0012_LIMIT_MUST_BE_POSITIVE"); //$NON-NLS-1$
+
+    try {
+      return (List<IRole>) getHibernateTemplate().execute(new HibernateCallback<List<?>>() {
+        public List<?> doInHibernate(Session session) throws HibernateException {
+          prepareForRead(session);
+          return createPageQuery(session, ROLES_PAGE_QUERY, FIRST_ROLES_PAGE_QUERY, afterName, limit).list();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Keyset pagination over the index on <code>GRANTED_AUTHORITIES (AUTHORITY, USERNAME)</code>, joined to 
+   * <code>USERS</code> by primary key for the summary columns. Only scalars are selected, so nothing is added to the 
+   * session.
+   */
+  public List<UserSummary> getUsersInRole(final String roleName, final String afterUsername, final int limit)
+      throws UncategorizedUserRoleDaoException {
+    assertHasLength(roleName, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertTrue(limit > 0, "HibernateUserRoleDao.ERROR_0012_LIMIT_MUST_BE_POSITIVE"); //$NON-NLS-1$
+
+    try {
+      return getHibernateTemplate().execute(new HibernateCallback<List<UserSummary>>() {
+        public List<UserSummary> doInHibernate(Session session) throws HibernateException {
+          SQLQuery query = session.createSQLQuery(afterUsername == null ? FIRST_ROLE_MEMBERS_PAGE_SQL
+              : ROLE_MEMBERS_PAGE_SQL);
+          query.addScalar("USERNAME", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("DESCRIPTION", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("ENABLED", StandardBasicTypes.BOOLEAN) //$NON-NLS-1$
+              .setParameter("role", roleName) //$NON-NLS-1$
+              .setMaxResults(limit);
+          if (afterUsername != null) {
+            query.setParameter("after", afterUsername); //$NON-NLS-1$
+          }
+          @SuppressWarnings("unchecked")
+          List<Object[]> rows = query.list();
+          List<UserSummary> members = new ArrayList<UserSummary>(rows.size());
+          for (Object[] row : rows) {
+            members.add(new UserSummary((String) row[0], (String) row[1], ((Boolean) row[2]).booleanValue()));
+          }
+          return members;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Counted from the index on <code>GRANTED_AUTHORITIES (AUTHORITY, USERNAME)</code> alone.
+   */
+  public long countUsersInRole(final String roleName) throws UncategorizedUserRoleDaoException {
+    assertHasLength(roleName, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    try {
+      Number count = getHibernateTemplate().execute(new HibernateCallback<Number>() {
+        public Number doInHibernate(Session session) throws HibernateException {
+          return (Number) session.createSQLQuery(COUNT_ROLE_MEMBERS_SQL)
+              .setParameter("role", roleName) //$NON-NLS-1$
+              .uniqueResult();
+        }
+      });
+      return count.longValue();
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * This method is more complex because this is the inverse end of a bidirectional many-to-many relationship. See 
+   * Hibernate documentation section 6.3.2. Bidirectional associations. Basically, this means that the users set of this
+   * role must be managed manually.
+   * 
+   * <p>The role's users that are not members yet, according to the rows actually present in 
+   * <code>GRANTED_AUTHORITIES</code>, are added with set-based inserts, so the number of statements does not depend on 
+   * the number of users added. No member is removed; see {@link #setRoleMembers(String, Collection)}.</p>
+   * 
+   * <p>Versions are handled as in {@link #updateUser(IUser)}.</p>
+   */
+  public void updateRole(IRole roleToUpdate) throws NotFoundException, ConcurrentUpdateException,
+      UncategorizedUserRoleDaoException {
+    assertNotNull(roleToUpdate, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(roleToUpdate.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    Long version = roleToUpdate.getVersion();
+    if (version == null) {
+      version = getStoredVersion(ROLE_VERSION_QUERY, roleToUpdate.getName());
+      if (version == null) {
+        throw new NotFoundException(roleToUpdate.getName());
+      }
+    }
+    // the role row is updated even if only its members change, so concurrent membership edits conflict too
+    Long newVersion = updateVersioned(roleToUpdate, version, roleToUpdate.getName(), ROLE_VERSION_QUERY);
+    if (roleToUpdate.getVersion() != null) {
+      roleToUpdate.setVersion(newVersion);
+    }
+    recordChanges(NO_NAMES, Collections.singleton(roleToUpdate.getName()));
+
+    // manually manage users set; the users set is not mapped, so a loaded role has none and members are only ever 
+    // added here
+
+    Set<String> usersToAdd = getUsernames(roleToUpdate.getUsers());
+    usersToAdd.removeAll(getRoleMembers(roleToUpdate.getName()));
+    addUsers(roleToUpdate, usersToAdd);
+  }
+
+  /**
+   * The given users are checked to exist and compared with the members stored in <code>GRANTED_AUTHORITIES</code>; 
+   * only the difference is inserted and deleted, with set-based statements. The role row is not updated.
+   */
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertHasLength(roleName, "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertNotNull(usernames, "HibernateUserRoleDao.ERROR_0009_USERS_CANNOT_BE_NULL"); //$NON-NLS-1$
+    for (String username : usernames) {
+      assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    }
+
+    if (getStoredVersion(ROLE_VERSION_QUERY, roleName) == null) {
+      throw new NotFoundException(roleName);
+    }
+    Set<String> newMembers = new HashSet<String>(usernames);
+    assertUsersExist(newMembers);
+
+    // use relative complement (aka set-theoretic difference, aka subtraction) to get the users to add and users to 
+    // remove
+    List<String> originalMembers = getRoleMembers(roleName);
+    Set<String> usersToAdd = new HashSet<String>(newMembers);
+    usersToAdd.removeAll(originalMembers);
+    Set<String> usersToRemove = new HashSet<String>(originalMembers);
+    usersToRemove.removeAll(newMembers);
+
+    IRole role = new CustomRole(roleName);
+    addUsers(role, usersToAdd);
+    removeUsers(role, usersToRemove);
+    if (!usersToAdd.isEmpty() || !usersToRemove.isEmpty()) {
+      recordChanges(NO_NAMES, Collections.singleton(roleName));
+    }
+  }
+
+  /**
+   * This method is necessary because this is the inverse end of a bidirectional many-to-many relationship. See 
+   * Hibernate documentation section 6.3.2. Bidirectional associations.
+   */
+  protected void addUser(IRole roleToUpdate, String username) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertNotNull(roleToUpdate, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(roleToUpdate.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    addUsers(roleToUpdate, Collections.singleton(username));
+  }
+
+  /**
+   * This method is necessary because this is the inverse end of a bidirectional many-to-many relationship. See 
+   * Hibernate documentation section 6.3.2. Bidirectional associations.
+   * 
+   * <p>One <code>DELETE</code> of the membership; only when it removes nothing is the user's existence checked. The 
+   * user itself is never loaded, and only its own cache entries are evicted.</p>
+   */
+  protected void removeUser(final IRole roleToUpdate, final String username) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    assertNotNull(roleToUpdate, "HibernateUserRoleDao.ERROR_0005_ROLE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(roleToUpdate.getName(), "HibernateUserRoleDao.ERROR_0006_ROLE_NAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertHasLength(username, "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+
+    final Set<String> usernames = Collections.singleton(username);
+    int deleted;
+    try {
+      deleted = getHibernateTemplate().execute(new HibernateCallback<Integer>() {
+        public Integer doInHibernate(Session session) throws HibernateException {
+          int removed = session.createSQLQuery(DELETE_ROLE_MEMBERS_SQL)
+              .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+              .setParameter("role", roleToUpdate.getName()) //$NON-NLS-1$
+              .setParameterList("usernames", usernames) //$NON-NLS-1$
+              .executeUpdate();
+          if (removed == 0 && getExistingUsernames(session, usernames).isEmpty()) {
+            // a user without the role is fine; a missing user is not
+            throw new NotFoundException(username);
+          }
+          return removed;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    if (deleted > 0) {
+      evictUsers(usernames);
+      recordChanges(usernames, NO_NAMES);
+    }
+  }
+
+  /**
+   * Grants the role to all given users with one <code>INSERT ... SELECT</code> per chunk of usernames. Users that 
+   * already have the role are skipped.
+   * 
+   * @throws NotFoundException if any of the users does not exist
+   */
+  protected void addUsers(final IRole role, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    if (usernames.isEmpty()) {
+      return;
+    }
+    try {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          // the statement reads USERS and AUTHORITIES, which must hold the users and roles saved earlier in the
+          // session; synchronizing it with their entities instead would evict both regions from the second-level cache
+          session.flush();
+          for (List<String> chunk : Partitions.partition(usernames, MAX_IN_LIST_SIZE)) {
+            int inserted = session.createSQLQuery(INSERT_ROLE_MEMBERS_SQL)
+                .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+                .setParameter("role", role.getName()) //$NON-NLS-1$
+                .setParameterList("usernames", chunk) //$NON-NLS-1$
+                .executeUpdate();
+            if (inserted < chunk.size()) {
+              // either some users already had the role or some users do not exist
+              @SuppressWarnings("unchecked")
+              List<String> existing = session.createQuery(EXISTING_USERNAMES_QUERY)
+                  .setParameterList("usernames", chunk) //$NON-NLS-1$
+                  .list();
+              for (String username : chunk) {
+                if (!existing.contains(username)) {
+                  throw new NotFoundException(username);
+                }
+              }
+            }
+          }
+          return null;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    evictUsers(usernames);
+    recordChanges(usernames, NO_NAMES);
+  }
+
+  /**
+   * Checks that all given users exist with one query per chunk of usernames, so that a write can fail before it has 
+   * inserted anything.
+   * 
+   * @throws NotFoundException if any of the users does not exist
+   */
+  private void assertUsersExist(final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    if (usernames.isEmpty()) {
+      return;
+    }
+    try {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          for (List<String> chunk : Partitions.partition(usernames, MAX_IN_LIST_SIZE)) {
+            Set<String> existing = getExistingUsernames(session, chunk);
+            for (String username : chunk) {
+              if (!existing.contains(username)) {
+                throw new NotFoundException(username);
+              }
+            }
+          }
+          return null;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Revokes the role from all given users with one <code>DELETE</code> per chunk of usernames.
+   */
+  protected void removeUsers(final IRole role, final Collection<String> usernames)
+      throws UncategorizedUserRoleDaoException {
+    if (usernames.isEmpty()) {
+      return;
+    }
+    try {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          for (List<String> chunk : Partitions.partition(usernames, MAX_IN_LIST_SIZE)) {
+            session.createSQLQuery(DELETE_ROLE_MEMBERS_SQL)
+                .addSynchronizedEntityClass(CustomUserRoleMapping.class)
+                .setParameter("role", role.getName()) //$NON-NLS-1$
+                .setParameterList("usernames", chunk) //$NON-NLS-1$
+                .executeUpdate();
+          }
+          return null;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    evictUsers(usernames);
+    recordChanges(usernames, NO_NAMES);
+  }
+
+  /**
+   * @return the usernames of the members of the given role as stored in <code>GRANTED_AUTHORITIES</code>
+   */
+  @SuppressWarnings("unchecked")
+  protected List<String> getRoleMembers(String name) throws UncategorizedUserRoleDaoException {
+    try {
+      return (List<String>) getHibernateTemplate().findByNamedParam(ROLE_MEMBERS_QUERY, "role", name); //$NON-NLS-1$
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Removes the given users, including their role collections, from the second-level cache.
+   */
+  protected void evictUsers(Collection<String> usernames) {
+    Cache cache = getSessionFactory().getCache();
+    for (String username : usernames) {
+      cache.evictEntity(CustomUser.class, username);
+      cache.evictCollection(ROLES_COLLECTION, username);
+    }
+  }
+
+  /**
+   * If change tracking is enabled, records that the given users and roles changed. Within a transaction, the changes 
+   * of the whole transaction are collected and written just before it commits, so that the generation row is locked 
+   * only briefly and advanced once; outside a transaction they are written immediately.
+   * 
+   * <p>The collected changes are held by a synchronization registered on the current transaction rather than by a 
+   * thread-bound resource: Spring suspends synchronizations along with the transaction, so an inner 
+   * <code>REQUIRES_NEW</code> transaction collects and writes its own changes, and they are not lost if the outer one 
+   * rolls back.</p>
+   */
+  protected void recordChanges(Collection<String> usernames, Collection<String> roleNames) {
+    if (!changeTrackingEnabled || (usernames.isEmpty() && roleNames.isEmpty())) {
+      return;
+    }
+    if (!TransactionSynchronizationManager.isSynchronizationActive()
+        || !TransactionSynchronizationManager.isActualTransactionActive()) {
+      writeChanges(new PendingChanges(usernames, roleNames));
+      return;
+    }
+    PendingChanges pending = getPendingChanges();
+    if (pending == null) {
+      TransactionSynchronizationManager.registerSynchronization(new PendingChanges(usernames, roleNames));
+    } else {
+      pending.usernames.addAll(usernames);
+      pending.roleNames.addAll(roleNames);
+    }
+  }
+
+  /**
+   * @return the changes collected by this DAO in the current transaction, or <code>null</code> if none
+   */
+  private PendingChanges getPendingChanges() {
+    for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+      if (synchronization instanceof PendingChanges && ((PendingChanges) synchronization).isOwnedBy(this)) {
+        return (PendingChanges) synchronization;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Advances the generation, which locks its row until commit, then inserts one change record per key with a JDBC 
+   * batch. Since the lock serializes writers, generations become visible in the order they were assigned.
+   */
+  private void writeChanges(final PendingChanges changes) {
+    try {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+              long generation = nextGeneration(connection);
+              Timestamp now = new Timestamp(System.currentTimeMillis());
+              PreparedStatement insert = connection.prepareStatement(INSERT_CHANGE_SQL);
+              try {
+                addChanges(insert, generation, USER_KEY_TYPE, changes.usernames, now);
+                addChanges(insert, generation, ROLE_KEY_TYPE, changes.roleNames, now);
+                insert.executeBatch();
+              } finally {
+                insert.close();
+              }
+              if (generation % PURGE_INTERVAL_GENERATIONS == 0 && generation > changeRetentionGenerations) {
+                // by generation rather than by time: the clocks of the servers sharing the table may disagree
+                PreparedStatement purge = connection.prepareStatement(PURGE_CHANGES_SQL);
+                try {
+                  purge.setLong(1, generation - changeRetentionGenerations);
+                  purge.executeUpdate();
+                } finally {
+                  purge.close();
+                }
+              }
+            }
+          });
+          return null;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * The generation row is created by the first write. Should two servers race to create it, the loser's transaction 
+   * fails on the primary key.
+   */
+  private static long nextGeneration(Connection connection) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      if (statement.executeUpdate(BUMP_GENERATION_SQL) == 0) {
+        statement.executeUpdate(INSERT_GENERATION_SQL);
+      }
+      ResultSet resultSet = statement.executeQuery(SELECT_GENERATION_SQL);
+      try {
+        resultSet.next();
+        return resultSet.getLong(1);
+      } finally {
+        resultSet.close();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void addChanges(PreparedStatement insert, long generation, String keyType, Set<String> names,
+      Timestamp now) throws SQLException {
+    for (String name : names) {
+      insert.setLong(1, generation);
+      insert.setString(2, keyType);
+      insert.setString(3, name);
+      insert.setTimestamp(4, now);
+      insert.addBatch();
+    }
+  }
+
+  /**
+   * Inside a read-only transaction, loads entities read-only so that Hibernate keeps no snapshot of their state for 
+   * dirty checking. Spring already switches such a session to manual flushing and marks its connection read-only.
+   */
+  private static void prepareForRead(Session session) {
+    if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+      session.setDefaultReadOnly(true);
+    }
+  }
+
+  private static Query createPageQuery(Session session, String pageQuery, String firstPageQuery, String after,
+      int limit) {
+    Query query;
+    if (after == null) {
+      query = session.createQuery(firstPageQuery);
+    } else {
+      query = session.createQuery(pageQuery).setParameter("after", after); //$NON-NLS-1$
+    }
+    return query.setMaxResults(limit);
+  }
+
+  /**
+   * Like <code>Assert.notNull</code>, but the message is only looked up in the resource bundle when the check fails, 
+   * so that the common case costs nothing.
+   */
+  private static void assertNotNull(Object object, String messageKey) {
+    if (object == null) {
+      throw new IllegalArgumentException(Messages.getInstance().getString(messageKey));
+    }
+  }
+
+  /**
+   * Like <code>Assert.hasLength</code>, with the message looked up only on failure.
+   */
+  private static void assertHasLength(String text, String messageKey) {
+    if (text == null || text.length() == 0) {
+      throw new IllegalArgumentException(Messages.getInstance().getString(messageKey));
+    }
+  }
+
+  /**
+   * Like <code>Assert.isTrue</code>, with the message looked up only on failure.
+   */
+  private static void assertTrue(boolean expression, String messageKey) {
+    if (!expression) {
+      throw new IllegalArgumentException(Messages.getInstance().getString(messageKey));
+    }
+  }
+
+  private void assertValidUser(IUser user) {
+    assertNotNull(user, "HibernateUserRoleDao.ERROR_0001_USER_CANNOT_BE_NULL"); //$NON-NLS-1$
+    assertHasLength(user.getUsername(), "HibernateUserRoleDao.ERROR_0002_USERNAME_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    assertNotNull(user.getPassword(), "HibernateUserRoleDao.ERROR_0003_PASSWORD_CANNOT_BE_NULL"); //$NON-NLS-1$
+  }
+
+  private BatchResult executeBatch(HibernateCallback<BatchResult> callback) throws UncategorizedUserRoleDaoException {
+    try {
+      return getHibernateTemplate().execute(callback);
+    } catch (OptimisticLockingFailureException e) {
+      throw new ConcurrentUpdateException(e.getMessage(), e);
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Runs an <code>UPDATE</code> of one column of one row through JDBC, rather than as a Hibernate bulk update, since 
+   * Hibernate would evict the whole entity region from the second-level cache; only the row's entry is evicted here. 
+   * The session is flushed first, and its instance of the row, if any, evicted afterwards, so that the session neither 
+   * overwrites nor hides the change.
+   * 
+   * @throws NotFoundException if no row has the given key
+   */
+  private void updateColumn(final String sql, final Object value, final Class<?> entityClass, final String key)
+      throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          session.flush();
+          final int[] updated = new int[1];
+          session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+              PreparedStatement update = connection.prepareStatement(sql);
+              try {
+                if (value instanceof Boolean) {
+                  update.setBoolean(1, ((Boolean) value).booleanValue());
+                } else if (value == null) {
+                  update.setNull(1, Types.VARCHAR);
+                } else {
+                  update.setString(1, (String) value);
+                }
+                update.setString(2, key);
+                updated[0] = update.executeUpdate();
+              } finally {
+                update.close();
+              }
+            }
+          });
+          if (updated[0] == 0) {
+            throw new NotFoundException(key);
+          }
+          evictFromSession(session, entityClass, key);
+          return null;
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    getSessionFactory().getCache().evictEntity(entityClass, key);
+  }
+
+  /**
+   * Detaches the session's instance with the given identifier, if the session holds one, without loading it.
+   */
+  private static void evictFromSession(Session session, Class<?> entityClass, Serializable id) {
+    SessionImplementor sessionImplementor = (SessionImplementor) session;
+    EntityPersister persister = sessionImplementor.getFactory().getEntityPersister(entityClass.getName());
+    Object entity = sessionImplementor.getPersistenceContext().getEntity(new EntityKey(id, persister,
+        EntityMode.POJO));
+    if (entity != null) {
+      session.evict(entity);
+    }
+  }
+
+  /**
+   * @return the stored version by username, for the users that exist
+   */
+  private static Map<String, Long> getStoredVersions(Session session, Collection<String> usernames) {
+    @SuppressWarnings("unchecked")
+    List<Object[]> rows = session.createQuery(USER_VERSIONS_QUERY)
+        .setParameterList("usernames", usernames) //$NON-NLS-1$
+        .list();
+    Map<String, Long> versions = new HashMap<String, Long>();
+    for (Object[] row : rows) {
+      versions.put((String) row[0], (Long) row[1]);
+    }
+    return versions;
+  }
+
+  /**
+   * @return the stored version of the user or role, or <code>null</code> if it does not exist
+   */
+  private Long getStoredVersion(final String versionQuery, final String key) throws UncategorizedUserRoleDaoException {
+    try {
+      return getHibernateTemplate().execute(new HibernateCallback<Long>() {
+        public Long doInHibernate(Session session) throws HibernateException {
+          return (Long) session.createQuery(versionQuery)
+              .setParameter("key", key) //$NON-NLS-1$
+              .uniqueResult();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Attaches a copy of the user or role with the given version and flushes, so that the versioned <code>UPDATE</code> 
+   * runs now. If the session already holds an instance with the same identifier (inside a unit of work), the state is 
+   * merged onto it instead, which checks the version in memory. If the update fails, the instance that failed is 
+   * evicted, so that the rest of a unit of work does not flush it again.
+   * 
+   * @return the version written
+   */
+  private Long updateVersioned(final Object entity, final Long version, final String key, final String versionQuery)
+      throws NotFoundException, ConcurrentUpdateException, UncategorizedUserRoleDaoException {
+    try {
+      return getHibernateTemplate().execute(new HibernateCallback<Long>() {
+        public Long doInHibernate(Session session) throws HibernateException {
+          Object copy = entity instanceof IUser ? toPersistentUser(session, (IUser) entity, version)
+              : toPersistentRole((IRole) entity, version);
+          Object persistent = copy;
+          try {
+            try {
+              session.update(copy);
+            } catch (NonUniqueObjectException e) {
+              persistent = session.merge(copy);
+            }
+            session.flush();
+          } catch (StaleStateException e) {
+            // no row matched: either it is gone or its version moved on; the failed flush must not be repeated, so 
+            // the instance that failed is detached before anything else can flush the session
+            session.evict(persistent);
+            Object stored = session.createQuery(versionQuery)
+                .setParameter("key", key) //$NON-NLS-1$
+                .setFlushMode(FlushMode.MANUAL)
+                .uniqueResult();
+            if (stored == null) {
+              throw new NotFoundException(key);
+            }
+            throw new ConcurrentUpdateException(key);
+          }
+          return persistent instanceof IUser ? ((IUser) persistent).getVersion() : ((IRole) persistent).getVersion();
+        }
+      });
+    } catch (DataAccessException e) {
+      throw new UncategorizedUserRoleDaoException(Messages.getInstance()
+          .getString("HibernateUserRoleDao.ERROR_0004_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * @return a copy of the user for Hibernate to write, with the given version. Its roles are the instances held by 
+   *         the session, read through the second-level cache: a role the caller built itself, e.g. 
+   *         <code>new CustomRole("Admin")</code>, has no version, so Hibernate would take it for a new role. A role 
+   *         that does not exist is kept as given, so that the write fails.
+   */
+  private static CustomUser toPersistentUser(final Session session, final IUser user, final Long version) {
+    CustomUser copy = new CustomUser(user.getUsername(), user.getPassword(), user.getDescription(), user.isEnabled());
+    copy.setVersion(version);
+    for (IRole role : user.getRoles()) {
+      IRole persistentRole = (IRole) session.get(CustomRole.class, role.getName());
+      copy.addRole(persistentRole != null ? persistentRole : role);
+    }
+    return copy;
+  }
+
+  /**
+   * @return a copy of the role for Hibernate to write, with the given version; its users are not mapped
+   */
+  private static CustomRole toPersistentRole(final IRole role, final Long version) {
+    CustomRole copy = new CustomRole(role.getName(), role.getDescription());
+    copy.setVersion(version);
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<String> getExistingUsernames(Session session, Collection<String> usernames) {
+    return new HashSet<String>(session.createQuery(EXISTING_USERNAMES_QUERY)
+        .setParameterList("usernames", usernames) //$NON-NLS-1$
+        .list());
+  }
+
+  private static Set<String> getUsernames(Collection<? extends IUser> users) {
+    Set<String> usernames = new HashSet<String>();
+    for (IUser user : users) {
+      usernames.add(user.getUsername());
+    }
+    return usernames;
+  }
+
+  /**
+   * Simply runs the callback against this DAO. Every operation uses the session bound to the current transaction, if 
+   * any, so run this through a {@link UserRoleDaoTransactionDecorator} to get a single transaction.
+   */
+  public <T> T execute(IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    assertNotNull(callback, "HibernateUserRoleDao.ERROR_0015_CALLBACK_CANNOT_BE_NULL"); //$NON-NLS-1$
+
+    return callback.doInUserRoleDao(this);
+  }
+
+  public void setAllUsersQuery(String allUsersQuery) {
+    assertHasLength(allUsersQuery, "HibernateUserRoleDao.ERROR_0007_ALL_USERS_QUERY_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    this.allUsersQuery = allUsersQuery;
+  }
+
+  public String getAllUsersQuery() {
+    return allUsersQuery;
+  }
+
+  public void setAllRolesQuery(String allRolesQuery) {
+    assertHasLength(allRolesQuery, "HibernateUserRoleDao.ERROR_0008_ALL_ROLES_QUERY_CANNOT_BE_BLANK"); //$NON-NLS-1$
+    this.allRolesQuery = allRolesQuery;
+  }
+
+  public String getAllRolesQuery() {
+    return allRolesQuery;
+  }
+
+  /**
+   * Number of entities written per session flush, and number of identifiers per existence check, in the bulk 
+   * operations. Should match <code>hibernate.jdbc.batch_size</code>.
+   */
+  public void setBatchSize(int batchSize) {
+    assertTrue(batchSize > 0 && batchSize <= MAX_IN_LIST_SIZE, "HibernateUserRoleDao.ERROR_0011_INVALID_BATCH_SIZE"); //$NON-NLS-1$
+    this.batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setRoleFetchMode(RoleFetchMode roleFetchMode) {
+    assertNotNull(roleFetchMode, "HibernateUserRoleDao.ERROR_0014_ROLE_FETCH_MODE_CANNOT_BE_NULL"); //$NON-NLS-1$
+    this.roleFetchMode = roleFetchMode;
+  }
+
+  public RoleFetchMode getRoleFetchMode() {
+    return roleFetchMode;
+  }
+
+  /**
+   * Whether the all users and all roles queries are cached, each in its own region. Only takes effect when 
+   * <code>hibernate.cache.use_query_cache</code> is <code>true</code>. Hibernate invalidates a cached result 
+   * whenever one of the tables it reads is written through Hibernate. Defaults to <code>false</code>.
+   * <p>
+   * A cached result holds only identifiers, so a hit loads every user (and, with {@link RoleFetchMode#JOIN}, which 
+   * the cached query cannot use, every role collection) one at a time from the second-level cache, falling back to 
+   * one statement per entry that is not there. Only turn this on when the users and their role collections are 
+   * cached in regions large enough to hold all of them; otherwise the single join fetch is cheaper.
+   * </p>
+   */
+  public void setCacheQueries(boolean cacheQueries) {
+    this.cacheQueries = cacheQueries;
+  }
+
+  public boolean isCacheQueries() {
+    return cacheQueries;
+  }
+
+  private boolean isQueryCacheInEffect() {
+    return cacheQueries
+        && ((SessionFactoryImplementor) getSessionFactory()).getSettings().isQueryCacheEnabled();
+  }
+
+  /**
+   * Whether every write records the users and roles it changed in <code>USER_ROLE_CHANGES</code> and advances the 
+   * generation in <code>USER_ROLE_GENERATION</code>, for {@link UserRoleChangePoller} to pick up on other servers. 
+   * Requires the mappings in <code>UserRoleChanges.hbm.xml</code>. Defaults to <code>false</code>.
+   */
+  public void setChangeTrackingEnabled(boolean changeTrackingEnabled) {
+    this.changeTrackingEnabled = changeTrackingEnabled;
+  }
+
+  public boolean isChangeTrackingEnabled() {
+    return changeTrackingEnabled;
+  }
+
+  /**
+   * How many generations of change records are kept behind the latest one; older records are purged. A server that 
+   * falls further behind than this between two polls invalidates everything. Defaults to 
+   * {@link #DEFAULT_CHANGE_RETENTION_GENERATIONS}.
+   */
+  public void setChangeRetentionGenerations(long changeRetentionGenerations) {
+    this.changeRetentionGenerations = changeRetentionGenerations;
+  }
+
+  public long getChangeRetentionGenerations() {
+    return changeRetentionGenerations;
+  }
+
+  public void setInitHandler(InitHandler initHandler) {
+    this.initHandler = initHandler;
+  }
+
+  
+  
+  /**
+   * How <code>getUsers</code> loads the roles of the users it returns. Either way the number of statements is 
+   * independent of the number of users.
+   */
+  public static enum RoleFetchMode {
+
+    /**
+     * Users and their roles are read with a single outer-join query; duplicate users produced by the join are removed 
+     * in memory. A page of users takes two statements: one for the page's usernames and one to fetch them.
+     */
+    JOIN,
+
+    /**
+     * Users are read first; their roles are then read in batches of the <code>batch-size</code> configured on the 
+     * <code>roles</code> set in <code>CustomUser.hbm.xml</code>.
+     */
+    BATCH
+
+  }
+
+  /**
+   * The users and roles changed by the current transaction, written just before it commits.
+   */
+  private final class PendingChanges extends TransactionSynchronizationAdapter {
+
+    final Set<String> usernames;
+
+    final Set<String> roleNames;
+
+    PendingChanges(Collection<String> usernames, Collection<String> roleNames) {
+      this.usernames = new LinkedHashSet<String>(usernames);
+      this.roleNames = new LinkedHashSet<String>(roleNames);
+    }
+
+    boolean isOwnedBy(HibernateUserRoleDao dao) {
+      return HibernateUserRoleDao.this == dao;
+    }
+
+    public void beforeCommit(boolean readOnly) {
+      writeChanges(this);
+    }
+
   }
 
-  
-  
   /**
    * Generic interface to allow extensibility without tight coupling. Example use: insert sample users and roles into
    * empty tables.
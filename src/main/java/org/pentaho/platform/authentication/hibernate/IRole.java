@@ -49,4 +49,12 @@ public interface IRole extends Serializable {
   boolean removeUser(IUser user);
 
   void clearUsers();
+
+  /**
+   * @return the version used for optimistic locking, or <code>null</code> if the role was not loaded from the 
+   * database; see {@link IUserRoleDao#updateRole(IRole)}
+   */
+  Long getVersion();
+
+  void setVersion(Long version);
 }
@@ -56,4 +56,12 @@ public interface IUser extends Serializable {
   String getDescription();
 
   void setDescription(String description);
+
+  /**
+   * @return the version used for optimistic locking, or <code>null</code> if the user was not loaded from the 
+   * database; see {@link IUserRoleDao#updateUser(IUser)}
+   */
+  Long getVersion();
+
+  void setVersion(Long version);
 }
@@ -0,0 +1,42 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Set;
+
+/**
+ * Notified by {@link UserRoleChangePoller} of users and roles changed through any {@link HibernateUserRoleDao} sharing
+ * the same tables, including the local one. Implemented by in-process caches to invalidate what went stale.
+ *
+ * <p>A change to a role's members is reported as a change of each user added or removed, as well as of the role. The 
+ * deletion of a role is only reported as a change of the role, however many members it had: a listener that holds 
+ * users' roles must drop or reload the users holding a changed role.</p>
+ */
+public interface IUserRoleChangeListener {
+
+  void usersChanged(Set<String> usernames);
+
+  void rolesChanged(Set<String> roleNames);
+
+  /**
+   * Called when the changes since the last poll are no longer known, because they have been purged; everything must
+   * be considered changed.
+   */
+  void allChanged();
+
+}
@@ -17,6 +17,7 @@
 */
 package org.pentaho.platform.authentication.hibernate;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -32,9 +33,88 @@ public interface IUserRoleDao {
 
   IUser getUser(String name) throws UncategorizedUserRoleDaoException;
 
+  /**
+   * Returns only what authentication needs to know about a user, without loading the user as an entity.
+   * 
+   * @return the credentials or <code>null</code> if no such user exists
+   */
+  UserCredentials getUserCredentials(String name) throws UncategorizedUserRoleDaoException;
+
   List<IUser> getUsers() throws UncategorizedUserRoleDaoException;
 
-  void updateUser(IUser user) throws NotFoundException, UncategorizedUserRoleDaoException;
+  /**
+   * @return <code>true</code> if the user exists and has been granted the role
+   */
+  boolean isUserInRole(String username, String roleName) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Returns one page of users ordered by username. To fetch the next page, pass the username of the last user of the 
+   * previous page.
+   * 
+   * @param afterUsername only users whose username sorts after this one are returned; <code>null</code> for the first 
+   * page
+   * @param limit maximum number of users to return
+   */
+  List<IUser> getUsers(String afterUsername, int limit) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Passes every user, ordered by username, to the given handler without holding all of them in memory at once. The 
+   * roles of the users passed may carry only their names.
+   */
+  void scrollUsers(UserHandler handler) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Passes every username, in order, to the given handler without loading the users.
+   */
+  void scrollUsernames(UsernameHandler handler) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Updates the user, including its roles. If the user carries a version (that is, it was loaded through this DAO), 
+   * the update only succeeds if nobody has updated the user since it was loaded; if the version is <code>null</code>, 
+   * the update overwrites whatever is stored. A version the user carries is advanced once the update has succeeded, 
+   * so the same instance can be updated again; should the enclosing transaction then roll back, the user must be 
+   * loaded again.
+   * 
+   * @throws ConcurrentUpdateException if the user has been updated since it was loaded
+   */
+  void updateUser(IUser user) throws NotFoundException, ConcurrentUpdateException, UncategorizedUserRoleDaoException;
+
+  /**
+   * Creates each user that does not exist yet.
+   */
+  BatchResult createUsers(Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Enables or disables the user without loading it or its roles.
+   */
+  void setUserEnabled(String username, boolean enabled) throws NotFoundException, UncategorizedUserRoleDaoException;
+
+  /**
+   * Enables or disables each user that exists, without loading them.
+   */
+  BatchResult setUsersEnabled(Collection<String> usernames, boolean enabled) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Replaces the stored (encoded) password of the user without loading it or its roles.
+   */
+  void changePassword(String username, String password) throws NotFoundException, UncategorizedUserRoleDaoException;
+
+  void setUserDescription(String username, String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException;
+
+  void setRoleDescription(String roleName, String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException;
+
+  /**
+   * Updates each user that exists. Users whose version is no longer current are skipped with the outcome 
+   * {@link BatchResult.Outcome#CONFLICT}; see {@link #updateUser(IUser)}.
+   */
+  BatchResult updateUsers(Collection<IUser> users) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Deletes each user that exists.
+   */
+  BatchResult deleteUsers(Collection<IUser> users) throws UncategorizedUserRoleDaoException;
 
   void createRole(IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException;
 
@@ -44,6 +124,83 @@ public interface IUserRoleDao {
 
   List<IRole> getRoles() throws UncategorizedUserRoleDaoException;
 
-  void updateRole(IRole role) throws NotFoundException, UncategorizedUserRoleDaoException;
+  /**
+   * Returns one page of roles ordered by name. See {@link #getUsers(String, int)}.
+   */
+  List<IRole> getRoles(String afterName, int limit) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Returns one page of the members of a role ordered by username, as summaries. Paging works as in 
+   * {@link #getUsers(String, int)}.
+   * 
+   * @return the members; empty if the role does not exist
+   */
+  List<UserSummary> getUsersInRole(String roleName, String afterUsername, int limit)
+      throws UncategorizedUserRoleDaoException;
+
+  /**
+   * @return the number of members of the role; 0 if the role does not exist
+   */
+  long countUsersInRole(String roleName) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Returns, as summaries, at most <code>limit</code> users whose usernames start with the given prefix, ignoring 
+   * case. Meant for type-ahead search: the lookup is bounded and served by an index, whatever the number of users.
+   * 
+   * @param prefix the start of the username; empty to match every user
+   */
+  List<UserSummary> findUsers(String prefix, int limit) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Returns at most <code>limit</code> roles whose names start with the given prefix, ignoring case. See 
+   * {@link #findUsers(String, int)}.
+   */
+  List<IRole> findRoles(String prefix, int limit) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Updates the role and grants it to each of its users that is not a member yet. Versions are checked as in 
+   * {@link #updateUser(IUser)}. A role is loaded without its members, so members missing from its users are kept; use 
+   * {@link #setRoleMembers(String, Collection)} to take the role away from users.
+   * 
+   * @throws ConcurrentUpdateException if the role has been updated since it was loaded
+   */
+  void updateRole(IRole role) throws NotFoundException, ConcurrentUpdateException, UncategorizedUserRoleDaoException;
+
+  /**
+   * Replaces the members of the role with the given users, without loading the role or any user.
+   * 
+   * @throws NotFoundException if the role or any of the users does not exist, in which case nothing is changed
+   */
+  void setRoleMembers(String roleName, Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException;
+
+  /**
+   * Creates each role that does not exist yet.
+   */
+  BatchResult createRoles(Collection<IRole> newRoles) throws NotFoundException, UncategorizedUserRoleDaoException;
+
+  /**
+   * Runs the given callback as a single unit of work. The operations the callback performs on the DAO it is given 
+   * share one transaction, when run through {@link UserRoleDaoTransactionDecorator}, and one Hibernate session, so 
+   * objects loaded by one operation are not read again by the next.
+   * 
+   * @return the result of the callback
+   */
+  <T> T execute(IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException;
+
+  /**
+   * Receives users one at a time from {@link IUserRoleDao#scrollUsers(UserHandler)}. The user must not be retained 
+   * beyond the call if memory use is a concern.
+   */
+  interface UserHandler {
+    void handleUser(IUser user);
+  }
+
+  /**
+   * Receives usernames one at a time from {@link IUserRoleDao#scrollUsernames(UsernameHandler)}.
+   */
+  interface UsernameHandler {
+    void handleUsername(String username);
+  }
 
 }
@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in microseconds whose recording is lock-free and allocation-free, so that it can stay
+ * enabled on hot paths.
+ *
+ * <p>Buckets are log-linear, in the manner of HdrHistogram: every power of two is split into 16 equal sub-buckets, so
+ * a reported percentile is within about 6% of the true value. Durations of up to 2^40 microseconds (about 12 days)
+ * are tracked; longer ones are counted in the last bucket.</p>
+ */
+public class LatencyHistogram {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static final int MAX_EXPONENT = 40;
+
+  private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  // ~ Instance fields =================================================================================================
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  private final AtomicLong totalCount = new AtomicLong();
+
+  private final AtomicLong totalMicros = new AtomicLong();
+
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  // ~ Methods =========================================================================================================
+
+  public void record(final long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(bucketIndex(value));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(value);
+    long max = maxMicros.get();
+    while (value > max && !maxMicros.compareAndSet(max, value)) {
+      max = maxMicros.get();
+    }
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public double getMeanMicros() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) totalMicros.get() / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return an estimate of the duration below which the given percentage of recorded durations fall; 0 if nothing
+   * has been recorded
+   */
+  public long getPercentileMicros(final double percentile) {
+    // counts are read one by one while recording may continue; the estimate is consistent enough for monitoring
+    long total = 0;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(bucketMidpoint(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  static int bucketIndex(final long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static long bucketMidpoint(final int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowerBound = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowerBound + ((1L << shift) >> 1);
+  }
+
+}
@@ -0,0 +1,630 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.context.ApplicationListener;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+import org.springframework.security.event.authentication.AbstractAuthenticationEvent;
+import org.springframework.security.event.authentication.AuthenticationFailureBadCredentialsEvent;
+import org.springframework.security.event.authentication.AuthenticationSuccessEvent;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Keeps track of successful and failed logins, locking a user out after <code>maxFailedLogins</code> consecutive 
+ * failures for <code>lockoutSeconds</code> after the last of them.
+ * 
+ * <p>Logins are learned from the Spring Security authentication events, and recorded in memory only, one small object 
+ * per user with its own lock, so that recording a login and deciding a lockout never wait for the database. Every 
+ * <code>flushIntervalMillis</code> the recorded logins are written to the <code>LAST_LOGIN</code>, 
+ * <code>LAST_FAILED_LOGIN</code> and <code>FAILED_LOGINS</code> columns of <code>USERS</code> with two JDBC batches, 
+ * and the failure counts of the users held in memory are read back. The columns are not written through the 
+ * {@link IUserRoleDao}, so recording a login neither updates the rest of the row nor its version.</p>
+ * 
+ * <p>Several servers may share the tables: failures are written as increments and timestamps only ever move forward, 
+ * so no server overwrites what another has written, and each server sees the failures counted by the others within 
+ * one flush interval.</p>
+ * 
+ * <p>A user is held in memory from its first login or lockout check until it has been idle for 
+ * <code>idleSeconds</code> and all it recorded has been written. The first check of a user not held in memory reads 
+ * its row by primary key. A username found not to exist is remembered in a bounded cache for 
+ * <code>unknownUsernameTimeToLiveSeconds</code>, so that repeated attempts with made-up usernames do not each query 
+ * the database; a user created meanwhile is not tracked until its entry expires, unless a 
+ * {@link UserRoleChangePoller} notifies this tracker of it.</p>
+ * 
+ * <p>The <code>init</code> method starts flushing and <code>destroy</code> stops it, after a last flush so that no 
+ * recorded login is lost. Both can be called automatically if using Spring via the <code>init-method</code> and 
+ * <code>destroy-method</code> attributes. Set this tracker as the <code>loginActivityTracker</code> of 
+ * {@link UserRoleDaoUserDetailsService} to enforce the lockout.</p>
+ */
+public class LoginActivityTracker extends HibernateDaoSupport implements
+    ApplicationListener<AbstractAuthenticationEvent>, IUserRoleChangeListener {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(LoginActivityTracker.class);
+
+  private static final String SELECT_ACTIVITY_SQL = "select USERNAME, FAILED_LOGINS, LAST_FAILED_LOGIN " //$NON-NLS-1$
+      + "from USERS where USERNAME in (:usernames)"; //$NON-NLS-1$
+
+  private static final String RECORD_LOGIN_SQL = "update USERS set FAILED_LOGINS = 0, LAST_LOGIN = " //$NON-NLS-1$
+      + "case when LAST_LOGIN is null or LAST_LOGIN < ? then ? else LAST_LOGIN end where USERNAME = ?"; //$NON-NLS-1$
+
+  private static final String RECORD_FAILURES_SQL = "update USERS set FAILED_LOGINS = coalesce(FAILED_LOGINS, 0) + ?, " //$NON-NLS-1$
+      + "LAST_FAILED_LOGIN = case when LAST_FAILED_LOGIN is null or LAST_FAILED_LOGIN < ? then ? " //$NON-NLS-1$
+      + "else LAST_FAILED_LOGIN end where USERNAME = ?"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_FAILED_LOGINS = 5;
+
+  public static final long DEFAULT_LOCKOUT_SECONDS = 900;
+
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 5000;
+
+  public static final long DEFAULT_IDLE_SECONDS = 600;
+
+  public static final int DEFAULT_MAX_UNKNOWN_USERNAMES = 10000;
+
+  public static final long DEFAULT_UNKNOWN_USERNAME_TIME_TO_LIVE_SECONDS = 60;
+
+  /**
+   * The number of usernames per <code>in</code> list and of statements per batch.
+   */
+  private static final int MAX_CHUNK_SIZE = 500;
+
+  // ~ Instance fields =================================================================================================
+
+  private final ConcurrentMap<String, Activity> activities = new ConcurrentHashMap<String, Activity>();
+
+  private int maxFailedLogins = DEFAULT_MAX_FAILED_LOGINS;
+
+  private long lockoutSeconds = DEFAULT_LOCKOUT_SECONDS;
+
+  private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+  private long idleSeconds = DEFAULT_IDLE_SECONDS;
+
+  private int maxUnknownUsernames = DEFAULT_MAX_UNKNOWN_USERNAMES;
+
+  private long unknownUsernameTimeToLiveSeconds = DEFAULT_UNKNOWN_USERNAME_TIME_TO_LIVE_SECONDS;
+
+  private ExpiringLruCache<String, Boolean> unknownUsernames = createCache();
+
+  private TransactionTemplate transactionTemplate;
+
+  private ScheduledExecutorService executor;
+
+  // ~ Methods =========================================================================================================
+
+  public void init() {
+    Assert.notNull(transactionTemplate, "A transactionTemplate must be set"); //$NON-NLS-1$
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, "LoginActivityTracker"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          // what could not be written is kept and written by the next flush
+          logger.warn(e.getMessage(), e);
+        }
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void destroy() throws InterruptedException {
+    if (executor != null) {
+      executor.shutdown();
+      executor.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+      executor = null;
+    }
+    flush();
+  }
+
+  public void onApplicationEvent(final AbstractAuthenticationEvent event) {
+    try {
+      if (event instanceof AuthenticationSuccessEvent) {
+        loginSucceeded(event.getAuthentication().getName());
+      } else if (event instanceof AuthenticationFailureBadCredentialsEvent) {
+        loginFailed(event.getAuthentication().getName());
+      }
+    } catch (RuntimeException e) {
+      // bookkeeping must not fail the login
+      logger.warn(e.getMessage(), e);
+    }
+  }
+
+  public void loginSucceeded(final String username) {
+    long now = System.currentTimeMillis();
+    Activity activity = getActivity(username);
+    // an activity evicted by a concurrent flush is no longer in the map; record in its successor
+    while (activity != null && !activity.succeeded(now)) {
+      activity = getActivity(username);
+    }
+  }
+
+  public void loginFailed(final String username) {
+    long now = System.currentTimeMillis();
+    Activity activity = getActivity(username);
+    while (activity != null && !activity.failed(now)) {
+      activity = getActivity(username);
+    }
+  }
+
+  /**
+   * @return whether the user has failed to log in <code>maxFailedLogins</code> times in a row, the last time less than 
+   * <code>lockoutSeconds</code> ago; <code>false</code> if the database cannot be read, so that an outage of this 
+   * bookkeeping does not lock everybody out
+   */
+  public boolean isLocked(final String username) {
+    if (maxFailedLogins <= 0) {
+      return false;
+    }
+    Activity activity;
+    try {
+      activity = getActivity(username);
+    } catch (RuntimeException e) {
+      logger.warn(e.getMessage(), e);
+      return false;
+    }
+    return activity != null
+        && activity.isLocked(System.currentTimeMillis(), maxFailedLogins, TimeUnit.SECONDS.toMillis(lockoutSeconds));
+  }
+
+  /**
+   * Writes what has been recorded since the last flush, then refreshes the failure counts held in memory from the 
+   * database and drops the users that have been idle long enough. Called periodically once <code>init</code> has run.
+   */
+  public synchronized void flush() {
+    Map<String, Pending> drained = new LinkedHashMap<String, Pending>();
+    for (Map.Entry<String, Activity> entry : activities.entrySet()) {
+      Pending pending = entry.getValue().drain();
+      if (pending != null) {
+        drained.put(entry.getKey(), pending);
+      }
+    }
+    if (!drained.isEmpty()) {
+      try {
+        write(drained);
+      } catch (RuntimeException e) {
+        for (Map.Entry<String, Pending> entry : drained.entrySet()) {
+          // only flush evicts, so every drained activity is still there
+          activities.get(entry.getKey()).restore(entry.getValue());
+        }
+        throw e;
+      }
+    }
+    long now = System.currentTimeMillis();
+    long idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+    List<String> usernames = new ArrayList<String>(activities.size());
+    for (Map.Entry<String, Activity> entry : activities.entrySet()) {
+      if (!entry.getValue().evictIfIdle(activities, entry.getKey(), now, idleMillis)) {
+        usernames.add(entry.getKey());
+      }
+    }
+    Map<String, Object[]> rows = read(usernames);
+    for (String username : usernames) {
+      Activity activity = activities.get(username);
+      Object[] row = rows.get(username);
+      if (row == null) {
+        // deleted in the meantime
+        activity.evict(activities, username);
+      } else {
+        activity.refresh(failures(row), timestamp(row));
+      }
+    }
+  }
+
+  /**
+   * A user that may have been created is no longer taken for unknown.
+   */
+  public void usersChanged(final Set<String> usernames) {
+    for (String username : usernames) {
+      unknownUsernames.remove(username);
+    }
+  }
+
+  public void rolesChanged(final Set<String> roleNames) {
+  }
+
+  public void allChanged() {
+    unknownUsernames.clear();
+  }
+
+  /**
+   * @return the activity of the user, read from the database if not held in memory; <code>null</code> if no such user 
+   * exists
+   */
+  private Activity getActivity(final String username) {
+    if (username == null) {
+      return null;
+    }
+    Activity activity = activities.get(username);
+    if (activity != null) {
+      return activity;
+    }
+    if (unknownUsernames.get(username) != null) {
+      return null;
+    }
+    long generation = unknownUsernames.getGeneration(username);
+    Object[] row = read(Collections.singleton(username)).get(username);
+    if (row == null) {
+      unknownUsernames.putIfGeneration(username, Boolean.TRUE, generation);
+      return null;
+    }
+    activity = new Activity(failures(row), timestamp(row), System.currentTimeMillis());
+    Activity existing = activities.putIfAbsent(username, activity);
+    return existing != null ? existing : activity;
+  }
+
+  private Map<String, Object[]> read(final Collection<String> usernames) {
+    final Map<String, Object[]> rows = new HashMap<String, Object[]>();
+    for (final List<String> chunk : Partitions.partition(usernames, MAX_CHUNK_SIZE)) {
+      getHibernateTemplate().execute(new HibernateCallback<Object>() {
+        public Object doInHibernate(Session session) throws HibernateException {
+          @SuppressWarnings("unchecked")
+          List<Object[]> result = session.createSQLQuery(SELECT_ACTIVITY_SQL)
+              .addScalar("USERNAME", StandardBasicTypes.STRING) //$NON-NLS-1$
+              .addScalar("FAILED_LOGINS", StandardBasicTypes.INTEGER) //$NON-NLS-1$
+              .addScalar("LAST_FAILED_LOGIN", StandardBasicTypes.TIMESTAMP) //$NON-NLS-1$
+              .setParameterList("usernames", chunk) //$NON-NLS-1$
+              .list();
+          for (Object[] row : result) {
+            rows.put((String) row[0], row);
+          }
+          return null;
+        }
+      });
+    }
+    return rows;
+  }
+
+  private void write(final Map<String, Pending> drained) {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        getHibernateTemplate().execute(new HibernateCallback<Object>() {
+          public Object doInHibernate(Session session) throws HibernateException {
+            session.doWork(new Work() {
+              public void execute(Connection connection) throws SQLException {
+                // logins first: a success resets the count, and the failures drained with it came after it
+                writeLogins(connection, drained);
+                writeFailures(connection, drained);
+              }
+            });
+            return null;
+          }
+        });
+      }
+    });
+  }
+
+  private static void writeLogins(final Connection connection, final Map<String, Pending> drained)
+      throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(RECORD_LOGIN_SQL);
+    try {
+      int batched = 0;
+      for (Map.Entry<String, Pending> entry : drained.entrySet()) {
+        Pending pending = entry.getValue();
+        if (pending.succeeded) {
+          Timestamp lastLogin = new Timestamp(pending.lastLogin);
+          statement.setTimestamp(1, lastLogin);
+          statement.setTimestamp(2, lastLogin);
+          statement.setString(3, entry.getKey());
+          statement.addBatch();
+          if (++batched % MAX_CHUNK_SIZE == 0) {
+            statement.executeBatch();
+          }
+        }
+      }
+      if (batched % MAX_CHUNK_SIZE != 0) {
+        statement.executeBatch();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void writeFailures(final Connection connection, final Map<String, Pending> drained)
+      throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(RECORD_FAILURES_SQL);
+    try {
+      int batched = 0;
+      for (Map.Entry<String, Pending> entry : drained.entrySet()) {
+        Pending pending = entry.getValue();
+        if (pending.failures > 0) {
+          Timestamp lastFailure = new Timestamp(pending.lastFailure);
+          statement.setInt(1, pending.failures);
+          statement.setTimestamp(2, lastFailure);
+          statement.setTimestamp(3, lastFailure);
+          statement.setString(4, entry.getKey());
+          statement.addBatch();
+          if (++batched % MAX_CHUNK_SIZE == 0) {
+            statement.executeBatch();
+          }
+        }
+      }
+      if (batched % MAX_CHUNK_SIZE != 0) {
+        statement.executeBatch();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static int failures(final Object[] row) {
+    return row[1] != null ? ((Number) row[1]).intValue() : 0;
+  }
+
+  private static long timestamp(final Object[] row) {
+    return row[2] != null ? ((Date) row[2]).getTime() : 0;
+  }
+
+  private ExpiringLruCache<String, Boolean> createCache() {
+    return new ExpiringLruCache<String, Boolean>(maxUnknownUsernames,
+        TimeUnit.SECONDS.toMillis(unknownUsernameTimeToLiveSeconds));
+  }
+
+  /**
+   * @return the number of users held in memory
+   */
+  public int getTrackedUserCount() {
+    return activities.size();
+  }
+
+  /**
+   * @return the number of usernames remembered as unknown
+   */
+  public int getUnknownUsernameCount() {
+    return unknownUsernames.size();
+  }
+
+  public void setMaxFailedLogins(final int maxFailedLogins) {
+    this.maxFailedLogins = maxFailedLogins;
+  }
+
+  public int getMaxFailedLogins() {
+    return maxFailedLogins;
+  }
+
+  public void setLockoutSeconds(final long lockoutSeconds) {
+    this.lockoutSeconds = lockoutSeconds;
+  }
+
+  public long getLockoutSeconds() {
+    return lockoutSeconds;
+  }
+
+  public void setFlushIntervalMillis(final long flushIntervalMillis) {
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  public long getFlushIntervalMillis() {
+    return flushIntervalMillis;
+  }
+
+  public void setIdleSeconds(final long idleSeconds) {
+    this.idleSeconds = idleSeconds;
+  }
+
+  public long getIdleSeconds() {
+    return idleSeconds;
+  }
+
+  public void setMaxUnknownUsernames(final int maxUnknownUsernames) {
+    this.maxUnknownUsernames = maxUnknownUsernames;
+    unknownUsernames = createCache();
+  }
+
+  public int getMaxUnknownUsernames() {
+    return maxUnknownUsernames;
+  }
+
+  public void setUnknownUsernameTimeToLiveSeconds(final long unknownUsernameTimeToLiveSeconds) {
+    this.unknownUsernameTimeToLiveSeconds = unknownUsernameTimeToLiveSeconds;
+    unknownUsernames = createCache();
+  }
+
+  public long getUnknownUsernameTimeToLiveSeconds() {
+    return unknownUsernameTimeToLiveSeconds;
+  }
+
+  public void setTransactionTemplate(final TransactionTemplate transactionTemplate) {
+    this.transactionTemplate = transactionTemplate;
+  }
+
+  /**
+   * What one user has done since the last flush, drained for writing.
+   */
+  private static final class Pending {
+
+    final boolean succeeded;
+
+    final long lastLogin;
+
+    final int failures;
+
+    final long lastFailure;
+
+    Pending(final boolean succeeded, final long lastLogin, final int failures, final long lastFailure) {
+      this.succeeded = succeeded;
+      this.lastLogin = lastLogin;
+      this.failures = failures;
+      this.lastFailure = lastFailure;
+    }
+
+  }
+
+  /**
+   * The logins of one user: the failures as last read from the database, plus what has been recorded since and not yet 
+   * written.
+   */
+  private static final class Activity {
+
+    private int storedFailures;
+
+    private long storedLastFailure;
+
+    private boolean succeeded;
+
+    private long lastLogin;
+
+    private int failures;
+
+    private long lastFailure;
+
+    private long lastAccess;
+
+    private boolean evicted;
+
+    Activity(final int storedFailures, final long storedLastFailure, final long now) {
+      this.storedFailures = storedFailures;
+      this.storedLastFailure = storedLastFailure;
+      this.lastAccess = now;
+    }
+
+    /**
+     * @return <code>false</code> if this activity has been evicted and the login was not recorded
+     */
+    synchronized boolean succeeded(final long now) {
+      if (evicted) {
+        return false;
+      }
+      succeeded = true;
+      lastLogin = now;
+      // failures before this login no longer count, whether written yet or not
+      storedFailures = 0;
+      failures = 0;
+      lastAccess = now;
+      return true;
+    }
+
+    /**
+     * @return <code>false</code> if this activity has been evicted and the failure was not recorded
+     */
+    synchronized boolean failed(final long now) {
+      if (evicted) {
+        return false;
+      }
+      failures++;
+      lastFailure = now;
+      lastAccess = now;
+      return true;
+    }
+
+    synchronized boolean isLocked(final long now, final int maxFailedLogins, final long lockoutMillis) {
+      lastAccess = now;
+      return storedFailures + failures >= maxFailedLogins
+          && now - Math.max(storedLastFailure, lastFailure) < lockoutMillis;
+    }
+
+    /**
+     * Takes what has been recorded since the last drain, counting it as stored until the database is read again.
+     * 
+     * @return <code>null</code> if nothing was recorded
+     */
+    synchronized Pending drain() {
+      if (!succeeded && failures == 0) {
+        return null;
+      }
+      Pending pending = new Pending(succeeded, lastLogin, failures, lastFailure);
+      storedFailures += failures;
+      storedLastFailure = Math.max(storedLastFailure, lastFailure);
+      succeeded = false;
+      failures = 0;
+      return pending;
+    }
+
+    /**
+     * Puts back what could not be written, before whatever has been recorded since it was drained.
+     */
+    synchronized void restore(final Pending pending) {
+      if (succeeded) {
+        // a later success has made the drained failures irrelevant; only its own login remains to be written
+        return;
+      }
+      storedFailures = Math.max(0, storedFailures - pending.failures);
+      failures += pending.failures;
+      lastFailure = Math.max(lastFailure, pending.lastFailure);
+      if (pending.succeeded) {
+        succeeded = true;
+        lastLogin = pending.lastLogin;
+      }
+    }
+
+    synchronized void refresh(final int dbFailures, final long dbLastFailure) {
+      // a success not yet written resets the count, whatever the database still says
+      storedFailures = succeeded ? 0 : dbFailures;
+      storedLastFailure = dbLastFailure;
+    }
+
+    /**
+     * Removes this activity from the map if it is idle and has nothing left to write. Done under this activity's lock, 
+     * so that no login can be recorded in it once removed.
+     * 
+     * @return whether it was removed
+     */
+    synchronized boolean evictIfIdle(final ConcurrentMap<String, Activity> activities, final String username,
+        final long now, final long idleMillis) {
+      if (succeeded || failures != 0 || now - lastAccess < idleMillis) {
+        return false;
+      }
+      evict(activities, username);
+      return true;
+    }
+
+    synchronized void evict(final ConcurrentMap<String, Activity> activities, final String username) {
+      evicted = true;
+      activities.remove(username, this);
+    }
+
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call counts and a latency histogram for one operation of {@link IUserRoleDao}.
+ *
+ * @see UserRoleDaoInstrumentationDecorator
+ */
+public class MethodStatistics implements MethodStatisticsMBean {
+
+  // ~ Instance fields =================================================================================================
+
+  private final String name;
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private final AtomicLong errors = new AtomicLong();
+
+  private final AtomicLong exceptions = new AtomicLong();
+
+  // ~ Constructors ====================================================================================================
+
+  public MethodStatistics(final String name) {
+    this.name = name;
+  }
+
+  // ~ Methods =========================================================================================================
+
+  /**
+   * Records a call that began at <code>startNanos</code>, as returned by <code>System.nanoTime()</code>, and has
+   * just ended.
+   */
+  public void completed(final long startNanos) {
+    latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Counts the failure of a call.
+   *
+   * @return the given exception, so that callers can write <code>throw statistics.failed(e)</code>
+   */
+  public RuntimeException failed(final RuntimeException e) {
+    if (e instanceof NotFoundException || e instanceof AlreadyExistsException) {
+      errors.incrementAndGet();
+    } else {
+      exceptions.incrementAndGet();
+    }
+    return e;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getCalls() {
+    return latency.getCount();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getExceptions() {
+    return exceptions.get();
+  }
+
+  public double getMeanMicros() {
+    return latency.getMeanMicros();
+  }
+
+  public long getMaxMicros() {
+    return latency.getMaxMicros();
+  }
+
+  public long getP50Micros() {
+    return latency.getPercentileMicros(50);
+  }
+
+  public long getP99Micros() {
+    return latency.getPercentileMicros(99);
+  }
+
+  public long getP999Micros() {
+    return latency.getPercentileMicros(99.9);
+  }
+
+  public void reset() {
+    latency.reset();
+    errors.set(0);
+    exceptions.set(0);
+  }
+
+}
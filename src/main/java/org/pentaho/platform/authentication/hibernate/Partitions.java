@@ -0,0 +1,48 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits collections into consecutive chunks, e.g. to bound <code>IN (...)</code> lists or transaction sizes.
+ */
+final class Partitions {
+
+  private Partitions() {
+  }
+
+  static <T> List<List<T>> partition(final Collection<T> values, final int size) {
+    List<List<T>> chunks = new ArrayList<List<T>>();
+    List<T> chunk = new ArrayList<T>(Math.min(size, values.size()));
+    for (T value : values) {
+      chunk.add(value);
+      if (chunk.size() == size) {
+        chunks.add(chunk);
+        chunk = new ArrayList<T>(size);
+      }
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+}
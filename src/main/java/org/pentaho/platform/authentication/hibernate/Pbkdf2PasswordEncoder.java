@@ -0,0 +1,417 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.platform.authentication.hibernate.messages.Messages;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.security.providers.encoding.PasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * Hashes passwords with PBKDF2 and a random salt per password. Encoded passwords have the form 
+ * <code>{algorithm}iterations$salt$hash</code>, salt and hash in Base64, so that the algorithm and cost used for each 
+ * password are known when it is checked and can be changed without invalidating stored passwords.
+ * 
+ * <p>Hashing runs on a pool of <code>threads</code> threads (by default half the processors) with a queue of at most
+ * <code>queueCapacity</code> waiting hashes. However many logins arrive at once, hashing never occupies more than
+ * those threads; a hash that finds the queue full fails at once with a {@link TransientDataAccessResourceException},
+ * which rejects the login, rather than wait behind the others.</p>
+ * 
+ * <p>Unless <code>iterations</code> is set, <code>init</code> measures this server and chooses the number of 
+ * iterations for which one hash takes about <code>targetMillis</code>, but never fewer than 
+ * <code>minIterations</code>.</p>
+ * 
+ * <p>Passwords not in this form, such as those written by {@link Base64PasswordEncoder}, are checked with 
+ * <code>legacyPasswordEncoder</code>. {@link #isUpgradeNeeded(String)} identifies them, and passwords hashed with an 
+ * older algorithm or cost, so that {@link UpgradingDaoAuthenticationProvider} can rehash them when their users next log
+ * in.</p>
+ * 
+ * <p>A stored password is only checked if its algorithm is one of <code>allowedAlgorithms</code> available in this 
+ * JVM, and its number of iterations at most <code>maxIterations</code> (by default ten times <code>iterations</code>); 
+ * any other is rejected without hashing, so that a tampered row cannot have a login run an arbitrary algorithm or 
+ * hash for minutes.</p>
+ * 
+ * <p>The <code>salt</code> argument of the {@link PasswordEncoder} methods is ignored.</p>
+ */
+public class Pbkdf2PasswordEncoder implements PasswordEncoder {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(Pbkdf2PasswordEncoder.class);
+
+  public static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA1"; //$NON-NLS-1$
+
+  public static final long DEFAULT_TARGET_MILLIS = 100;
+
+  public static final int DEFAULT_MIN_ITERATIONS = 10000;
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+  /**
+   * Unless <code>maxIterations</code> is set, stored passwords may use up to this many times <code>iterations</code>.
+   */
+  public static final int DEFAULT_MAX_ITERATIONS_FACTOR = 10;
+
+  public static final Set<String> DEFAULT_ALLOWED_ALGORITHMS = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA384", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "PBKDF2WithHmacSHA512"))); //$NON-NLS-1$
+
+  private static final int SALT_BYTES = 16;
+
+  private static final int HASH_BYTES = 32;
+
+  /**
+   * Longest hash accepted in a stored password; PBKDF2 costs one more round of iterations per block of output.
+   */
+  private static final int MAX_HASH_BYTES = 64;
+
+  private static final int CALIBRATION_ITERATIONS = 10000;
+
+  private static final int CALIBRATION_ROUNDS = 5;
+
+  private static final char ALGORITHM_START = '{';
+
+  private static final char ALGORITHM_END = '}';
+
+  private static final char SEPARATOR = '$';
+
+  // ~ Instance fields =================================================================================================
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  private String algorithm = DEFAULT_ALGORITHM;
+
+  private int iterations;
+
+  private long targetMillis = DEFAULT_TARGET_MILLIS;
+
+  private int minIterations = DEFAULT_MIN_ITERATIONS;
+
+  private int maxIterations;
+
+  private Set<String> allowedAlgorithms = DEFAULT_ALLOWED_ALGORITHMS;
+
+  /**
+   * The allowed algorithms that this JVM provides; set by <code>init</code>.
+   */
+  private Set<String> availableAlgorithms = Collections.emptySet();
+
+  private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+  private PasswordEncoder legacyPasswordEncoder = new Base64PasswordEncoder();
+
+  private ThreadPoolExecutor executor;
+
+  // ~ Methods =========================================================================================================
+
+  public void init() throws GeneralSecurityException {
+    Assert.isTrue(allowedAlgorithms.contains(algorithm), "The algorithm must be one of the allowedAlgorithms"); //$NON-NLS-1$
+    // fails if the algorithm of new hashes is not available
+    SecretKeyFactory.getInstance(algorithm);
+    Set<String> available = new HashSet<String>();
+    for (String allowed : allowedAlgorithms) {
+      try {
+        SecretKeyFactory.getInstance(allowed);
+        available.add(allowed);
+      } catch (NoSuchAlgorithmException e) {
+        // passwords hashed with it cannot be checked here
+      }
+    }
+    availableAlgorithms = available;
+    if (iterations <= 0) {
+      iterations = calibrate();
+      logger.info(Messages.getInstance().getString("Pbkdf2PasswordEncoder.INFO_0001_CALIBRATED", //$NON-NLS-1$
+          String.valueOf(iterations)));
+    }
+    if (maxIterations <= 0) {
+      maxIterations = (int) Math.min(Integer.MAX_VALUE, (long) iterations * DEFAULT_MAX_ITERATIONS_FACTOR);
+    }
+    Assert.isTrue(maxIterations >= iterations, "maxIterations must not be less than iterations"); //$NON-NLS-1$
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+        queueCapacity), new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, "Pbkdf2PasswordEncoder-" + threadCount.incrementAndGet()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  public String encodePassword(final String rawPass, final Object salt) throws DataAccessException {
+    Validate.notNull(rawPass, "Raw password can not be null"); //$NON-NLS-1$
+    byte[] passwordSalt = new byte[SALT_BYTES];
+    random.nextBytes(passwordSalt);
+    byte[] hash = hash(algorithm, rawPass, passwordSalt, iterations, HASH_BYTES);
+    return new StringBuilder().append(ALGORITHM_START).append(algorithm).append(ALGORITHM_END).append(iterations)
+        .append(SEPARATOR).append(new String(Base64.encodeBase64(passwordSalt))).append(SEPARATOR)
+        .append(new String(Base64.encodeBase64(hash))).toString();
+  }
+
+  public boolean isPasswordValid(final String encPass, final String rawPass, final Object salt)
+      throws DataAccessException {
+    Validate.notNull(encPass, "Encoded password can not be null"); //$NON-NLS-1$
+    Validate.notNull(rawPass, "Raw password can not be null"); //$NON-NLS-1$
+    if (!isHashed(encPass)) {
+      return legacyPasswordEncoder.isPasswordValid(encPass, rawPass, salt);
+    }
+    int algorithmEnd = encPass.indexOf(ALGORITHM_END);
+    int saltStart = encPass.indexOf(SEPARATOR, algorithmEnd) + 1;
+    int hashStart = encPass.indexOf(SEPARATOR, saltStart) + 1;
+    if (algorithmEnd < 0 || saltStart == 0 || hashStart == 0) {
+      return false;
+    }
+    String passwordAlgorithm = encPass.substring(1, algorithmEnd);
+    if (!availableAlgorithms.contains(passwordAlgorithm)) {
+      return false;
+    }
+    int passwordIterations;
+    try {
+      passwordIterations = Integer.parseInt(encPass.substring(algorithmEnd + 1, saltStart - 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    byte[] passwordSalt = Base64.decodeBase64(encPass.substring(saltStart, hashStart - 1).getBytes());
+    byte[] expected = Base64.decodeBase64(encPass.substring(hashStart).getBytes());
+    if (passwordIterations <= 0 || passwordIterations > maxIterations || expected.length == 0
+        || expected.length > MAX_HASH_BYTES) {
+      return false;
+    }
+    byte[] actual = hash(passwordAlgorithm, rawPass, passwordSalt, passwordIterations, expected.length);
+    // examines every byte, whatever the position of the first difference
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  /**
+   * @return whether the password was not encoded by this encoder with its current algorithm and number of iterations
+   */
+  public boolean isUpgradeNeeded(final String encPass) {
+    if (encPass == null || !isHashed(encPass)) {
+      return true;
+    }
+    String current = new StringBuilder().append(ALGORITHM_START).append(algorithm).append(ALGORITHM_END).append(
+        iterations).append(SEPARATOR).toString();
+    return !encPass.startsWith(current);
+  }
+
+  private static boolean isHashed(final String encPass) {
+    // '{' is not in the Base64 alphabet, so a legacy password never starts with it
+    return encPass.length() > 0 && encPass.charAt(0) == ALGORITHM_START;
+  }
+
+  /**
+   * Runs the hash on the executor and waits for it.
+   * 
+   * @throws TransientDataAccessResourceException if the executor's queue is full, or the wait is interrupted
+   * @throws IllegalStateException if <code>init</code> has not been called
+   */
+  private byte[] hash(final String hashAlgorithm, final String rawPass, final byte[] salt, final int hashIterations,
+      final int length) throws DataAccessException {
+    ThreadPoolExecutor current = executor;
+    Assert.state(current != null, "Pbkdf2PasswordEncoder.init() must be called before passwords are hashed"); //$NON-NLS-1$
+    Future<byte[]> result;
+    try {
+      result = current.submit(new Callable<byte[]>() {
+        public byte[] call() throws GeneralSecurityException {
+          return pbkdf2(hashAlgorithm, rawPass, salt, hashIterations, length);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejectedCount.incrementAndGet();
+      throw new TransientDataAccessResourceException(Messages.getInstance().getString(
+          "Pbkdf2PasswordEncoder.ERROR_0001_TOO_MANY_HASHES_QUEUED"), e); //$NON-NLS-1$
+    }
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      // the hash cannot be stopped, but the caller no longer waits for it
+      Thread.currentThread().interrupt();
+      throw new TransientDataAccessResourceException(Messages.getInstance().getString(
+          "Pbkdf2PasswordEncoder.ERROR_0002_INTERRUPTED"), e); //$NON-NLS-1$
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause.getMessage(), cause);
+    }
+  }
+
+  private static byte[] pbkdf2(final String hashAlgorithm, final String rawPass, final byte[] salt,
+      final int hashIterations, final int length) throws GeneralSecurityException {
+    PBEKeySpec spec = new PBEKeySpec(rawPass.toCharArray(), salt, hashIterations, length * 8);
+    try {
+      return SecretKeyFactory.getInstance(hashAlgorithm).generateSecret(spec).getEncoded();
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Times a few hashes on the calling thread and scales the fastest to <code>targetMillis</code>. The fastest is used 
+   * since the first rounds also pay for class loading and compilation.
+   */
+  private int calibrate() throws GeneralSecurityException {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    long fastestNanos = Long.MAX_VALUE;
+    for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+      long start = System.nanoTime();
+      pbkdf2(algorithm, "calibration", salt, CALIBRATION_ITERATIONS, HASH_BYTES); //$NON-NLS-1$
+      fastestNanos = Math.min(fastestNanos, Math.max(1, System.nanoTime() - start));
+    }
+    long scaled = CALIBRATION_ITERATIONS * TimeUnit.MILLISECONDS.toNanos(targetMillis) / fastestNanos;
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(minIterations, scaled));
+  }
+
+  /**
+   * @return the number of hashes refused because the queue was full
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * @return the number of hashes waiting for a thread
+   */
+  public int getQueuedCount() {
+    ThreadPoolExecutor current = executor;
+    return current != null ? current.getQueue().size() : 0;
+  }
+
+  public void setAlgorithm(final String algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Sets the number of iterations of new hashes; 0, the default, has <code>init</code> calibrate it.
+   */
+  public void setIterations(final int iterations) {
+    this.iterations = iterations;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public void setTargetMillis(final long targetMillis) {
+    this.targetMillis = targetMillis;
+  }
+
+  public long getTargetMillis() {
+    return targetMillis;
+  }
+
+  public void setMinIterations(final int minIterations) {
+    this.minIterations = minIterations;
+  }
+
+  public int getMinIterations() {
+    return minIterations;
+  }
+
+  /**
+   * Sets the largest number of iterations of a stored password that is checked; 0, the default, has <code>init</code> 
+   * allow {@link #DEFAULT_MAX_ITERATIONS_FACTOR} times <code>iterations</code>.
+   */
+  public void setMaxIterations(final int maxIterations) {
+    this.maxIterations = maxIterations;
+  }
+
+  public int getMaxIterations() {
+    return maxIterations;
+  }
+
+  /**
+   * Sets the algorithms with which a stored password may have been hashed; must include <code>algorithm</code>. 
+   * Defaults to {@link #DEFAULT_ALLOWED_ALGORITHMS}.
+   */
+  public void setAllowedAlgorithms(final Set<String> allowedAlgorithms) {
+    this.allowedAlgorithms = allowedAlgorithms;
+  }
+
+  public Set<String> getAllowedAlgorithms() {
+    return allowedAlgorithms;
+  }
+
+  public void setThreads(final int threads) {
+    this.threads = threads;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setQueueCapacity(final int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setLegacyPasswordEncoder(final PasswordEncoder legacyPasswordEncoder) {
+    this.legacyPasswordEncoder = legacyPasswordEncoder;
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Locale;
+
+/**
+ * The normalized forms of usernames and role names stored in <code>USERS.USERNAME_LOWER</code> and 
+ * <code>AUTHORITIES.AUTHORITY_LOWER</code>, and the <code>like</code> patterns that search them.
+ * 
+ * <p>Names are lower-cased in a fixed locale, so that the stored key does not depend on the default locale of the 
+ * server that wrote it.</p>
+ */
+final class SearchKeys {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  /**
+   * Not a backslash, which some databases (MySQL) also treat as an escape inside string literals.
+   */
+  static final char ESCAPE = '!';
+
+  // ~ Constructors ====================================================================================================
+
+  private SearchKeys() {
+    super();
+  }
+
+  // ~ Methods =========================================================================================================
+
+  static String normalize(final String name) {
+    return name != null ? name.toLowerCase(Locale.ENGLISH) : null;
+  }
+
+  /**
+   * @return a pattern matching the normalized names that start with the given prefix; wildcards in the prefix match 
+   * only themselves
+   */
+  static String prefixPattern(final String prefix) {
+    String normalized = normalize(prefix);
+    StringBuilder pattern = new StringBuilder(normalized.length() + 1);
+    for (int i = 0; i < normalized.length(); i++) {
+      char c = normalized.charAt(i);
+      if (c == '%' || c == '_' || c == ESCAPE) {
+        pattern.append(ESCAPE);
+      }
+      pattern.append(c);
+    }
+    return pattern.append('%').toString();
+  }
+
+}
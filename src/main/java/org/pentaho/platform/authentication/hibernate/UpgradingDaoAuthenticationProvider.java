@@ -0,0 +1,90 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.platform.authentication.hibernate.messages.Messages;
+import org.springframework.security.Authentication;
+import org.springframework.security.providers.dao.DaoAuthenticationProvider;
+import org.springframework.security.providers.encoding.PasswordEncoder;
+import org.springframework.security.userdetails.UserDetails;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link DaoAuthenticationProvider} that, once a user's password has been checked, rehashes it with the 
+ * {@link Pbkdf2PasswordEncoder} if it was encoded otherwise (for example by {@link Base64PasswordEncoder}) or with an 
+ * older cost. The encoder may also be a {@link CachingPasswordEncoder} wrapping a <code>Pbkdf2PasswordEncoder</code>.
+ * The new hash is stored with {@link IUserRoleDao#changePassword(String, String)}, so that legacy passwords are 
+ * upgraded as their users log in, without a migration.
+ * 
+ * <p>A failed upgrade does not fail the login; it is logged and tried again at the next login.</p>
+ */
+public class UpgradingDaoAuthenticationProvider extends DaoAuthenticationProvider {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(UpgradingDaoAuthenticationProvider.class);
+
+  // ~ Instance fields =================================================================================================
+
+  private IUserRoleDao userRoleDao;
+
+  // ~ Methods =========================================================================================================
+
+  protected void doAfterPropertiesSet() throws Exception {
+    super.doAfterPropertiesSet();
+    Assert.notNull(userRoleDao, "A userRoleDao must be set"); //$NON-NLS-1$
+  }
+
+  /**
+   * Upgrades the password here rather than in <code>additionalAuthenticationChecks</code>, since this runs once the 
+   * user has passed every check and been put in the user cache, so that evicting it afterwards sticks.
+   */
+  protected Authentication createSuccessAuthentication(final Object principal, final Authentication authentication,
+      final UserDetails user) {
+    PasswordEncoder passwordEncoder = getPasswordEncoder();
+    PasswordEncoder hashingEncoder = passwordEncoder;
+    if (hashingEncoder instanceof CachingPasswordEncoder) {
+      hashingEncoder = ((CachingPasswordEncoder) hashingEncoder).getPasswordEncoder();
+    }
+    if (hashingEncoder instanceof Pbkdf2PasswordEncoder
+        && ((Pbkdf2PasswordEncoder) hashingEncoder).isUpgradeNeeded(user.getPassword())) {
+      upgradePassword(user.getUsername(), authentication.getCredentials().toString(), passwordEncoder);
+    }
+    return super.createSuccessAuthentication(principal, authentication, user);
+  }
+
+  private void upgradePassword(final String username, final String rawPassword, final PasswordEncoder passwordEncoder) {
+    try {
+      userRoleDao.changePassword(username, passwordEncoder.encodePassword(rawPassword, null));
+    } catch (RuntimeException e) {
+      // the password was right; only its upgrade failed
+      logger.warn(Messages.getInstance().getString(
+          "UpgradingDaoAuthenticationProvider.WARN_0001_PASSWORD_NOT_UPGRADED", username), e); //$NON-NLS-1$
+      return;
+    }
+    // a cached copy would still hold the old password, and be upgraded again at every login
+    getUserCache().removeUserFromCache(username);
+  }
+
+  public void setUserRoleDao(final IUserRoleDao userRoleDao) {
+    this.userRoleDao = userRoleDao;
+  }
+
+}
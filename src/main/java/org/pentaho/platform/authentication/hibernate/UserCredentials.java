@@ -0,0 +1,98 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * The part of a user needed for authentication: the encoded password, the enabled flag and the names of the user's
+ * roles. Instances are immutable and therefore safe to cache and share between threads.
+ *
+ * @see IUserRoleDao#getUserCredentials(String)
+ */
+public final class UserCredentials implements Serializable {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final long serialVersionUID = -6148416367541541364L;
+
+  private static final String FIELD_USERNAME = "username"; //$NON-NLS-1$
+
+  private static final String FIELD_PASSWORD = "password"; //$NON-NLS-1$
+
+  private static final String PASSWORD_MASK = "[PROTECTED]"; //$NON-NLS-1$
+
+  private static final String FIELD_ENABLED = "enabled"; //$NON-NLS-1$
+
+  private static final String FIELD_ROLE_NAMES = "roleNames"; //$NON-NLS-1$
+
+  // ~ Instance fields =================================================================================================
+
+  private final String username;
+
+  private final String password;
+
+  private final boolean enabled;
+
+  private final List<String> roleNames;
+
+  // ~ Constructors ====================================================================================================
+
+  /**
+   * @param roleNames owned by the new instance from now on; must not be modified by the caller afterwards
+   */
+  public UserCredentials(final String username, final String password, final boolean enabled,
+      final List<String> roleNames) {
+    this.username = username;
+    this.password = password;
+    this.enabled = enabled;
+    this.roleNames = Collections.unmodifiableList(roleNames);
+  }
+
+  // ~ Methods =========================================================================================================
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the role names in ascending order; never <code>null</code>
+   */
+  public List<String> getRoleNames() {
+    return roleNames;
+  }
+
+  public String toString() {
+    return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append(FIELD_USERNAME, username).append(
+        FIELD_PASSWORD, PASSWORD_MASK).append(FIELD_ENABLED, enabled).append(FIELD_ROLE_NAMES, roleNames).toString();
+  }
+
+}
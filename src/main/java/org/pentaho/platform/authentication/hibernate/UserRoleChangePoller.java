@@ -0,0 +1,252 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Cache;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+
+/**
+ * Keeps the caches of one server coherent with writes made on any server, by polling the change records written by
+ * {@link HibernateUserRoleDao} when change tracking is enabled.
+ *
+ * <p>Each poll reads the single row of <code>USER_ROLE_GENERATION</code> by primary key. Only when the generation has
+ * advanced are the change records since the last poll read, through the primary key of
+ * <code>USER_ROLE_CHANGES</code>, whose leading column is the generation. The affected users and roles are then evicted
+ * from the Hibernate second-level cache and passed to every {@link IUserRoleChangeListener}.</p>
+ *
+ * <p>The <code>init</code> method starts polling and <code>destroy</code> stops it. Both can be called automatically
+ * if using Spring via the <code>init-method</code> and <code>destroy-method</code> attributes.</p>
+ */
+public class UserRoleChangePoller extends HibernateDaoSupport {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(UserRoleChangePoller.class);
+
+  private static final String SELECT_GENERATION_SQL = "select GENERATION from USER_ROLE_GENERATION where ID = 1"; //$NON-NLS-1$
+
+  private static final String SELECT_CHANGES_SQL = "select GENERATION, KEY_TYPE, KEY_NAME from USER_ROLE_CHANGES " //$NON-NLS-1$
+      + "where GENERATION > :after and GENERATION <= :upTo order by GENERATION"; //$NON-NLS-1$
+
+  public static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
+  // ~ Instance fields =================================================================================================
+
+  private List<IUserRoleChangeListener> listeners = new ArrayList<IUserRoleChangeListener>();
+
+  private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+
+  private boolean evictSecondLevelCache = true;
+
+  private volatile long generation;
+
+  private ScheduledExecutorService executor;
+
+  // ~ Methods =========================================================================================================
+
+  public void init() {
+    generation = readGeneration();
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, "UserRoleChangePoller"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          poll();
+        } catch (RuntimeException e) {
+          // retried on the next poll, since the generation only advances on success
+          logger.warn(e.getMessage(), e);
+        }
+      }
+    }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Dispatches the changes committed since the last poll. Called periodically once <code>init</code> has run.
+   */
+  public synchronized void poll() {
+    final long current = readGeneration();
+    final long last = generation;
+    if (current == last) {
+      return;
+    }
+    if (current < last) {
+      // the tables were recreated
+      dispatchAll();
+      generation = current;
+      return;
+    }
+    @SuppressWarnings("unchecked")
+    List<Object[]> rows = getHibernateTemplate().execute(new HibernateCallback<List<Object[]>>() {
+      public List<Object[]> doInHibernate(Session session) throws HibernateException {
+        return session.createSQLQuery(SELECT_CHANGES_SQL)
+            .addScalar("GENERATION", StandardBasicTypes.LONG) //$NON-NLS-1$
+            .addScalar("KEY_TYPE", StandardBasicTypes.STRING) //$NON-NLS-1$
+            .addScalar("KEY_NAME", StandardBasicTypes.STRING) //$NON-NLS-1$
+            .setLong("after", last) //$NON-NLS-1$
+            .setLong("upTo", current) //$NON-NLS-1$
+            .list();
+      }
+    });
+    if (!isContiguous(rows, last, current)) {
+      dispatchAll();
+    } else {
+      Set<String> usernames = new LinkedHashSet<String>();
+      Set<String> roleNames = new LinkedHashSet<String>();
+      for (Object[] row : rows) {
+        if (HibernateUserRoleDao.USER_KEY_TYPE.equals(row[1])) {
+          usernames.add((String) row[2]);
+        } else {
+          roleNames.add((String) row[2]);
+        }
+      }
+      dispatch(usernames, roleNames);
+    }
+    generation = current;
+  }
+
+  /**
+   * Every generation has at least one record, so a missing generation means its records were purged before this server 
+   * saw them.
+   * 
+   * @return whether the rows, ordered by generation, hold every generation after <code>last</code> up to 
+   *         <code>current</code>
+   */
+  private static boolean isContiguous(final List<Object[]> rows, final long last, final long current) {
+    long previous = last;
+    for (Object[] row : rows) {
+      long rowGeneration = ((Long) row[0]).longValue();
+      if (rowGeneration != previous && rowGeneration != previous + 1) {
+        return false;
+      }
+      previous = rowGeneration;
+    }
+    return previous == current;
+  }
+
+  /**
+   * @return the generation up to which changes have been dispatched
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  private long readGeneration() {
+    Number current = getHibernateTemplate().execute(new HibernateCallback<Number>() {
+      public Number doInHibernate(Session session) throws HibernateException {
+        return (Number) session.createSQLQuery(SELECT_GENERATION_SQL).uniqueResult();
+      }
+    });
+    // no row until the first change
+    return current != null ? current.longValue() : 0;
+  }
+
+  private void dispatch(final Set<String> usernames, final Set<String> roleNames) {
+    if (evictSecondLevelCache) {
+      Cache cache = getSessionFactory().getCache();
+      for (String username : usernames) {
+        cache.evictEntity(CustomUser.class, username);
+        cache.evictCollection(HibernateUserRoleDao.ROLES_COLLECTION, username);
+      }
+      for (String roleName : roleNames) {
+        cache.evictEntity(CustomRole.class, roleName);
+      }
+      cache.evictEntityRegion(CustomUserRoleMapping.class);
+      cache.evictQueryRegion(HibernateUserRoleDao.ALL_USERS_QUERY_CACHE_REGION);
+      cache.evictQueryRegion(HibernateUserRoleDao.ALL_ROLES_QUERY_CACHE_REGION);
+    }
+    for (IUserRoleChangeListener listener : listeners) {
+      try {
+        if (!usernames.isEmpty()) {
+          listener.usersChanged(usernames);
+        }
+        if (!roleNames.isEmpty()) {
+          listener.rolesChanged(roleNames);
+        }
+      } catch (RuntimeException e) {
+        logger.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void dispatchAll() {
+    if (evictSecondLevelCache) {
+      Cache cache = getSessionFactory().getCache();
+      cache.evictEntityRegion(CustomUser.class);
+      cache.evictEntityRegion(CustomRole.class);
+      cache.evictEntityRegion(CustomUserRoleMapping.class);
+      cache.evictCollectionRegion(HibernateUserRoleDao.ROLES_COLLECTION);
+      cache.evictQueryRegion(HibernateUserRoleDao.ALL_USERS_QUERY_CACHE_REGION);
+      cache.evictQueryRegion(HibernateUserRoleDao.ALL_ROLES_QUERY_CACHE_REGION);
+    }
+    for (IUserRoleChangeListener listener : listeners) {
+      try {
+        listener.allChanged();
+      } catch (RuntimeException e) {
+        logger.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  public void setListeners(final List<IUserRoleChangeListener> listeners) {
+    this.listeners = listeners;
+  }
+
+  public void setPollIntervalMillis(final long pollIntervalMillis) {
+    this.pollIntervalMillis = pollIntervalMillis;
+  }
+
+  public long getPollIntervalMillis() {
+    return pollIntervalMillis;
+  }
+
+  /**
+   * Whether changed users and roles are also evicted from the Hibernate second-level cache. Defaults to
+   * <code>true</code>.
+   */
+  public void setEvictSecondLevelCache(final boolean evictSecondLevelCache) {
+    this.evictSecondLevelCache = evictSecondLevelCache;
+  }
+
+}
@@ -0,0 +1,654 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps a {@link IUserRoleDao}, answering <code>isUserInRole</code> from an in-memory index of every user's roles
+ * instead of loading the user. Role names are interned to integer ids and each user's roles are held as a sorted
+ * <code>int</code> array, so a check is two hash lookups and a binary search, with no allocation and no
+ * <code>equals</code> on roles. The members of each role are held as well, so that a role write only touches the 
+ * entries of the users it gives the role to or takes it from.
+ *
+ * <p>The index is built by <code>init</code> (or <code>rebuild</code>) and, until then, checks go to the wrapped DAO.
+ * After every user write that goes through this decorator, the affected users are reloaded from the wrapped DAO and 
+ * their entries replaced; role writes carry their members, so the entries are adjusted in memory, unless the write 
+ * failed, in which case the role's members are reloaded. An <code>execute</code> callback is given a DAO that records 
+ * the users and roles it writes, which are reloaded once it completes. Writes to the tables that bypass this decorator
+ * are not seen until the next <code>rebuild</code>, unless a {@link UserRoleChangePoller} notifies this decorator of 
+ * them.</p>
+ *
+ * <p>Checks never block. Updates of the index are serialized with each other, so that a user's entry always reflects
+ * the latest committed state that was read.</p>
+ */
+public class UserRoleDaoAuthorizationIndexDecorator extends UserRoleDaoDecoratorSupport implements
+    IUserRoleChangeListener {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final int[] NO_ROLES = new int[0];
+
+  private static final int MEMBER_PAGE_SIZE = 500;
+
+  // ~ Instance fields =================================================================================================
+
+  /**
+   * Role ids, assigned on first sight and never reused.
+   */
+  private final ConcurrentMap<String, Integer> roleIds = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Sorted role ids per username; an entry is replaced, never modified. <code>null</code> until built.
+   */
+  private volatile ConcurrentMap<String, int[]> rolesByUser;
+
+  /**
+   * Indexed members per role id, kept in step with {@link #rolesByUser}. Guarded by {@link #updateLock}.
+   */
+  private Map<Integer, Set<String>> usersByRole;
+
+  private final Object updateLock = new Object();
+
+  // ~ Methods =========================================================================================================
+
+  public void init() {
+    rebuild();
+  }
+
+  /**
+   * Rebuilds the index from every user. Writes through this decorator wait for the rebuild to complete.
+   */
+  public void rebuild() {
+    synchronized (updateLock) {
+      final ConcurrentMap<String, int[]> index = new ConcurrentHashMap<String, int[]>();
+      final Map<Integer, Set<String>> members = new HashMap<Integer, Set<String>>();
+      getUserRoleDao().scrollUsers(new UserHandler() {
+        public void handleUser(final IUser user) {
+          int[] roles = toRoleIds(user);
+          index.put(user.getUsername(), roles);
+          for (int roleId : roles) {
+            membersOf(members, roleId).add(user.getUsername());
+          }
+        }
+      });
+      rolesByUser = index;
+      usersByRole = members;
+    }
+  }
+
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    Map<String, int[]> index = rolesByUser;
+    if (index == null || username == null || roleName == null) {
+      return getUserRoleDao().isUserInRole(username, roleName);
+    }
+    int[] roles = index.get(username);
+    if (roles == null) {
+      return false;
+    }
+    Integer roleId = roleIds.get(roleName);
+    return roleId != null && Arrays.binarySearch(roles, roleId.intValue()) >= 0;
+  }
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createUser(newUser);
+    } finally {
+      refreshUser(newUser);
+    }
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteUser(user);
+    } finally {
+      refreshUser(user);
+    }
+  }
+
+  public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateUser(user);
+    } finally {
+      refreshUser(user);
+    }
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().createUsers(newUsers);
+    } finally {
+      refreshUsers(newUsers);
+    }
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().updateUsers(users);
+    } finally {
+      refreshUsers(users);
+    }
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().deleteUsers(users);
+    } finally {
+      refreshUsers(users);
+    }
+  }
+
+  /**
+   * The role's users are its members once the write has succeeded, so the index is adjusted in memory; see 
+   * {@link #setMembers(String, Set)}.
+   */
+  public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createRole(newRole);
+    } catch (RuntimeException e) {
+      reloadRole(newRole);
+      throw e;
+    }
+    setMembers(newRole.getName(), getUsernames(newRole));
+  }
+
+  /**
+   * The members of each role that was created are set as in {@link #createRole(IRole)}.
+   */
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    BatchResult result;
+    try {
+      result = getUserRoleDao().createRoles(newRoles);
+    } catch (RuntimeException e) {
+      reloadRoles(newRoles);
+      throw e;
+    }
+    if (newRoles != null) {
+      for (IRole newRole : newRoles) {
+        if (newRole != null && result.getOutcome(newRole.getName()) == BatchResult.Outcome.CREATED) {
+          setMembers(newRole.getName(), getUsernames(newRole));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The role is given to its users in memory; members missing from its users keep it, as they do in the wrapped DAO.
+   */
+  public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateRole(role);
+    } catch (RuntimeException e) {
+      reloadRole(role);
+      throw e;
+    }
+    addMembers(role.getName(), getUsernames(role));
+  }
+
+  /**
+   * The given users replace the role's members in memory; see {@link #setMembers(String, Set)}.
+   */
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setRoleMembers(roleName, usernames);
+    } catch (RuntimeException e) {
+      reloadMembers(roleName);
+      throw e;
+    }
+    setMembers(roleName, new HashSet<String>(usernames));
+  }
+
+  /**
+   * Deleting a role only takes it away from its members, so their entries are adjusted in memory rather than reloaded.
+   */
+  public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteRole(role);
+    } catch (RuntimeException e) {
+      reloadRole(role);
+      throw e;
+    }
+    removeRole(role.getName());
+  }
+
+  /**
+   * The users and roles the callback writes are reloaded once it completes, whether or not it succeeded.
+   */
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    final UnitOfWorkDao unitOfWorkDao = new UnitOfWorkDao();
+    try {
+      return getUserRoleDao().execute(new IUserRoleDaoCallback<T>() {
+        public T doInUserRoleDao(final IUserRoleDao userRoleDao) {
+          unitOfWorkDao.setUserRoleDao(userRoleDao);
+          return callback.doInUserRoleDao(unitOfWorkDao);
+        }
+      });
+    } finally {
+      refresh(unitOfWorkDao.writtenUsernames);
+      rolesChanged(unitOfWorkDao.writtenRoleNames);
+    }
+  }
+
+  public void usersChanged(final Set<String> usernames) {
+    refresh(usernames);
+  }
+
+  /**
+   * Changes of membership are also reported as changes of the users, but the deletion of a role is not, so the 
+   * members of each changed role are read again, a page at a time, and replace those in the index.
+   */
+  public void rolesChanged(final Set<String> roleNames) {
+    synchronized (updateLock) {
+      if (rolesByUser == null) {
+        return;
+      }
+      for (String roleName : roleNames) {
+        setMembers(roleName, loadMembers(roleName));
+      }
+    }
+  }
+
+  public void allChanged() {
+    if (rolesByUser != null) {
+      rebuild();
+    }
+  }
+
+  /**
+   * @return the number of users in the index, or -1 if it has not been built
+   */
+  public int getIndexedUserCount() {
+    Map<String, int[]> index = rolesByUser;
+    return index != null ? index.size() : -1;
+  }
+
+  /**
+   * Gives the role to the indexed users among the given members and takes it from its other members, without reading
+   * anything from the wrapped DAO. Users missing from the index are skipped: the wrapped DAO only assigns roles to 
+   * users that exist.
+   */
+  private void setMembers(final String roleName, final Set<String> members) {
+    synchronized (updateLock) {
+      if (rolesByUser == null) {
+        return;
+      }
+      int roleId = roleId(roleName);
+      for (String member : new ArrayList<String>(membersOf(usersByRole, roleId))) {
+        if (!members.contains(member)) {
+          revoke(member, roleId);
+        }
+      }
+      for (String member : members) {
+        grant(member, roleId);
+      }
+    }
+  }
+
+  /**
+   * Gives the role to the indexed users among the given members, leaving every other user as it is.
+   */
+  private void addMembers(final String roleName, final Set<String> members) {
+    synchronized (updateLock) {
+      if (rolesByUser == null) {
+        return;
+      }
+      int roleId = roleId(roleName);
+      for (String member : members) {
+        grant(member, roleId);
+      }
+    }
+  }
+
+  private void removeRole(final String roleName) {
+    Integer roleId = roleIds.get(roleName);
+    if (roleId == null) {
+      return;
+    }
+    synchronized (updateLock) {
+      if (rolesByUser == null) {
+        return;
+      }
+      Set<String> members = usersByRole.remove(roleId);
+      if (members != null) {
+        for (String member : members) {
+          revoke(member, roleId.intValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the role to the user's entry, if the user is indexed. Must hold {@link #updateLock}.
+   */
+  private void grant(final String username, final int roleId) {
+    int[] roles = rolesByUser.get(username);
+    if (roles != null) {
+      int position = Arrays.binarySearch(roles, roleId);
+      if (position < 0) {
+        rolesByUser.put(username, insert(roles, -position - 1, roleId));
+        membersOf(usersByRole, roleId).add(username);
+      }
+    }
+  }
+
+  /**
+   * Takes the role from the user's entry. Must hold {@link #updateLock}.
+   */
+  private void revoke(final String username, final int roleId) {
+    int[] roles = rolesByUser.get(username);
+    if (roles != null) {
+      int position = Arrays.binarySearch(roles, roleId);
+      if (position >= 0) {
+        rolesByUser.put(username, remove(roles, position));
+      }
+    }
+    Set<String> members = usersByRole.get(Integer.valueOf(roleId));
+    if (members != null) {
+      members.remove(username);
+    }
+  }
+
+  /**
+   * Replaces the user's entry, or removes it if <code>roles</code> is <code>null</code>, and moves the user between
+   * the members of the roles that differ. Must hold {@link #updateLock}.
+   */
+  private void replace(final String username, final int[] roles) {
+    int[] previous = roles != null ? rolesByUser.put(username, roles) : rolesByUser.remove(username);
+    if (previous != null) {
+      for (int roleId : previous) {
+        if (roles == null || Arrays.binarySearch(roles, roleId) < 0) {
+          Set<String> members = usersByRole.get(Integer.valueOf(roleId));
+          if (members != null) {
+            members.remove(username);
+          }
+        }
+      }
+    }
+    if (roles != null) {
+      for (int roleId : roles) {
+        if (previous == null || Arrays.binarySearch(previous, roleId) < 0) {
+          membersOf(usersByRole, roleId).add(username);
+        }
+      }
+    }
+  }
+
+  private static Set<String> membersOf(final Map<Integer, Set<String>> members, final int roleId) {
+    Integer key = Integer.valueOf(roleId);
+    Set<String> roleMembers = members.get(key);
+    if (roleMembers == null) {
+      roleMembers = new HashSet<String>();
+      members.put(key, roleMembers);
+    }
+    return roleMembers;
+  }
+
+  /**
+   * @return the members of the role as read now from the wrapped DAO; empty if the role does not exist
+   */
+  private Set<String> loadMembers(final String roleName) {
+    Set<String> members = new HashSet<String>();
+    String after = null;
+    List<UserSummary> page;
+    do {
+      page = getUserRoleDao().getUsersInRole(roleName, after, MEMBER_PAGE_SIZE);
+      for (UserSummary member : page) {
+        members.add(member.getUsername());
+      }
+      if (!page.isEmpty()) {
+        after = page.get(page.size() - 1).getUsername();
+      }
+    } while (page.size() == MEMBER_PAGE_SIZE);
+    return members;
+  }
+
+  private static Set<String> getUsernames(final IRole role) {
+    Set<String> usernames = new HashSet<String>();
+    if (role.getUsers() != null) {
+      for (IUser user : role.getUsers()) {
+        usernames.add(user.getUsername());
+      }
+    }
+    return usernames;
+  }
+
+  /**
+   * @return a copy of the sorted role ids with the given id inserted at the given position
+   */
+  private static int[] insert(final int[] roles, final int position, final int roleId) {
+    int[] extended = new int[roles.length + 1];
+    System.arraycopy(roles, 0, extended, 0, position);
+    extended[position] = roleId;
+    System.arraycopy(roles, position, extended, position + 1, roles.length - position);
+    return extended;
+  }
+
+  /**
+   * @return a copy of the role ids without the one at the given position
+   */
+  private static int[] remove(final int[] roles, final int position) {
+    int[] remaining = new int[roles.length - 1];
+    System.arraycopy(roles, 0, remaining, 0, position);
+    System.arraycopy(roles, position + 1, remaining, position, remaining.length - position);
+    return remaining;
+  }
+
+  private void refreshUser(final IUser user) {
+    if (user != null) {
+      refresh(Arrays.asList(user.getUsername()));
+    }
+  }
+
+  private void refreshUsers(final Collection<IUser> users) {
+    if (users != null) {
+      Set<String> usernames = new LinkedHashSet<String>();
+      for (IUser user : users) {
+        if (user != null) {
+          usernames.add(user.getUsername());
+        }
+      }
+      refresh(usernames);
+    }
+  }
+
+  /**
+   * Replaces the entries of the given users with their state as read now from the wrapped DAO.
+   */
+  private void refresh(final Collection<String> usernames) {
+    synchronized (updateLock) {
+      if (rolesByUser == null || usernames.isEmpty()) {
+        return;
+      }
+      Map<String, int[]> updates = new HashMap<String, int[]>();
+      for (String username : usernames) {
+        if (username != null) {
+          IUser user = getUserRoleDao().getUser(username);
+          updates.put(username, user != null ? toRoleIds(user) : null);
+        }
+      }
+      for (Map.Entry<String, int[]> update : updates.entrySet()) {
+        replace(update.getKey(), update.getValue());
+      }
+    }
+  }
+
+  private void reloadRole(final IRole role) {
+    if (role != null) {
+      reloadMembers(role.getName());
+    }
+  }
+
+  private void reloadRoles(final Collection<IRole> roles) {
+    if (roles != null) {
+      for (IRole role : roles) {
+        reloadRole(role);
+      }
+    }
+  }
+
+  /**
+   * Replaces the members of the role with those read now from the wrapped DAO, after a write that may or may not have 
+   * changed them.
+   */
+  private void reloadMembers(final String roleName) {
+    if (roleName != null) {
+      rolesChanged(Collections.singleton(roleName));
+    }
+  }
+
+  private int[] toRoleIds(final IUser user) {
+    Set<IRole> roles = user.getRoles();
+    if (roles == null || roles.isEmpty()) {
+      return NO_ROLES;
+    }
+    int[] ids = new int[roles.size()];
+    int i = 0;
+    for (IRole role : roles) {
+      ids[i++] = roleId(role.getName());
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private int roleId(final String roleName) {
+    Integer id = roleIds.get(roleName);
+    if (id == null) {
+      synchronized (roleIds) {
+        id = roleIds.get(roleName);
+        if (id == null) {
+          id = Integer.valueOf(roleIds.size());
+          roleIds.put(roleName, id);
+        }
+      }
+    }
+    return id.intValue();
+  }
+
+  /**
+   * Passed to an <code>execute</code> callback: records the users and roles it writes.
+   */
+  private static final class UnitOfWorkDao extends UserRoleDaoDecoratorSupport {
+
+    private final Set<String> writtenUsernames = new LinkedHashSet<String>();
+
+    private final Set<String> writtenRoleNames = new LinkedHashSet<String>();
+
+    public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+      addUser(newUser);
+      getUserRoleDao().createUser(newUser);
+    }
+
+    public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+      addUser(user);
+      getUserRoleDao().deleteUser(user);
+    }
+
+    public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+      addUser(user);
+      getUserRoleDao().updateUser(user);
+    }
+
+    public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+      addUsers(newUsers);
+      return getUserRoleDao().createUsers(newUsers);
+    }
+
+    public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+      addUsers(users);
+      return getUserRoleDao().updateUsers(users);
+    }
+
+    public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+      addUsers(users);
+      return getUserRoleDao().deleteUsers(users);
+    }
+
+    public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+      addRole(newRole);
+      getUserRoleDao().createRole(newRole);
+    }
+
+    public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+        UncategorizedUserRoleDaoException {
+      if (newRoles != null) {
+        for (IRole newRole : newRoles) {
+          addRole(newRole);
+        }
+      }
+      return getUserRoleDao().createRoles(newRoles);
+    }
+
+    public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+      addRole(role);
+      getUserRoleDao().updateRole(role);
+    }
+
+    public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+        UncategorizedUserRoleDaoException {
+      if (roleName != null) {
+        writtenRoleNames.add(roleName);
+      }
+      getUserRoleDao().setRoleMembers(roleName, usernames);
+    }
+
+    public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+      addRole(role);
+      getUserRoleDao().deleteRole(role);
+    }
+
+    public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+      return callback.doInUserRoleDao(this);
+    }
+
+    private void addUser(final IUser user) {
+      if (user != null && user.getUsername() != null) {
+        writtenUsernames.add(user.getUsername());
+      }
+    }
+
+    private void addUsers(final Collection<IUser> users) {
+      if (users != null) {
+        for (IUser user : users) {
+          addUser(user);
+        }
+      }
+    }
+
+    private void addRole(final IRole role) {
+      if (role != null && role.getName() != null) {
+        writtenRoleNames.add(role.getName());
+      }
+    }
+
+  }
+
+}
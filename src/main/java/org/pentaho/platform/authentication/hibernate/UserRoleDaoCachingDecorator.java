@@ -0,0 +1,369 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a {@link IUserRoleDao}, keeping in-process read-through caches of the users returned by <code>getUser</code>
+ * and of the credentials returned by <code>getUserCredentials</code>.
+ *
+ * <p>The cache holds immutable snapshots (username, password, description, enabled flag, version and role names) and
+ * hands out a fresh {@link CustomUser} built from the snapshot on every hit, so callers may modify what they get back.
+ * Roles on such a user carry only their names.</p>
+ *
+ * <p>Intended to wrap a {@link UserRoleDaoTransactionDecorator} so that a cache hit never begins a transaction. Every
+ * write that goes through this decorator invalidates the affected entries; writes to the underlying tables that
+ * bypass it become visible once the entries expire, or, with a {@link UserRoleChangePoller} notifying this decorator,
+ * within one poll interval.</p>
+ */
+public class UserRoleDaoCachingDecorator extends UserRoleDaoDecoratorSupport implements IUserRoleChangeListener {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 300;
+
+  // ~ Instance fields =================================================================================================
+
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+
+  private ExpiringLruCache<String, UserSnapshot> userCache = createCache();
+
+  private ExpiringLruCache<String, UserCredentials> credentialsCache = createCache();
+
+  // ~ Methods =========================================================================================================
+
+  public IUser getUser(final String username) throws UncategorizedUserRoleDaoException {
+    UserSnapshot snapshot = userCache.get(username);
+    if (snapshot != null) {
+      return snapshot.toUser();
+    }
+    long generation = userCache.getGeneration(username);
+    IUser user = getUserRoleDao().getUser(username);
+    if (user != null) {
+      userCache.putIfGeneration(username, new UserSnapshot(user), generation);
+    }
+    return user;
+  }
+
+  public UserCredentials getUserCredentials(final String username) throws UncategorizedUserRoleDaoException {
+    UserCredentials credentials = credentialsCache.get(username);
+    if (credentials != null) {
+      return credentials;
+    }
+    long generation = credentialsCache.getGeneration(username);
+    credentials = getUserRoleDao().getUserCredentials(username);
+    if (credentials != null) {
+      credentialsCache.putIfGeneration(username, credentials, generation);
+    }
+    return credentials;
+  }
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createUser(newUser);
+    } finally {
+      evictUser(newUser);
+    }
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteUser(user);
+    } finally {
+      evictUser(user);
+    }
+  }
+
+  public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateUser(user);
+    } finally {
+      evictUser(user);
+    }
+  }
+
+  public void setUserEnabled(final String username, final boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setUserEnabled(username, enabled);
+    } finally {
+      evictUsername(username);
+    }
+  }
+
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().setUsersEnabled(usernames, enabled);
+    } finally {
+      if (usernames != null) {
+        for (String username : usernames) {
+          evictUsername(username);
+        }
+      }
+    }
+  }
+
+  public void changePassword(final String username, final String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().changePassword(username, password);
+    } finally {
+      evictUsername(username);
+    }
+  }
+
+  public void setUserDescription(final String username, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setUserDescription(username, description);
+    } finally {
+      evictUsername(username);
+    }
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().createUsers(newUsers);
+    } finally {
+      evictUsers(newUsers);
+    }
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().updateUsers(users);
+    } finally {
+      evictUsers(users);
+    }
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().deleteUsers(users);
+    } finally {
+      evictUsers(users);
+    }
+  }
+
+  /**
+   * Creating a role can assign it to existing users, so all cached users are invalidated.
+   */
+  public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createRole(newRole);
+    } finally {
+      clear();
+    }
+  }
+
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().createRoles(newRoles);
+    } finally {
+      clear();
+    }
+  }
+
+  public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteRole(role);
+    } finally {
+      clear();
+    }
+  }
+
+  public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateRole(role);
+    } finally {
+      clear();
+    }
+  }
+
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setRoleMembers(roleName, usernames);
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * The callback works on the wrapped DAO, bypassing this cache, so that it sees its own uncommitted changes. Since 
+   * the callback may change any user, the whole cache is invalidated once it has completed.
+   */
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().execute(callback);
+    } finally {
+      clear();
+    }
+  }
+
+  public void usersChanged(final Set<String> usernames) {
+    for (String username : usernames) {
+      evictUsername(username);
+    }
+  }
+
+  /**
+   * Changes of membership are also reported as changes of the users, but the deletion of a role is not, so the users 
+   * holding a changed role are dropped.
+   */
+  public void rolesChanged(final Set<String> roleNames) {
+    userCache.removeAll(new ExpiringLruCache.EntryFilter<String, UserSnapshot>() {
+      public boolean accept(final String username, final UserSnapshot snapshot) {
+        return snapshot.hasAnyRole(roleNames);
+      }
+    });
+    credentialsCache.removeAll(new ExpiringLruCache.EntryFilter<String, UserCredentials>() {
+      public boolean accept(final String username, final UserCredentials credentials) {
+        return !Collections.disjoint(credentials.getRoleNames(), roleNames);
+      }
+    });
+  }
+
+  public void allChanged() {
+    clear();
+  }
+
+  /**
+   * Discards every cached user.
+   */
+  public void clear() {
+    userCache.clear();
+    credentialsCache.clear();
+  }
+
+  public int getSize() {
+    return userCache.size() + credentialsCache.size();
+  }
+
+  public long getHitCount() {
+    return userCache.getHitCount() + credentialsCache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return userCache.getMissCount() + credentialsCache.getMissCount();
+  }
+
+  public void setMaxSize(final int maxSize) {
+    this.maxSize = maxSize;
+    userCache = createCache();
+    credentialsCache = createCache();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setTimeToLiveSeconds(final long timeToLiveSeconds) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    userCache = createCache();
+    credentialsCache = createCache();
+  }
+
+  public long getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+  private void evictUser(final IUser user) {
+    if (user != null) {
+      evictUsername(user.getUsername());
+    }
+  }
+
+  private void evictUsername(final String username) {
+    userCache.remove(username);
+    credentialsCache.remove(username);
+  }
+
+  private void evictUsers(final Collection<IUser> users) {
+    if (users != null) {
+      for (IUser user : users) {
+        evictUser(user);
+      }
+    }
+  }
+
+  private <V> ExpiringLruCache<String, V> createCache() {
+    return new ExpiringLruCache<String, V>(maxSize, TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+  }
+
+  /**
+   * Immutable copy of the cacheable state of a user.
+   */
+  private static final class UserSnapshot {
+
+    private final String username;
+
+    private final String password;
+
+    private final String description;
+
+    private final boolean enabled;
+
+    private final String[] roleNames;
+
+    private final Long version;
+
+    UserSnapshot(final IUser user) {
+      username = user.getUsername();
+      password = user.getPassword();
+      description = user.getDescription();
+      enabled = user.isEnabled();
+      version = user.getVersion();
+      roleNames = new String[user.getRoles().size()];
+      int i = 0;
+      for (IRole role : user.getRoles()) {
+        roleNames[i++] = role.getName();
+      }
+    }
+
+    IUser toUser() {
+      CustomUser user = new CustomUser(username, password, description, enabled);
+      user.setVersion(version);
+      for (String roleName : roleNames) {
+        user.addRole(new CustomRole(roleName));
+      }
+      return user;
+    }
+
+    boolean hasAnyRole(final Set<String> names) {
+      for (String roleName : roleNames) {
+        if (names.contains(roleName)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link IUserRoleDao} so that concurrent lookups of the same user or role share a single load from the
+ * wrapped DAO. The first caller performs the load; callers arriving while it is in flight wait for it and receive
+ * its result (or its exception) instead of starting their own.
+ *
+ * <p>Every caller receives its own copy of the user or role, including the roles of a user, so that no mutable object
+ * is shared between threads. A load is only shared while it is in flight; nothing is retained afterwards. Place this
+ * decorator above a {@link UserRoleDaoTransactionDecorator} so that a coalesced call does not begin a transaction.</p>
+ *
+ * <p>Once a write through this decorator has completed, the loads in flight that it may have overtaken are no longer
+ * shared: a caller that reads after its own write never receives the result of a load that started before it. As in 
+ * {@link UserRoleDaoCachingDecorator}, a user write affects only that user, while a role write, which can change the 
+ * roles of any user, and <code>execute</code> affect every load.</p>
+ */
+public class UserRoleDaoCoalescingDecorator extends UserRoleDaoDecoratorSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private final ConcurrentMap<String, FutureTask<IUser>> usersInFlight =
+      new ConcurrentHashMap<String, FutureTask<IUser>>();
+
+  private final ConcurrentMap<String, FutureTask<UserCredentials>> credentialsInFlight =
+      new ConcurrentHashMap<String, FutureTask<UserCredentials>>();
+
+  private final ConcurrentMap<String, FutureTask<IRole>> rolesInFlight =
+      new ConcurrentHashMap<String, FutureTask<IRole>>();
+
+  private final AtomicLong loadCount = new AtomicLong();
+
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  // ~ Methods =========================================================================================================
+
+  public IUser getUser(final String username) throws UncategorizedUserRoleDaoException {
+    if (username == null) {
+      return getUserRoleDao().getUser(username);
+    }
+    FutureTask<IUser> task = new FutureTask<IUser>(new Callable<IUser>() {
+      public IUser call() {
+        return getUserRoleDao().getUser(username);
+      }
+    });
+    FutureTask<IUser> inFlight = usersInFlight.putIfAbsent(username, task);
+    if (inFlight == null) {
+      return copy(run(usersInFlight, username, task));
+    }
+    coalescedCount.incrementAndGet();
+    return copy(await(inFlight));
+  }
+
+  public UserCredentials getUserCredentials(final String username) throws UncategorizedUserRoleDaoException {
+    if (username == null) {
+      return getUserRoleDao().getUserCredentials(username);
+    }
+    FutureTask<UserCredentials> task = new FutureTask<UserCredentials>(new Callable<UserCredentials>() {
+      public UserCredentials call() {
+        return getUserRoleDao().getUserCredentials(username);
+      }
+    });
+    FutureTask<UserCredentials> inFlight = credentialsInFlight.putIfAbsent(username, task);
+    if (inFlight == null) {
+      return run(credentialsInFlight, username, task);
+    }
+    coalescedCount.incrementAndGet();
+    // immutable, so it can be shared as is
+    return await(inFlight);
+  }
+
+  public IRole getRole(final String name) throws UncategorizedUserRoleDaoException {
+    if (name == null) {
+      return getUserRoleDao().getRole(name);
+    }
+    FutureTask<IRole> task = new FutureTask<IRole>(new Callable<IRole>() {
+      public IRole call() {
+        return getUserRoleDao().getRole(name);
+      }
+    });
+    FutureTask<IRole> inFlight = rolesInFlight.putIfAbsent(name, task);
+    if (inFlight == null) {
+      return copy(run(rolesInFlight, name, task));
+    }
+    coalescedCount.incrementAndGet();
+    return copy(await(inFlight));
+  }
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createUser(newUser);
+    } finally {
+      forgetUser(newUser);
+    }
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteUser(user);
+    } finally {
+      forgetUser(user);
+    }
+  }
+
+  public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateUser(user);
+    } finally {
+      forgetUser(user);
+    }
+  }
+
+  public void setUserEnabled(final String username, final boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setUserEnabled(username, enabled);
+    } finally {
+      forgetUsername(username);
+    }
+  }
+
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().setUsersEnabled(usernames, enabled);
+    } finally {
+      if (usernames != null) {
+        for (String username : usernames) {
+          forgetUsername(username);
+        }
+      }
+    }
+  }
+
+  public void changePassword(final String username, final String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().changePassword(username, password);
+    } finally {
+      forgetUsername(username);
+    }
+  }
+
+  public void setUserDescription(final String username, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setUserDescription(username, description);
+    } finally {
+      forgetUsername(username);
+    }
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().createUsers(newUsers);
+    } finally {
+      forgetUsers(newUsers);
+    }
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().updateUsers(users);
+    } finally {
+      forgetUsers(users);
+    }
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().deleteUsers(users);
+    } finally {
+      forgetUsers(users);
+    }
+  }
+
+  public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().createRole(newRole);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().createRoles(newRoles);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().deleteRole(role);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().updateRole(role);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setRoleMembers(roleName, usernames);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public void setRoleDescription(final String roleName, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    try {
+      getUserRoleDao().setRoleDescription(roleName, description);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    try {
+      return getUserRoleDao().execute(callback);
+    } finally {
+      forgetAll();
+    }
+  }
+
+  /**
+   * @return the number of lookups that went to the wrapped DAO
+   */
+  public long getLoadCount() {
+    return loadCount.get();
+  }
+
+  /**
+   * @return the number of lookups that were answered by a load already in flight
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  private <T> T run(final ConcurrentMap<String, FutureTask<T>> inFlight, final String key, final FutureTask<T> task) {
+    loadCount.incrementAndGet();
+    try {
+      task.run();
+    } finally {
+      inFlight.remove(key, task);
+    }
+    return await(task);
+  }
+
+  /**
+   * Waits for the load to complete, rethrowing whatever it threw. An interrupt does not abandon the wait, since the
+   * load itself cannot be cancelled, but is restored before returning.
+   */
+  private static <T> T await(final FutureTask<T> task) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new UncategorizedUserRoleDaoException(cause.getMessage(), cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops sharing the loads of the user that are in flight; they complete for the callers already waiting on them.
+   */
+  private void forgetUsername(final String username) {
+    if (username != null) {
+      usersInFlight.remove(username);
+      credentialsInFlight.remove(username);
+    }
+  }
+
+  private void forgetUser(final IUser user) {
+    if (user != null) {
+      forgetUsername(user.getUsername());
+    }
+  }
+
+  private void forgetUsers(final Collection<IUser> users) {
+    if (users != null) {
+      for (IUser user : users) {
+        forgetUser(user);
+      }
+    }
+  }
+
+  private void forgetAll() {
+    usersInFlight.clear();
+    credentialsInFlight.clear();
+    rolesInFlight.clear();
+  }
+
+  private static IUser copy(final IUser user) {
+    if (user == null) {
+      return null;
+    }
+    CustomUser copy = new CustomUser(user.getUsername(), user.getPassword(), user.getDescription(), user.isEnabled());
+    copy.setVersion(user.getVersion());
+    Set<IRole> roles = new HashSet<IRole>();
+    for (IRole role : user.getRoles()) {
+      roles.add(new CustomRole(role));
+    }
+    copy.setRoles(roles);
+    return copy;
+  }
+
+  private static IRole copy(final IRole role) {
+    return role != null ? new CustomRole(role) : null;
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Convenience superclass for decorators of {@link IUserRoleDao}. Every operation is simply delegated to the wrapped
+ * DAO; subclasses override only the operations they are interested in.
+ *
+ * @see UserRoleDaoTransactionDecorator
+ */
+public abstract class UserRoleDaoDecoratorSupport implements IUserRoleDao {
+
+  /**
+   * The wrapped DAO to which to delegate.
+   */
+  private IUserRoleDao userRoleDao;
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    userRoleDao.createUser(newUser);
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    userRoleDao.deleteUser(user);
+  }
+
+  public IUser getUser(final String name) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getUser(name);
+  }
+
+  public UserCredentials getUserCredentials(final String name) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getUserCredentials(name);
+  }
+
+  public List<IUser> getUsers() throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getUsers();
+  }
+
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.isUserInRole(username, roleName);
+  }
+
+  public List<IUser> getUsers(final String afterUsername, final int limit) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getUsers(afterUsername, limit);
+  }
+
+  public void scrollUsers(final UserHandler handler) throws UncategorizedUserRoleDaoException {
+    userRoleDao.scrollUsers(handler);
+  }
+
+  public void scrollUsernames(final UsernameHandler handler) throws UncategorizedUserRoleDaoException {
+    userRoleDao.scrollUsernames(handler);
+  }
+
+  public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    userRoleDao.updateUser(user);
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.createUsers(newUsers);
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.updateUsers(users);
+  }
+
+  public void setUserEnabled(final String username, final boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    userRoleDao.setUserEnabled(username, enabled);
+  }
+
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    return userRoleDao.setUsersEnabled(usernames, enabled);
+  }
+
+  public void changePassword(final String username, final String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    userRoleDao.changePassword(username, password);
+  }
+
+  public void setUserDescription(final String username, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    userRoleDao.setUserDescription(username, description);
+  }
+
+  public void setRoleDescription(final String roleName, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    userRoleDao.setRoleDescription(roleName, description);
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.deleteUsers(users);
+  }
+
+  public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    userRoleDao.createRole(newRole);
+  }
+
+  public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    userRoleDao.deleteRole(role);
+  }
+
+  public IRole getRole(final String name) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getRole(name);
+  }
+
+  public List<IRole> getRoles() throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getRoles();
+  }
+
+  public List<IRole> getRoles(final String afterName, final int limit) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getRoles(afterName, limit);
+  }
+
+  public List<UserSummary> getUsersInRole(final String roleName, final String afterUsername, final int limit)
+      throws UncategorizedUserRoleDaoException {
+    return userRoleDao.getUsersInRole(roleName, afterUsername, limit);
+  }
+
+  public long countUsersInRole(final String roleName) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.countUsersInRole(roleName);
+  }
+
+  public List<UserSummary> findUsers(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.findUsers(prefix, limit);
+  }
+
+  public List<IRole> findRoles(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.findRoles(prefix, limit);
+  }
+
+  public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    userRoleDao.updateRole(role);
+  }
+
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    userRoleDao.setRoleMembers(roleName, usernames);
+  }
+
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    return userRoleDao.createRoles(newRoles);
+  }
+
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    return userRoleDao.execute(callback);
+  }
+
+  public void setUserRoleDao(final IUserRoleDao userRoleDao) {
+    this.userRoleDao = userRoleDao;
+  }
+
+  protected IUserRoleDao getUserRoleDao() {
+    return userRoleDao;
+  }
+
+}
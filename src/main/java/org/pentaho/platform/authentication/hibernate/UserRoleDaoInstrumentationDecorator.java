@@ -0,0 +1,545 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Wraps a {@link IUserRoleDao}, recording for every operation the number of calls, the number of calls that failed
+ * and a histogram of call durations. Recording is lock-free and allocation-free, so the decorator can stay enabled
+ * on the login path.
+ *
+ * <p>Placed directly above the {@link HibernateUserRoleDao}, the figures are database time; placed above a
+ * {@link UserRoleDaoTransactionDecorator}, they include transaction overhead. Two instances, one at each level, tell
+ * the two apart.</p>
+ *
+ * <p>When <code>init</code> is called, one {@link MethodStatisticsMBean} per operation is registered with the
+ * platform MBean server under <code>objectNamePrefix</code> plus <code>,method=&lt;operation&gt;</code>. Call
+ * <code>destroy</code> to unregister them. Both can be called automatically if using Spring via the
+ * <code>init-method</code> and <code>destroy-method</code> attributes. Each instance needs its own prefix: 
+ * <code>init</code> fails, leaving nothing registered, if the names are taken.</p>
+ */
+public class UserRoleDaoInstrumentationDecorator extends UserRoleDaoDecoratorSupport {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(UserRoleDaoInstrumentationDecorator.class);
+
+  public static final String DEFAULT_OBJECT_NAME_PREFIX = "org.pentaho.platform.authentication.hibernate:type=UserRoleDao"; //$NON-NLS-1$
+
+  // ~ Instance fields =================================================================================================
+
+  private final Map<String, MethodStatistics> statisticsByMethod = new LinkedHashMap<String, MethodStatistics>();
+
+  private final MethodStatistics createUserStatistics = statistics("createUser"); //$NON-NLS-1$
+
+  private final MethodStatistics deleteUserStatistics = statistics("deleteUser"); //$NON-NLS-1$
+
+  private final MethodStatistics getUserStatistics = statistics("getUser"); //$NON-NLS-1$
+
+  private final MethodStatistics getUserCredentialsStatistics = statistics("getUserCredentials"); //$NON-NLS-1$
+
+  private final MethodStatistics getUsersStatistics = statistics("getUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics isUserInRoleStatistics = statistics("isUserInRole"); //$NON-NLS-1$
+
+  private final MethodStatistics getUsersPageStatistics = statistics("getUsersPage"); //$NON-NLS-1$
+
+  private final MethodStatistics scrollUsersStatistics = statistics("scrollUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics scrollUsernamesStatistics = statistics("scrollUsernames"); //$NON-NLS-1$
+
+  private final MethodStatistics updateUserStatistics = statistics("updateUser"); //$NON-NLS-1$
+
+  private final MethodStatistics createUsersStatistics = statistics("createUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics updateUsersStatistics = statistics("updateUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics deleteUsersStatistics = statistics("deleteUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics setUserEnabledStatistics = statistics("setUserEnabled"); //$NON-NLS-1$
+
+  private final MethodStatistics setUsersEnabledStatistics = statistics("setUsersEnabled"); //$NON-NLS-1$
+
+  private final MethodStatistics changePasswordStatistics = statistics("changePassword"); //$NON-NLS-1$
+
+  private final MethodStatistics setUserDescriptionStatistics = statistics("setUserDescription"); //$NON-NLS-1$
+
+  private final MethodStatistics setRoleDescriptionStatistics = statistics("setRoleDescription"); //$NON-NLS-1$
+
+  private final MethodStatistics createRoleStatistics = statistics("createRole"); //$NON-NLS-1$
+
+  private final MethodStatistics deleteRoleStatistics = statistics("deleteRole"); //$NON-NLS-1$
+
+  private final MethodStatistics getRoleStatistics = statistics("getRole"); //$NON-NLS-1$
+
+  private final MethodStatistics getRolesStatistics = statistics("getRoles"); //$NON-NLS-1$
+
+  private final MethodStatistics getRolesPageStatistics = statistics("getRolesPage"); //$NON-NLS-1$
+
+  private final MethodStatistics getUsersInRoleStatistics = statistics("getUsersInRole"); //$NON-NLS-1$
+
+  private final MethodStatistics countUsersInRoleStatistics = statistics("countUsersInRole"); //$NON-NLS-1$
+
+  private final MethodStatistics findUsersStatistics = statistics("findUsers"); //$NON-NLS-1$
+
+  private final MethodStatistics findRolesStatistics = statistics("findRoles"); //$NON-NLS-1$
+
+  private final MethodStatistics updateRoleStatistics = statistics("updateRole"); //$NON-NLS-1$
+
+  private final MethodStatistics setRoleMembersStatistics = statistics("setRoleMembers"); //$NON-NLS-1$
+
+  private final MethodStatistics createRolesStatistics = statistics("createRoles"); //$NON-NLS-1$
+
+  private final MethodStatistics executeStatistics = statistics("execute"); //$NON-NLS-1$
+
+  private String objectNamePrefix = DEFAULT_OBJECT_NAME_PREFIX;
+
+  private MBeanServer mbeanServer;
+
+  private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+  // ~ Methods =========================================================================================================
+
+  /**
+   * Registers the statistics of every operation as an MBean. If any registration fails, those already made are 
+   * undone.
+   */
+  public void init() throws JMException {
+    if (mbeanServer == null) {
+      mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+    boolean registered = false;
+    try {
+      for (MethodStatistics statistics : statisticsByMethod.values()) {
+        ObjectName name = new ObjectName(objectNamePrefix + ",method=" + statistics.getName()); //$NON-NLS-1$
+        try {
+          mbeanServer.registerMBean(statistics, name);
+        } catch (InstanceAlreadyExistsException e) {
+          throw new InstanceAlreadyExistsException(name + " is already registered; give each " //$NON-NLS-1$
+              + "UserRoleDaoInstrumentationDecorator its own objectNamePrefix"); //$NON-NLS-1$
+        }
+        registeredNames.add(name);
+      }
+      registered = true;
+    } finally {
+      if (!registered) {
+        destroy();
+      }
+    }
+  }
+
+  /**
+   * Unregisters the MBeans registered by <code>init</code>.
+   */
+  public void destroy() {
+    for (ObjectName name : registeredNames) {
+      try {
+        mbeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn(e.getMessage(), e);
+      }
+    }
+    registeredNames.clear();
+  }
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().createUser(newUser);
+    } catch (RuntimeException e) {
+      throw createUserStatistics.failed(e);
+    } finally {
+      createUserStatistics.completed(start);
+    }
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().deleteUser(user);
+    } catch (RuntimeException e) {
+      throw deleteUserStatistics.failed(e);
+    } finally {
+      deleteUserStatistics.completed(start);
+    }
+  }
+
+  public IUser getUser(final String name) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getUser(name);
+    } catch (RuntimeException e) {
+      throw getUserStatistics.failed(e);
+    } finally {
+      getUserStatistics.completed(start);
+    }
+  }
+
+  public UserCredentials getUserCredentials(final String name) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getUserCredentials(name);
+    } catch (RuntimeException e) {
+      throw getUserCredentialsStatistics.failed(e);
+    } finally {
+      getUserCredentialsStatistics.completed(start);
+    }
+  }
+
+  public List<IUser> getUsers() throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getUsers();
+    } catch (RuntimeException e) {
+      throw getUsersStatistics.failed(e);
+    } finally {
+      getUsersStatistics.completed(start);
+    }
+  }
+
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().isUserInRole(username, roleName);
+    } catch (RuntimeException e) {
+      throw isUserInRoleStatistics.failed(e);
+    } finally {
+      isUserInRoleStatistics.completed(start);
+    }
+  }
+
+  public List<IUser> getUsers(final String afterUsername, final int limit) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getUsers(afterUsername, limit);
+    } catch (RuntimeException e) {
+      throw getUsersPageStatistics.failed(e);
+    } finally {
+      getUsersPageStatistics.completed(start);
+    }
+  }
+
+  public void scrollUsers(final UserHandler handler) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().scrollUsers(handler);
+    } catch (RuntimeException e) {
+      throw scrollUsersStatistics.failed(e);
+    } finally {
+      scrollUsersStatistics.completed(start);
+    }
+  }
+
+  public void scrollUsernames(final UsernameHandler handler) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().scrollUsernames(handler);
+    } catch (RuntimeException e) {
+      throw scrollUsernamesStatistics.failed(e);
+    } finally {
+      scrollUsernamesStatistics.completed(start);
+    }
+  }
+
+  public void updateUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().updateUser(user);
+    } catch (RuntimeException e) {
+      throw updateUserStatistics.failed(e);
+    } finally {
+      updateUserStatistics.completed(start);
+    }
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().createUsers(newUsers);
+    } catch (RuntimeException e) {
+      throw createUsersStatistics.failed(e);
+    } finally {
+      createUsersStatistics.completed(start);
+    }
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().updateUsers(users);
+    } catch (RuntimeException e) {
+      throw updateUsersStatistics.failed(e);
+    } finally {
+      updateUsersStatistics.completed(start);
+    }
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().deleteUsers(users);
+    } catch (RuntimeException e) {
+      throw deleteUsersStatistics.failed(e);
+    } finally {
+      deleteUsersStatistics.completed(start);
+    }
+  }
+
+  public void setUserEnabled(final String username, final boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().setUserEnabled(username, enabled);
+    } catch (RuntimeException e) {
+      throw setUserEnabledStatistics.failed(e);
+    } finally {
+      setUserEnabledStatistics.completed(start);
+    }
+  }
+
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().setUsersEnabled(usernames, enabled);
+    } catch (RuntimeException e) {
+      throw setUsersEnabledStatistics.failed(e);
+    } finally {
+      setUsersEnabledStatistics.completed(start);
+    }
+  }
+
+  public void changePassword(final String username, final String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().changePassword(username, password);
+    } catch (RuntimeException e) {
+      throw changePasswordStatistics.failed(e);
+    } finally {
+      changePasswordStatistics.completed(start);
+    }
+  }
+
+  public void setUserDescription(final String username, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().setUserDescription(username, description);
+    } catch (RuntimeException e) {
+      throw setUserDescriptionStatistics.failed(e);
+    } finally {
+      setUserDescriptionStatistics.completed(start);
+    }
+  }
+
+  public void setRoleDescription(final String roleName, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().setRoleDescription(roleName, description);
+    } catch (RuntimeException e) {
+      throw setRoleDescriptionStatistics.failed(e);
+    } finally {
+      setRoleDescriptionStatistics.completed(start);
+    }
+  }
+
+  public void createRole(final IRole newRole) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().createRole(newRole);
+    } catch (RuntimeException e) {
+      throw createRoleStatistics.failed(e);
+    } finally {
+      createRoleStatistics.completed(start);
+    }
+  }
+
+  public void deleteRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().deleteRole(role);
+    } catch (RuntimeException e) {
+      throw deleteRoleStatistics.failed(e);
+    } finally {
+      deleteRoleStatistics.completed(start);
+    }
+  }
+
+  public IRole getRole(final String name) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getRole(name);
+    } catch (RuntimeException e) {
+      throw getRoleStatistics.failed(e);
+    } finally {
+      getRoleStatistics.completed(start);
+    }
+  }
+
+  public List<IRole> getRoles() throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getRoles();
+    } catch (RuntimeException e) {
+      throw getRolesStatistics.failed(e);
+    } finally {
+      getRolesStatistics.completed(start);
+    }
+  }
+
+  public List<IRole> getRoles(final String afterName, final int limit) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getRoles(afterName, limit);
+    } catch (RuntimeException e) {
+      throw getRolesPageStatistics.failed(e);
+    } finally {
+      getRolesPageStatistics.completed(start);
+    }
+  }
+
+  public List<UserSummary> getUsersInRole(final String roleName, final String afterUsername, final int limit)
+      throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().getUsersInRole(roleName, afterUsername, limit);
+    } catch (RuntimeException e) {
+      throw getUsersInRoleStatistics.failed(e);
+    } finally {
+      getUsersInRoleStatistics.completed(start);
+    }
+  }
+
+  public long countUsersInRole(final String roleName) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().countUsersInRole(roleName);
+    } catch (RuntimeException e) {
+      throw countUsersInRoleStatistics.failed(e);
+    } finally {
+      countUsersInRoleStatistics.completed(start);
+    }
+  }
+
+  public List<UserSummary> findUsers(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().findUsers(prefix, limit);
+    } catch (RuntimeException e) {
+      throw findUsersStatistics.failed(e);
+    } finally {
+      findUsersStatistics.completed(start);
+    }
+  }
+
+  public List<IRole> findRoles(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().findRoles(prefix, limit);
+    } catch (RuntimeException e) {
+      throw findRolesStatistics.failed(e);
+    } finally {
+      findRolesStatistics.completed(start);
+    }
+  }
+
+  public void updateRole(final IRole role) throws NotFoundException, UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().updateRole(role);
+    } catch (RuntimeException e) {
+      throw updateRoleStatistics.failed(e);
+    } finally {
+      updateRoleStatistics.completed(start);
+    }
+  }
+
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      getUserRoleDao().setRoleMembers(roleName, usernames);
+    } catch (RuntimeException e) {
+      throw setRoleMembersStatistics.failed(e);
+    } finally {
+      setRoleMembersStatistics.completed(start);
+    }
+  }
+
+  public BatchResult createRoles(final Collection<IRole> newRoles) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().createRoles(newRoles);
+    } catch (RuntimeException e) {
+      throw createRolesStatistics.failed(e);
+    } finally {
+      createRolesStatistics.completed(start);
+    }
+  }
+
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    final long start = System.nanoTime();
+    try {
+      return getUserRoleDao().execute(callback);
+    } catch (RuntimeException e) {
+      throw executeStatistics.failed(e);
+    } finally {
+      executeStatistics.completed(start);
+    }
+  }
+
+  /**
+   * @return the statistics of every operation, keyed by operation name
+   */
+  public Map<String, MethodStatistics> getStatistics() {
+    return Collections.unmodifiableMap(statisticsByMethod);
+  }
+
+  public void setObjectNamePrefix(final String objectNamePrefix) {
+    this.objectNamePrefix = objectNamePrefix;
+  }
+
+  public void setMbeanServer(final MBeanServer mbeanServer) {
+    this.mbeanServer = mbeanServer;
+  }
+
+  private MethodStatistics statistics(final String method) {
+    MethodStatistics statistics = new MethodStatistics(method);
+    statisticsByMethod.put(method, statistics);
+    return statistics;
+  }
+
+}
@@ -0,0 +1,556 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Wraps a {@link IUserRoleDao} so that lookups of usernames that do not exist are answered without reaching the
+ * wrapped DAO. Two mechanisms are used:
+ *
+ * <ul>
+ * <li>a miss cache, which remembers for <code>timeToLiveSeconds</code> each username that a lookup found absent;</li>
+ * <li>optionally, a {@link CountingBloomFilter} of all usernames, built by <code>init</code>, which rejects a
+ * username that definitely does not exist before it has ever been looked up.</li>
+ * </ul>
+ *
+ * <p>Both only ever claim absence for usernames that were absent. Users created through this decorator, including
+ * those created by an <code>execute</code> callback, are added to the filter before they are written and removed from 
+ * the miss cache afterwards; a filter being built also starts with the users whose creation is still in progress, 
+ * which its scan may not see. A user created elsewhere (directly in the tables, or by another server sharing them) is 
+ * rejected until the next <code>rebuild</code>. When the tables are shared, either have a 
+ * {@link UserRoleChangePoller} notify this decorator, which adds every user changed anywhere to the filter (so a user 
+ * created on another server is only rejected here for up to one poll interval), or turn the filter off and rely on 
+ * the miss cache alone, whose entries expire.</p>
+ *
+ * <p>A deleted user is only removed from the filter if this decorator added it since the filter was built: the
+ * filter cannot tell the users its scan found from those it merely takes for them, and removing a username that was 
+ * never added would make it reject others. Any other deleted user stays in the filter, which only costs a lookup; once 
+ * a tenth of <code>expectedUserCount</code> have accumulated, a new filter is built in the background. The same 
+ * happens on <code>allChanged</code>, after which lookups go to the wrapped DAO until the new filter is complete. 
+ * <code>init</code> builds the first filter and starts the thread that builds the next ones; <code>destroy</code> 
+ * stops it.</p>
+ */
+public class UserRoleDaoNegativeCacheDecorator extends UserRoleDaoDecoratorSupport implements
+    IUserRoleChangeListener {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Log logger = LogFactory.getLog(UserRoleDaoNegativeCacheDecorator.class);
+
+  public static final int DEFAULT_MAX_SIZE = 100000;
+
+  public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 60;
+
+  public static final int DEFAULT_EXPECTED_USER_COUNT = 100000;
+
+  public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+  // ~ Instance fields =================================================================================================
+
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+
+  private boolean bloomFilterEnabled = true;
+
+  private int expectedUserCount = DEFAULT_EXPECTED_USER_COUNT;
+
+  private double falsePositiveProbability = DEFAULT_FALSE_POSITIVE_PROBABILITY;
+
+  private ExpiringLruCache<String, Boolean> missCache = createCache();
+
+  /**
+   * The filter consulted by lookups; <code>null</code> until built.
+   */
+  private volatile CountingBloomFilter bloomFilter;
+
+  /**
+   * The filter being built by <code>rebuild</code>, if any. Users created meanwhile are added to it too.
+   */
+  private volatile CountingBloomFilter pendingBloomFilter;
+
+  /**
+   * Whether a filter was built, so that a discarded one is replaced.
+   */
+  private volatile boolean bloomFilterBuilt;
+
+  /**
+   * Usernames added to {@link #bloomFilter} since it was built, which can safely be removed from it again.
+   */
+  private Set<String> added = new HashSet<String>();
+
+  /**
+   * Usernames added to {@link #pendingBloomFilter} since it was started.
+   */
+  private Set<String> pendingAdded;
+
+  /**
+   * Number of deleted users left in {@link #bloomFilter}.
+   */
+  private int staleCount;
+
+  /**
+   * Incremented whenever the filter is discarded, so that a build started before does not replace it.
+   */
+  private long discardCount;
+
+  /**
+   * Usernames being created through this decorator, one entry per creation in progress.
+   */
+  private final List<String> creating = new ArrayList<String>();
+
+  /**
+   * Guards {@link #creating} and every change of the filters, so that no addition falls between a filter being 
+   * started and it being switched to.
+   */
+  private final Object filterLock = new Object();
+
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+  private ExecutorService executor;
+
+  // ~ Methods =========================================================================================================
+
+  /**
+   * Builds the filter, if enabled, and starts the thread that builds the next ones.
+   */
+  public void init() {
+    if (bloomFilterEnabled) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable runnable) {
+          Thread thread = new Thread(runnable, "UserRoleDaoNegativeCacheDecorator"); //$NON-NLS-1$
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      rebuild();
+    }
+  }
+
+  public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Builds a new filter from every username and switches lookups over to it once complete. The filter starts with the 
+   * users being created, whose rows the scan may not see yet, and receives every user created meanwhile. Users 
+   * deleted while the filter is built may remain in it, which only costs a lookup. If the filter is discarded while 
+   * this one is built, this one is discarded too.
+   */
+  public synchronized void rebuild() {
+    final CountingBloomFilter filter = new CountingBloomFilter(expectedUserCount, falsePositiveProbability);
+    long discards;
+    synchronized (filterLock) {
+      for (String username : creating) {
+        filter.add(username);
+      }
+      pendingBloomFilter = filter;
+      pendingAdded = new HashSet<String>(creating);
+      discards = discardCount;
+    }
+    final int[] count = new int[1];
+    try {
+      getUserRoleDao().scrollUsernames(new UsernameHandler() {
+        public void handleUsername(final String username) {
+          filter.add(username);
+          count[0]++;
+        }
+      });
+    } catch (RuntimeException e) {
+      synchronized (filterLock) {
+        pendingBloomFilter = null;
+        pendingAdded = null;
+      }
+      throw e;
+    }
+    synchronized (filterLock) {
+      if (discardCount == discards) {
+        bloomFilter = filter;
+        added = pendingAdded;
+        staleCount = 0;
+      }
+      pendingBloomFilter = null;
+      pendingAdded = null;
+    }
+    bloomFilterBuilt = true;
+    if (count[0] > expectedUserCount) {
+      logger.warn("Bloom filter sized for " + expectedUserCount + " users holds " + count[0] //$NON-NLS-1$ //$NON-NLS-2$
+          + "; increase expectedUserCount"); //$NON-NLS-1$
+    }
+  }
+
+  public IUser getUser(final String username) throws UncategorizedUserRoleDaoException {
+    if (isKnownAbsent(username)) {
+      return null;
+    }
+    long generation = missCache.getGeneration(username);
+    IUser user = getUserRoleDao().getUser(username);
+    if (user == null && username != null) {
+      missCache.putIfGeneration(username, Boolean.TRUE, generation);
+    }
+    return user;
+  }
+
+  public UserCredentials getUserCredentials(final String username) throws UncategorizedUserRoleDaoException {
+    if (isKnownAbsent(username)) {
+      return null;
+    }
+    long generation = missCache.getGeneration(username);
+    UserCredentials credentials = getUserRoleDao().getUserCredentials(username);
+    if (credentials == null && username != null) {
+      missCache.putIfGeneration(username, Boolean.TRUE, generation);
+    }
+    return credentials;
+  }
+
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    if (isKnownAbsent(username)) {
+      return false;
+    }
+    return getUserRoleDao().isUserInRole(username, roleName);
+  }
+
+  public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+    // added before the write, so that no lookup can be rejected once the user is visible
+    beginCreate(newUser);
+    try {
+      getUserRoleDao().createUser(newUser);
+    } finally {
+      endCreate(newUser);
+    }
+  }
+
+  public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+    getUserRoleDao().deleteUser(user);
+    removeFromFilter(user.getUsername());
+  }
+
+  public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+    if (newUsers != null) {
+      for (IUser newUser : newUsers) {
+        beginCreate(newUser);
+      }
+    }
+    try {
+      return getUserRoleDao().createUsers(newUsers);
+    } finally {
+      if (newUsers != null) {
+        for (IUser newUser : newUsers) {
+          endCreate(newUser);
+        }
+      }
+    }
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+    BatchResult result = getUserRoleDao().deleteUsers(users);
+    for (Map.Entry<String, BatchResult.Outcome> outcome : result.getOutcomes().entrySet()) {
+      if (outcome.getValue() == BatchResult.Outcome.DELETED) {
+        removeFromFilter(outcome.getKey());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The callback is given a DAO that maintains the filter and the miss cache like this decorator does, except that 
+   * deleted users are only removed from the filter once the unit of work has succeeded.
+   */
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    final UnitOfWorkDao unitOfWorkDao = new UnitOfWorkDao();
+    T result = getUserRoleDao().execute(new IUserRoleDaoCallback<T>() {
+      public T doInUserRoleDao(final IUserRoleDao userRoleDao) {
+        unitOfWorkDao.setUserRoleDao(userRoleDao);
+        return callback.doInUserRoleDao(unitOfWorkDao);
+      }
+    });
+    for (String username : unitOfWorkDao.deleted) {
+      removeFromFilter(username);
+    }
+    return result;
+  }
+
+  /**
+   * A changed user may have been created, so it is added to the filter; if it was deleted instead, the filter merely
+   * keeps a false positive.
+   */
+  public void usersChanged(final Set<String> usernames) {
+    for (String username : usernames) {
+      addToFilters(username);
+      missCache.remove(username);
+    }
+  }
+
+  public void rolesChanged(final Set<String> roleNames) {
+  }
+
+  /**
+   * Stops rejecting users by a filter that may miss some of them and, if a filter was built before, builds a new one in
+   * the background.
+   */
+  public void allChanged() {
+    missCache.clear();
+    synchronized (filterLock) {
+      bloomFilter = null;
+      added = new HashSet<String>();
+      staleCount = 0;
+      discardCount++;
+    }
+    if (bloomFilterBuilt) {
+      scheduleRebuild();
+    }
+  }
+
+  /**
+   * @return the number of lookups answered without reaching the wrapped DAO
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public int getMissCacheSize() {
+    return missCache.size();
+  }
+
+  /**
+   * Discards every remembered miss.
+   */
+  public void clear() {
+    missCache.clear();
+  }
+
+  public void setMaxSize(final int maxSize) {
+    this.maxSize = maxSize;
+    missCache = createCache();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setTimeToLiveSeconds(final long timeToLiveSeconds) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    missCache = createCache();
+  }
+
+  public long getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+  public void setBloomFilterEnabled(final boolean bloomFilterEnabled) {
+    this.bloomFilterEnabled = bloomFilterEnabled;
+  }
+
+  public boolean isBloomFilterEnabled() {
+    return bloomFilterEnabled;
+  }
+
+  /**
+   * Number of users the filter is sized for. With more users than this the filter still never rejects an existing
+   * user, but lets more absent ones through.
+   */
+  public void setExpectedUserCount(final int expectedUserCount) {
+    this.expectedUserCount = expectedUserCount;
+  }
+
+  public int getExpectedUserCount() {
+    return expectedUserCount;
+  }
+
+  public void setFalsePositiveProbability(final double falsePositiveProbability) {
+    this.falsePositiveProbability = falsePositiveProbability;
+  }
+
+  public double getFalsePositiveProbability() {
+    return falsePositiveProbability;
+  }
+
+  private boolean isKnownAbsent(final String username) {
+    if (username == null) {
+      return false;
+    }
+    CountingBloomFilter filter = bloomFilter;
+    if ((filter != null && !filter.mightContain(username)) || missCache.get(username) != null) {
+      rejectedCount.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the user to the filters and records that its creation is in progress.
+   */
+  private void beginCreate(final IUser newUser) {
+    if (newUser == null || newUser.getUsername() == null) {
+      return;
+    }
+    synchronized (filterLock) {
+      creating.add(newUser.getUsername());
+      addToFilters(newUser.getUsername());
+    }
+  }
+
+  private void endCreate(final IUser newUser) {
+    if (newUser == null || newUser.getUsername() == null) {
+      return;
+    }
+    synchronized (filterLock) {
+      creating.remove(newUser.getUsername());
+    }
+    missCache.remove(newUser.getUsername());
+  }
+
+  private void addToFilters(final String username) {
+    synchronized (filterLock) {
+      CountingBloomFilter filter = bloomFilter;
+      if (filter != null && added.add(username)) {
+        filter.add(username);
+      }
+      CountingBloomFilter pending = pendingBloomFilter;
+      if (pending != null && pendingAdded.add(username)) {
+        pending.add(username);
+      }
+    }
+  }
+
+  /**
+   * Only the filter in use is updated, and only if this decorator added the user to it; otherwise the user is left in
+   * it, and a new filter is built once too many have been. A filter being built may or may not contain the user yet, 
+   * so it keeps it.
+   */
+  private void removeFromFilter(final String username) {
+    boolean rebuildNeeded = false;
+    synchronized (filterLock) {
+      CountingBloomFilter filter = bloomFilter;
+      if (filter == null) {
+        return;
+      }
+      if (added.remove(username)) {
+        filter.remove(username);
+      } else {
+        staleCount++;
+        rebuildNeeded = staleCount > expectedUserCount / 10;
+      }
+    }
+    if (rebuildNeeded) {
+      scheduleRebuild();
+    }
+  }
+
+  /**
+   * Builds a new filter on the background thread, unless one is already waiting to be built.
+   */
+  private void scheduleRebuild() {
+    if (executor == null || !rebuildScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          rebuildScheduled.set(false);
+          try {
+            rebuild();
+          } catch (RuntimeException e) {
+            logger.warn(e.getMessage(), e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rebuildScheduled.set(false);
+    }
+  }
+
+  private ExpiringLruCache<String, Boolean> createCache() {
+    return new ExpiringLruCache<String, Boolean>(maxSize, TimeUnit.SECONDS.toMillis(timeToLiveSeconds));
+  }
+
+  /**
+   * Passed to an <code>execute</code> callback: adds the users it creates to the filters and records those it deletes.
+   */
+  private final class UnitOfWorkDao extends UserRoleDaoDecoratorSupport {
+
+    private final List<String> deleted = new ArrayList<String>();
+
+    public void createUser(final IUser newUser) throws AlreadyExistsException, UncategorizedUserRoleDaoException {
+      beginCreate(newUser);
+      try {
+        getUserRoleDao().createUser(newUser);
+      } finally {
+        endCreate(newUser);
+      }
+    }
+
+    public BatchResult createUsers(final Collection<IUser> newUsers) throws UncategorizedUserRoleDaoException {
+      if (newUsers != null) {
+        for (IUser newUser : newUsers) {
+          beginCreate(newUser);
+        }
+      }
+      try {
+        return getUserRoleDao().createUsers(newUsers);
+      } finally {
+        if (newUsers != null) {
+          for (IUser newUser : newUsers) {
+            endCreate(newUser);
+          }
+        }
+      }
+    }
+
+    public void deleteUser(final IUser user) throws NotFoundException, UncategorizedUserRoleDaoException {
+      getUserRoleDao().deleteUser(user);
+      deleted.add(user.getUsername());
+    }
+
+    public BatchResult deleteUsers(final Collection<IUser> users) throws UncategorizedUserRoleDaoException {
+      BatchResult result = getUserRoleDao().deleteUsers(users);
+      for (Map.Entry<String, BatchResult.Outcome> outcome : result.getOutcomes().entrySet()) {
+        if (outcome.getValue() == BatchResult.Outcome.DELETED) {
+          deleted.add(outcome.getKey());
+        }
+      }
+      return result;
+    }
+
+    public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+      return callback.doInUserRoleDao(this);
+    }
+
+  }
+
+}
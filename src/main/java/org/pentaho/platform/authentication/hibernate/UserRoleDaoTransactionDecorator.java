@@ -17,6 +17,8 @@
 */
 package org.pentaho.platform.authentication.hibernate;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.pentaho.platform.authentication.hibernate.AlreadyExistsException;
@@ -29,6 +31,7 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
 
 /**
  * Wraps a {@link IUserRoleDao}, beginning, committing, and rolling back transactions before and after each operation.
@@ -48,11 +51,27 @@ public class UserRoleDaoTransactionDecorator implements IUserRoleDao {
    */
   private TransactionTemplate transactionTemplate;
 
+  /**
+   * Optional template used instead of <code>transactionTemplate</code> for the operations that only read. Recommended 
+   * configuration for this bean: <code>readOnly</code> set to <code>true</code>, which makes Spring mark the JDBC 
+   * connection read-only and switch the session to manual flushing, and <code>propagationBehavior</code> set to 
+   * <code>TransactionDefinition.PROPAGATION_REQUIRED</code> so that lookups join a transaction that is already in 
+   * progress instead of suspending it. When absent, reads use <code>transactionTemplate</code>.
+   */
+  private TransactionTemplate readOnlyTransactionTemplate;
+
   /**
    * The wrapped DAO to which to delegate.
    */
   private IUserRoleDao userRoleDao;
 
+  /**
+   * Maximum number of items written in one transaction by the bulk operations.
+   */
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  public static final int DEFAULT_CHUNK_SIZE = 1000;
+
   public void createRole(final IRole roleToCreate) throws AlreadyExistsException,
       UncategorizedUserRoleDaoException {
     transactionTemplate.execute(new TransactionCallbackWithoutResult() {
@@ -71,6 +90,68 @@ public class UserRoleDaoTransactionDecorator implements IUserRoleDao {
     });
   }
 
+  public BatchResult createRoles(final Collection<IRole> rolesToCreate) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    BatchResult result = new BatchResult();
+    for (final Collection<IRole> chunk : chunk(rolesToCreate)) {
+      result.addAll(transactionTemplate.execute(new TransactionCallback<BatchResult>() {
+        public BatchResult doInTransaction(TransactionStatus status) {
+          return userRoleDao.createRoles(chunk);
+        }
+      }));
+    }
+    return result;
+  }
+
+  public BatchResult createUsers(final Collection<IUser> usersToCreate) throws UncategorizedUserRoleDaoException {
+    BatchResult result = new BatchResult();
+    for (final Collection<IUser> chunk : chunk(usersToCreate)) {
+      result.addAll(transactionTemplate.execute(new TransactionCallback<BatchResult>() {
+        public BatchResult doInTransaction(TransactionStatus status) {
+          return userRoleDao.createUsers(chunk);
+        }
+      }));
+    }
+    return result;
+  }
+
+  public BatchResult updateUsers(final Collection<IUser> usersToUpdate) throws UncategorizedUserRoleDaoException {
+    BatchResult result = new BatchResult();
+    for (final Collection<IUser> chunk : chunk(usersToUpdate)) {
+      result.addAll(transactionTemplate.execute(new TransactionCallback<BatchResult>() {
+        public BatchResult doInTransaction(TransactionStatus status) {
+          return userRoleDao.updateUsers(chunk);
+        }
+      }));
+    }
+    return result;
+  }
+
+  public BatchResult setUsersEnabled(final Collection<String> usernames, final boolean enabled)
+      throws UncategorizedUserRoleDaoException {
+    BatchResult result = new BatchResult();
+    for (final Collection<String> chunk : chunk(usernames)) {
+      result.addAll(transactionTemplate.execute(new TransactionCallback<BatchResult>() {
+        public BatchResult doInTransaction(TransactionStatus status) {
+          return userRoleDao.setUsersEnabled(chunk, enabled);
+        }
+      }));
+    }
+    return result;
+  }
+
+  public BatchResult deleteUsers(final Collection<IUser> usersToDelete) throws UncategorizedUserRoleDaoException {
+    BatchResult result = new BatchResult();
+    for (final Collection<IUser> chunk : chunk(usersToDelete)) {
+      result.addAll(transactionTemplate.execute(new TransactionCallback<BatchResult>() {
+        public BatchResult doInTransaction(TransactionStatus status) {
+          return userRoleDao.deleteUsers(chunk);
+        }
+      }));
+    }
+    return result;
+  }
+
   public void deleteRole(final IRole roleToDelete) throws NotFoundException, UncategorizedUserRoleDaoException {
     transactionTemplate.execute(new TransactionCallbackWithoutResult() {
       protected void doInTransactionWithoutResult(TransactionStatus status) {
@@ -88,39 +169,118 @@ public class UserRoleDaoTransactionDecorator implements IUserRoleDao {
   }
 
   public IRole getRole(final String name) throws UncategorizedUserRoleDaoException {
-    return (IRole) transactionTemplate.execute(new TransactionCallback() {
-      public Object doInTransaction(TransactionStatus status) {
+    return getReadTransactionTemplate().execute(new TransactionCallback<IRole>() {
+      public IRole doInTransaction(TransactionStatus status) {
         return userRoleDao.getRole(name);
       }
     });
   }
 
-  @SuppressWarnings("unchecked")
   public List<IRole> getRoles() throws UncategorizedUserRoleDaoException {
-    return (List<IRole>) transactionTemplate.execute(new TransactionCallback() {
-      public Object doInTransaction(TransactionStatus status) {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<IRole>>() {
+      public List<IRole> doInTransaction(TransactionStatus status) {
         return userRoleDao.getRoles();
       }
     });
   }
 
+  public List<UserSummary> getUsersInRole(final String roleName, final String afterUsername, final int limit)
+      throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<UserSummary>>() {
+      public List<UserSummary> doInTransaction(TransactionStatus status) {
+        return userRoleDao.getUsersInRole(roleName, afterUsername, limit);
+      }
+    });
+  }
+
+  public long countUsersInRole(final String roleName) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<Long>() {
+      public Long doInTransaction(TransactionStatus status) {
+        return userRoleDao.countUsersInRole(roleName);
+      }
+    });
+  }
+
+  public List<UserSummary> findUsers(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<UserSummary>>() {
+      public List<UserSummary> doInTransaction(TransactionStatus status) {
+        return userRoleDao.findUsers(prefix, limit);
+      }
+    });
+  }
+
+  public List<IRole> findRoles(final String prefix, final int limit) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<IRole>>() {
+      public List<IRole> doInTransaction(TransactionStatus status) {
+        return userRoleDao.findRoles(prefix, limit);
+      }
+    });
+  }
+
   public IUser getUser(final String username) throws UncategorizedUserRoleDaoException {
-    return (IUser) transactionTemplate.execute(new TransactionCallback() {
-      public Object doInTransaction(TransactionStatus status) {
+    return getReadTransactionTemplate().execute(new TransactionCallback<IUser>() {
+      public IUser doInTransaction(TransactionStatus status) {
         return userRoleDao.getUser(username);
       }
     });
   }
 
-  @SuppressWarnings("unchecked")
+  public UserCredentials getUserCredentials(final String username) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<UserCredentials>() {
+      public UserCredentials doInTransaction(TransactionStatus status) {
+        return userRoleDao.getUserCredentials(username);
+      }
+    });
+  }
+
+  public boolean isUserInRole(final String username, final String roleName) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<Boolean>() {
+      public Boolean doInTransaction(TransactionStatus status) {
+        return userRoleDao.isUserInRole(username, roleName);
+      }
+    });
+  }
+
   public List<IUser> getUsers() throws UncategorizedUserRoleDaoException {
-    return (List<IUser>) transactionTemplate.execute(new TransactionCallback() {
-      public Object doInTransaction(TransactionStatus status) {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<IUser>>() {
+      public List<IUser> doInTransaction(TransactionStatus status) {
         return userRoleDao.getUsers();
       }
     });
   }
 
+  public List<IUser> getUsers(final String afterUsername, final int limit) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<IUser>>() {
+      public List<IUser> doInTransaction(TransactionStatus status) {
+        return userRoleDao.getUsers(afterUsername, limit);
+      }
+    });
+  }
+
+  public void scrollUsers(final UserHandler handler) throws UncategorizedUserRoleDaoException {
+    getReadTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.scrollUsers(handler);
+      }
+    });
+  }
+
+  public void scrollUsernames(final UsernameHandler handler) throws UncategorizedUserRoleDaoException {
+    getReadTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.scrollUsernames(handler);
+      }
+    });
+  }
+
+  public List<IRole> getRoles(final String afterName, final int limit) throws UncategorizedUserRoleDaoException {
+    return getReadTransactionTemplate().execute(new TransactionCallback<List<IRole>>() {
+      public List<IRole> doInTransaction(TransactionStatus status) {
+        return userRoleDao.getRoles(afterName, limit);
+      }
+    });
+  }
+
   public void updateRole(final IRole roleToUpdate) throws NotFoundException, UncategorizedUserRoleDaoException {
     transactionTemplate.execute(new TransactionCallbackWithoutResult() {
       protected void doInTransactionWithoutResult(TransactionStatus status) {
@@ -129,6 +289,15 @@ public class UserRoleDaoTransactionDecorator implements IUserRoleDao {
     });
   }
 
+  public void setRoleMembers(final String roleName, final Collection<String> usernames) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.setRoleMembers(roleName, usernames);
+      }
+    });
+  }
+
   public void updateUser(final IUser userToUpdate) throws NotFoundException, UncategorizedUserRoleDaoException {
     transactionTemplate.execute(new TransactionCallbackWithoutResult() {
       protected void doInTransactionWithoutResult(TransactionStatus status) {
@@ -137,12 +306,85 @@ public class UserRoleDaoTransactionDecorator implements IUserRoleDao {
     });
   }
 
+  public void setUserEnabled(final String username, final boolean enabled) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.setUserEnabled(username, enabled);
+      }
+    });
+  }
+
+  public void changePassword(final String username, final String password) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.changePassword(username, password);
+      }
+    });
+  }
+
+  public void setUserDescription(final String username, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.setUserDescription(username, description);
+      }
+    });
+  }
+
+  public void setRoleDescription(final String roleName, final String description) throws NotFoundException,
+      UncategorizedUserRoleDaoException {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        userRoleDao.setRoleDescription(roleName, description);
+      }
+    });
+  }
+
+  /**
+   * Runs the whole callback in one transaction. The callback is given the wrapped DAO, so its operations do not begin 
+   * transactions of their own and commit together when the callback returns.
+   */
+  public <T> T execute(final IUserRoleDaoCallback<T> callback) throws UncategorizedUserRoleDaoException {
+    return transactionTemplate.execute(new TransactionCallback<T>() {
+      public T doInTransaction(TransactionStatus status) {
+        return userRoleDao.execute(callback);
+      }
+    });
+  }
+
   public void setTransactionTemplate(final TransactionTemplate transactionTemplate) {
     this.transactionTemplate = transactionTemplate;
   }
 
+  public void setReadOnlyTransactionTemplate(final TransactionTemplate readOnlyTransactionTemplate) {
+    this.readOnlyTransactionTemplate = readOnlyTransactionTemplate;
+  }
+
   public void setUserRoleDao(final IUserRoleDao userRoleDao) {
     this.userRoleDao = userRoleDao;
   }
 
+  public void setChunkSize(final int chunkSize) {
+    Assert.isTrue(chunkSize > 0, "The chunkSize must be positive"); //$NON-NLS-1$
+    this.chunkSize = chunkSize;
+  }
+
+  private TransactionTemplate getReadTransactionTemplate() {
+    return readOnlyTransactionTemplate != null ? readOnlyTransactionTemplate : transactionTemplate;
+  }
+
+  /**
+   * Splits the items of a bulk operation into chunks that each get their own transaction. Chunks that were committed 
+   * stay committed if a later chunk fails. A <code>null</code> collection is passed through so that the wrapped DAO 
+   * can reject it.
+   */
+  private <T> List<? extends Collection<T>> chunk(final Collection<T> items) {
+    if (items == null || items.size() <= chunkSize) {
+      return Collections.singletonList(items);
+    }
+    return Partitions.partition(items, chunkSize);
+  }
+
 }
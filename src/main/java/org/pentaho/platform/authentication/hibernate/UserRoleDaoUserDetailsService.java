@@ -0,0 +1,214 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.pentaho.platform.authentication.hibernate.messages.Messages;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.GrantedAuthorityImpl;
+import org.springframework.security.userdetails.UserDetails;
+import org.springframework.security.userdetails.UserDetailsService;
+import org.springframework.security.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link UserDetailsService} that loads each user with {@link IUserRoleDao#getUserCredentials(String)}, a single 
+ * statement that reads only the password, the enabled flag and the role names, instead of loading the user and its 
+ * roles as entities.
+ * 
+ * <p>The returned {@link UserDetails} are immutable and hold their authorities in an array built once, when the user 
+ * is loaded. One {@link GrantedAuthority} is kept per role name and shared by every user with that role. Pair with an 
+ * {@link ExpiringUserCache} as the authentication provider's <code>userCache</code> to skip the lookup entirely for 
+ * users who logged in recently.</p>
+ * 
+ * <p>As {@link org.springframework.security.userdetails.jdbc.JdbcDaoImpl} does, a user without roles is reported as 
+ * not found.</p>
+ * 
+ * <p>With a {@link LoginActivityTracker}, a user is reported as locked while the tracker locks it out. The returned 
+ * user asks the tracker each time, so that a cached user is locked and unlocked as soon as the tracker decides.</p>
+ */
+public class UserRoleDaoUserDetailsService implements UserDetailsService, InitializingBean {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final GrantedAuthority[] NO_AUTHORITIES = new GrantedAuthority[0];
+
+  // ~ Instance fields =================================================================================================
+
+  private final ConcurrentMap<String, GrantedAuthority> authorities = new ConcurrentHashMap<String, GrantedAuthority>();
+
+  private IUserRoleDao userRoleDao;
+
+  private LoginActivityTracker loginActivityTracker;
+
+  // ~ Methods =========================================================================================================
+
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(userRoleDao, "A userRoleDao must be set"); //$NON-NLS-1$
+  }
+
+  public UserDetails loadUserByUsername(final String username) throws UsernameNotFoundException,
+      DataAccessException {
+    if (username == null || username.length() == 0) {
+      // the DAO would reject it as an illegal argument rather than report a missing user
+      throw new UsernameNotFoundException(Messages.getInstance().getString(
+          "UserRoleDaoUserDetailsService.ERROR_0001_USER_NOT_FOUND"), username); //$NON-NLS-1$
+    }
+    UserCredentials credentials;
+    try {
+      credentials = userRoleDao.getUserCredentials(username);
+    } catch (UncategorizedUserRoleDaoException e) {
+      throw new DataRetrievalFailureException(Messages.getInstance().getString(
+          "UserRoleDaoUserDetailsService.ERROR_0003_DATA_ACCESS_EXCEPTION"), e); //$NON-NLS-1$
+    }
+    if (credentials == null) {
+      throw new UsernameNotFoundException(Messages.getInstance().getString(
+          "UserRoleDaoUserDetailsService.ERROR_0001_USER_NOT_FOUND"), username); //$NON-NLS-1$
+    }
+    List<String> roleNames = credentials.getRoleNames();
+    if (roleNames.isEmpty()) {
+      throw new UsernameNotFoundException(Messages.getInstance().getString(
+          "UserRoleDaoUserDetailsService.ERROR_0002_NO_AUTHORITIES"), username); //$NON-NLS-1$
+    }
+    GrantedAuthority[] userAuthorities = new GrantedAuthority[roleNames.size()];
+    for (int i = 0; i < userAuthorities.length; i++) {
+      userAuthorities[i] = getAuthority(roleNames.get(i));
+    }
+    return new CredentialsUserDetails(credentials.getUsername(), credentials.getPassword(), credentials.isEnabled(),
+        userAuthorities, loginActivityTracker);
+  }
+
+  /**
+   * Grows with the number of distinct role names, which is small and bounded by the roles table.
+   */
+  private GrantedAuthority getAuthority(final String roleName) {
+    GrantedAuthority authority = authorities.get(roleName);
+    if (authority == null) {
+      authority = new GrantedAuthorityImpl(roleName);
+      GrantedAuthority existing = authorities.putIfAbsent(roleName, authority);
+      if (existing != null) {
+        authority = existing;
+      }
+    }
+    return authority;
+  }
+
+  public void setUserRoleDao(final IUserRoleDao userRoleDao) {
+    this.userRoleDao = userRoleDao;
+  }
+
+  public void setLoginActivityTracker(final LoginActivityTracker loginActivityTracker) {
+    this.loginActivityTracker = loginActivityTracker;
+  }
+
+  /**
+   * Immutable; accounts and credentials never expire, since the tables do not record it.
+   */
+  private static final class CredentialsUserDetails implements UserDetails {
+
+    private static final long serialVersionUID = -2470395418563810571L;
+
+    private static final String FIELD_USERNAME = "username"; //$NON-NLS-1$
+
+    private static final String FIELD_PASSWORD = "password"; //$NON-NLS-1$
+
+    private static final String PASSWORD_MASK = "[PROTECTED]"; //$NON-NLS-1$
+
+    private static final String FIELD_ENABLED = "enabled"; //$NON-NLS-1$
+
+    private final String username;
+
+    private final String password;
+
+    private final boolean enabled;
+
+    private final GrantedAuthority[] authorities;
+
+    /**
+     * Not serialized; a deserialized user is never locked.
+     */
+    private final transient LoginActivityTracker loginActivityTracker;
+
+    CredentialsUserDetails(final String username, final String password, final boolean enabled,
+        final GrantedAuthority[] authorities, final LoginActivityTracker loginActivityTracker) {
+      this.username = username;
+      this.password = password;
+      this.enabled = enabled;
+      this.authorities = authorities;
+      this.loginActivityTracker = loginActivityTracker;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public String getPassword() {
+      return password;
+    }
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    /**
+     * @return a copy, so that callers cannot change the authorities of a cached user
+     */
+    public GrantedAuthority[] getAuthorities() {
+      return authorities.length == 0 ? NO_AUTHORITIES : authorities.clone();
+    }
+
+    public boolean isAccountNonExpired() {
+      return true;
+    }
+
+    public boolean isAccountNonLocked() {
+      return loginActivityTracker == null || !loginActivityTracker.isLocked(username);
+    }
+
+    public boolean isCredentialsNonExpired() {
+      return true;
+    }
+
+    /**
+     * By username, as for {@link org.springframework.security.userdetails.User}, so that session registries 
+     * recognize the same principal across logins.
+     */
+    public boolean equals(final Object obj) {
+      return obj instanceof CredentialsUserDetails && username.equals(((CredentialsUserDetails) obj).username);
+    }
+
+    public int hashCode() {
+      return username.hashCode();
+    }
+
+    public String toString() {
+      return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append(FIELD_USERNAME, username).append(
+          FIELD_PASSWORD, PASSWORD_MASK).append(FIELD_ENABLED, enabled).toString();
+    }
+
+  }
+
+}
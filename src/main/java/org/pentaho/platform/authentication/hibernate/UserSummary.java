@@ -0,0 +1,78 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * What a listing of users shows about each: the username, the description and the enabled flag. Read as a projection,
+ * without loading users or their roles. Instances are immutable.
+ *
+ * @see IUserRoleDao#getUsersInRole(String, String, int)
+ */
+public final class UserSummary implements Serializable {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final long serialVersionUID = 2834751096651293058L;
+
+  private static final String FIELD_USERNAME = "username"; //$NON-NLS-1$
+
+  private static final String FIELD_DESCRIPTION = "description"; //$NON-NLS-1$
+
+  private static final String FIELD_ENABLED = "enabled"; //$NON-NLS-1$
+
+  // ~ Instance fields =================================================================================================
+
+  private final String username;
+
+  private final String description;
+
+  private final boolean enabled;
+
+  // ~ Constructors ====================================================================================================
+
+  public UserSummary(final String username, final String description, final boolean enabled) {
+    this.username = username;
+    this.description = description;
+    this.enabled = enabled;
+  }
+
+  // ~ Methods =========================================================================================================
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String toString() {
+    return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append(FIELD_USERNAME, username).append(
+        FIELD_DESCRIPTION, description).append(FIELD_ENABLED, enabled).toString();
+  }
+
+}
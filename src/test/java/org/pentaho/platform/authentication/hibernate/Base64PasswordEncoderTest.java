@@ -0,0 +1,124 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * Checks {@link Base64PasswordEncoder}'s own UTF-8 and Base64 encoding against the JDK's and commons-codec's.
+ */
+public class Base64PasswordEncoderTest {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+  /**
+   * Lengths of 0 to 2 modulo 3, multi-byte characters, a surrogate pair and unpaired surrogates.
+   */
+  private static final String[] PASSWORDS = { "", "a", "ab", "abc", "abcd", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+      "abcde", "abcdef", "p\u00e4ssw\u00f6rd", "\u5bc6\u7801", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+      "\ud83d\ude00", "x\ud83d\ude00yz", "\ud83d", "\ude00", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+      "a\ud83d", "\ude00\ud83d", "\ud83d\ud83d\ude00" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  // ~ Instance fields =================================================================================================
+
+  private Base64PasswordEncoder encoder = new Base64PasswordEncoder();
+
+  // ~ Methods =========================================================================================================
+
+  @Test
+  public void testUtf8LengthMatchesJdk() {
+    for (String password : PASSWORDS) {
+      assertEquals(password, password.getBytes(UTF_8).length, Base64PasswordEncoder.utf8Length(password));
+    }
+  }
+
+  @Test
+  public void testUtf8EncodingMatchesJdk() {
+    for (String password : PASSWORDS) {
+      byte[] bytes = new byte[Base64PasswordEncoder.utf8Length(password)];
+      Base64PasswordEncoder.encodeUtf8(password, bytes);
+      assertEquals(password, new String(password.getBytes(UTF_8), UTF_8), new String(bytes, UTF_8));
+    }
+  }
+
+  @Test
+  public void testLoneSurrogateIsEncodedAsQuestionMark() {
+    byte[] bytes = new byte[Base64PasswordEncoder.utf8Length("a\ud83d")]; //$NON-NLS-1$
+    Base64PasswordEncoder.encodeUtf8("a\ud83d", bytes); //$NON-NLS-1$
+    assertEquals("a?", new String(bytes, UTF_8)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testMatchesAgreesWithCommonsCodec() {
+    for (String password : PASSWORDS) {
+      byte[] bytes = password.getBytes(UTF_8);
+      String encoded = new String(Base64.encodeBase64(bytes));
+      assertTrue(password, Base64PasswordEncoder.matches(encoded, bytes, bytes.length));
+      assertFalse(password, Base64PasswordEncoder.matches(encoded + "A", bytes, bytes.length)); //$NON-NLS-1$
+      if (encoded.length() > 0) {
+        assertFalse(password, Base64PasswordEncoder.matches(encoded.substring(1), bytes, bytes.length));
+        assertFalse(password, Base64PasswordEncoder.matches(
+            encoded.substring(0, encoded.length() - 1) + '*', bytes, bytes.length));
+      }
+    }
+  }
+
+  @Test
+  public void testMatchesIgnoresBytesPastLength() {
+    byte[] bytes = "abcdef".getBytes(UTF_8); //$NON-NLS-1$
+    assertTrue(Base64PasswordEncoder.matches(new String(Base64.encodeBase64("abcd".getBytes(UTF_8))), bytes, 4)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testEncodedPasswordIsValid() {
+    for (String password : PASSWORDS) {
+      String encoded = encoder.encodePassword(password, null);
+      assertTrue(password, encoder.isPasswordValid(encoded, password, null));
+      assertFalse(password, encoder.isPasswordValid(encoded, password + "x", null)); //$NON-NLS-1$
+    }
+  }
+
+  @Test
+  public void testEmptyPassword() {
+    assertEquals("", encoder.encodePassword("", null)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(encoder.isPasswordValid("", "", null)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(encoder.isPasswordValid("", "a", null)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(encoder.isPasswordValid("YQ==", "", null)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testLongPasswordIsValid() {
+    StringBuilder password = new StringBuilder();
+    for (int i = 0; i < 1500; i++) {
+      password.append((char) ('a' + i % 26));
+    }
+    String encoded = encoder.encodePassword(password.toString(), null);
+    assertTrue(encoder.isPasswordValid(encoded, password.toString(), null));
+    assertTrue(encoder.isPasswordValid(encoder.encodePassword("short", null), "short", null)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+}
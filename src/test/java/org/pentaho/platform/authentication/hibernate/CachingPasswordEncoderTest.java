@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.providers.encoding.PasswordEncoder;
+import org.springframework.security.providers.encoding.PlaintextPasswordEncoder;
+
+/**
+ * Hits, misses and expiry in {@link CachingPasswordEncoder}.
+ */
+public class CachingPasswordEncoderTest {
+
+  // ~ Instance fields =================================================================================================
+
+  private final AtomicInteger wrappedCalls = new AtomicInteger();
+
+  private CachingPasswordEncoder encoder;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void setUp() {
+    final PlaintextPasswordEncoder plaintext = new PlaintextPasswordEncoder();
+    encoder = new CachingPasswordEncoder();
+    encoder.setPasswordEncoder(new PasswordEncoder() {
+      public String encodePassword(final String rawPass, final Object salt) {
+        return plaintext.encodePassword(rawPass, salt);
+      }
+
+      public boolean isPasswordValid(final String encPass, final String rawPass, final Object salt) {
+        wrappedCalls.incrementAndGet();
+        return plaintext.isPasswordValid(encPass, rawPass, salt);
+      }
+    });
+  }
+
+  @Test
+  public void testVerifiedPasswordIsAnsweredFromCache() {
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(1, wrappedCalls.get());
+    assertEquals(1, encoder.getHitCount());
+    assertEquals(1, encoder.getMissCount());
+  }
+
+  @Test
+  public void testWrongPasswordIsNotCached() {
+    assertFalse(encoder.isPasswordValid("password{salt}", "wrong", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertFalse(encoder.isPasswordValid("password{salt}", "wrong", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, wrappedCalls.get());
+    assertEquals(0, encoder.getHitCount());
+  }
+
+  @Test
+  public void testWrongPasswordMissesAfterRightOne() {
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertFalse(encoder.isPasswordValid("password{salt}", "wrong", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, wrappedCalls.get());
+    assertEquals(0, encoder.getHitCount());
+  }
+
+  @Test
+  public void testChangedEncodedPasswordMisses() {
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertFalse(encoder.isPasswordValid("changed{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, wrappedCalls.get());
+  }
+
+  @Test
+  public void testSaltIsPartOfDigest() {
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    // the wrapped encoder decides each of these, whatever the cache holds for the same encoded password
+    assertFalse(encoder.isPasswordValid("password{salt}", "password", "sal")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertFalse(encoder.isPasswordValid("password{salt}", "password", null)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(encoder.isPasswordValid("password{salt}", "password\u0000salt", null)); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(4, wrappedCalls.get());
+    assertEquals(0, encoder.getHitCount());
+  }
+
+  @Test
+  public void testClearForgetsVerifiedPasswords() {
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    encoder.clear();
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, wrappedCalls.get());
+  }
+
+  @Test
+  public void testVerifiedPasswordExpires() throws Exception {
+    encoder.setTimeToLiveSeconds(1);
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    Thread.sleep(1100);
+    assertTrue(encoder.isPasswordValid("password{salt}", "password", "salt")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, wrappedCalls.get());
+    assertEquals(0, encoder.getHitCount());
+  }
+
+}
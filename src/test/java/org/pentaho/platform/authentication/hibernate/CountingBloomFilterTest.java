@@ -0,0 +1,103 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Membership, removal and the false positive rate of {@link CountingBloomFilter}.
+ */
+public class CountingBloomFilterTest {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final int SIZE = 10000;
+
+  // ~ Methods =========================================================================================================
+
+  @Test
+  public void testAddedStringsAreContained() {
+    CountingBloomFilter filter = new CountingBloomFilter(SIZE, 0.01);
+    for (int i = 0; i < SIZE; i++) {
+      filter.add("user" + i); //$NON-NLS-1$
+    }
+    for (int i = 0; i < SIZE; i++) {
+      assertTrue(filter.mightContain("user" + i)); //$NON-NLS-1$
+    }
+  }
+
+  @Test
+  public void testFalsePositiveRateIsNearTarget() {
+    CountingBloomFilter filter = new CountingBloomFilter(SIZE, 0.01);
+    for (int i = 0; i < SIZE; i++) {
+      filter.add("user" + i); //$NON-NLS-1$
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < SIZE; i++) {
+      if (filter.mightContain("other" + i)) { //$NON-NLS-1$
+        falsePositives++;
+      }
+    }
+    // 1% expected; allow for the variance of one sample
+    assertTrue(String.valueOf(falsePositives), falsePositives < SIZE * 2 / 100);
+  }
+
+  @Test
+  public void testRemovedStringIsAbsent() {
+    CountingBloomFilter filter = new CountingBloomFilter(SIZE, 0.01);
+    filter.add("joe"); //$NON-NLS-1$
+    filter.add("suzy"); //$NON-NLS-1$
+    filter.remove("joe"); //$NON-NLS-1$
+
+    assertFalse(filter.mightContain("joe")); //$NON-NLS-1$
+    assertTrue(filter.mightContain("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testStringAddedTwiceSurvivesOneRemoval() {
+    CountingBloomFilter filter = new CountingBloomFilter(SIZE, 0.01);
+    filter.add("joe"); //$NON-NLS-1$
+    filter.add("joe"); //$NON-NLS-1$
+    filter.remove("joe"); //$NON-NLS-1$
+
+    assertTrue(filter.mightContain("joe")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testSaturatedCounterIsNotDecremented() {
+    CountingBloomFilter filter = new CountingBloomFilter(1, 0.5);
+    for (int i = 0; i < 20; i++) {
+      filter.add("joe"); //$NON-NLS-1$
+    }
+    for (int i = 0; i < 20; i++) {
+      filter.remove("joe"); //$NON-NLS-1$
+    }
+
+    // a counter stuck at its maximum errs towards a false positive, never a false negative
+    assertTrue(filter.mightContain("joe")); //$NON-NLS-1$
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testProbabilityMustBeBelowOne() {
+    new CountingBloomFilter(SIZE, 1);
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Expiry, eviction and invalidation in {@link ExpiringLruCache}.
+ */
+public class ExpiringLruCacheTest {
+
+  // ~ Methods =========================================================================================================
+
+  @Test
+  public void testGetReturnsPutValue() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 60000);
+    cache.put("joe", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals("a", cache.get("joe")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertNull(cache.get("suzy")); //$NON-NLS-1$
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testEntryExpires() throws Exception {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 20);
+    cache.put("joe", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+    Thread.sleep(50);
+
+    assertNull(cache.get("joe")); //$NON-NLS-1$
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    // a single segment, so that the bound applies to both keys
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(1, 60000);
+    cache.put("joe", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+    cache.put("suzy", "b"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertNull(cache.get("joe")); //$NON-NLS-1$
+    assertEquals("b", cache.get("suzy")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testSizeIsBounded() {
+    ExpiringLruCache<Integer, Integer> cache = new ExpiringLruCache<Integer, Integer>(32, 60000);
+    for (int i = 0; i < 1000; i++) {
+      cache.put(i, i);
+    }
+
+    assertTrue(cache.size() <= 32);
+  }
+
+  @Test
+  public void testInvalidationRejectsStalePut() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 60000);
+    long generation = cache.getGeneration("joe"); //$NON-NLS-1$
+    cache.remove("joe"); //$NON-NLS-1$
+
+    assertFalse(cache.putIfGeneration("joe", "stale", generation)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertNull(cache.get("joe")); //$NON-NLS-1$
+    assertTrue(cache.putIfGeneration("joe", "fresh", cache.getGeneration("joe"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertEquals("fresh", cache.get("joe")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testInvalidationOfAnotherSegmentKeepsPut() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(16, 60000);
+    String other = null;
+    for (int i = 0; other == null; i++) {
+      long before = cache.getGeneration("joe"); //$NON-NLS-1$
+      cache.remove("user" + i); //$NON-NLS-1$
+      if (cache.getGeneration("joe") == before) { //$NON-NLS-1$
+        other = "user" + i; //$NON-NLS-1$
+      }
+    }
+    long generation = cache.getGeneration("joe"); //$NON-NLS-1$
+    cache.remove(other);
+
+    assertTrue(cache.putIfGeneration("joe", "loaded", generation)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("loaded", cache.get("joe")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testRemoveAllRemovesMatchingEntries() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 60000);
+    cache.put("joe", "Admin"); //$NON-NLS-1$ //$NON-NLS-2$
+    cache.put("suzy", "Authenticated"); //$NON-NLS-1$ //$NON-NLS-2$
+    long generation = cache.getGeneration("pat"); //$NON-NLS-1$
+
+    cache.removeAll(new ExpiringLruCache.EntryFilter<String, String>() {
+      public boolean accept(final String key, final String value) {
+        return "Admin".equals(value); //$NON-NLS-1$
+      }
+    });
+
+    assertNull(cache.get("joe")); //$NON-NLS-1$
+    assertEquals("Authenticated", cache.get("suzy")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(cache.putIfGeneration("pat", "stale", generation)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testClearRemovesEverything() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 60000);
+    cache.put("joe", "a"); //$NON-NLS-1$ //$NON-NLS-2$
+    cache.put("suzy", "b"); //$NON-NLS-1$ //$NON-NLS-2$
+    long generation = cache.getGeneration("joe"); //$NON-NLS-1$
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertTrue(cache.getGeneration("joe") > generation); //$NON-NLS-1$
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxSizeMustBePositive() {
+    new ExpiringLruCache<String, String>(0, 60000);
+  }
+
+}
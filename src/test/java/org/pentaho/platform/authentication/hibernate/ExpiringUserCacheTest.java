@@ -0,0 +1,112 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.GrantedAuthorityImpl;
+import org.springframework.security.userdetails.User;
+import org.springframework.security.userdetails.UserDetails;
+
+/**
+ * Expiry and invalidation in {@link ExpiringUserCache}.
+ */
+public class ExpiringUserCacheTest {
+
+  // ~ Instance fields =================================================================================================
+
+  private ExpiringUserCache userCache;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createCache() {
+    userCache = new ExpiringUserCache();
+    userCache.putUserInCache(createUser("joe", "Admin", "Authenticated")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    userCache.putUserInCache(createUser("suzy", "Authenticated")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testGetReturnsPutUser() {
+    UserDetails joe = createUser("joe", "Admin"); //$NON-NLS-1$ //$NON-NLS-2$
+    userCache.putUserInCache(joe);
+
+    assertSame(joe, userCache.getUserFromCache("joe")); //$NON-NLS-1$
+    assertNull(userCache.getUserFromCache("nobody")); //$NON-NLS-1$
+    assertEquals(1, userCache.getHitCount());
+    assertEquals(1, userCache.getMissCount());
+  }
+
+  @Test
+  public void testRemovedUserIsGone() {
+    userCache.removeUserFromCache("joe"); //$NON-NLS-1$
+
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+    assertNotNull(userCache.getUserFromCache("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUserExpires() throws Exception {
+    userCache.setTimeToLiveSeconds(1);
+    userCache.putUserInCache(createUser("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    Thread.sleep(1100);
+
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testChangedUsersAreDropped() {
+    userCache.usersChanged(Collections.singleton("joe")); //$NON-NLS-1$
+
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+    assertNotNull(userCache.getUserFromCache("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUsersGrantedChangedRoleAreDropped() {
+    userCache.rolesChanged(Collections.singleton("Admin")); //$NON-NLS-1$
+
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+    assertNotNull(userCache.getUserFromCache("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testAllChangedDropsEveryUser() {
+    userCache.allChanged();
+
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+    assertNull(userCache.getUserFromCache("suzy")); //$NON-NLS-1$
+  }
+
+  private static UserDetails createUser(final String username, final String... roleNames) {
+    GrantedAuthority[] authorities = new GrantedAuthority[roleNames.length];
+    for (int i = 0; i < roleNames.length; i++) {
+      authorities[i] = new GrantedAuthorityImpl(roleNames[i]);
+    }
+    return new User(username, "password", true, true, true, true, authorities); //$NON-NLS-1$
+  }
+
+}
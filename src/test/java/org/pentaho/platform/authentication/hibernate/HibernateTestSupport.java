@@ -0,0 +1,124 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.HashtableCacheProvider;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.HSQLDialect;
+import org.junit.After;
+import org.junit.Before;
+import org.springframework.orm.hibernate3.HibernateTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Builds a session factory with the production mappings over a fresh in-memory HSQLDB database for each test, with 
+ * statistics on and the second-level cache off, so that tests can count the statements an operation issues.
+ */
+public abstract class HibernateTestSupport {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  private static final String[] MAPPING_RESOURCES = { "CustomRole.hbm.xml", "CustomUser.hbm.xml", //$NON-NLS-1$ //$NON-NLS-2$
+      "CustomUserRoleMapping.hbm.xml", "UserRoleChanges.hbm.xml" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+  private static int databaseCount;
+
+  // ~ Instance fields =================================================================================================
+
+  protected SessionFactory sessionFactory;
+
+  protected HibernateUserRoleDao hibernateUserRoleDao;
+
+  /**
+   * {@link #hibernateUserRoleDao} wrapped in a {@link UserRoleDaoTransactionDecorator}, as it is deployed.
+   */
+  protected UserRoleDaoTransactionDecorator userRoleDao;
+
+  protected TransactionTemplate transactionTemplate;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void setUpSessionFactory() throws Exception {
+    Configuration configuration = new Configuration()
+        .setProperty(Environment.DIALECT, HSQLDialect.class.getName())
+        .setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver") //$NON-NLS-1$
+        .setProperty(Environment.URL, "jdbc:hsqldb:mem:test" + nextDatabaseNumber()) //$NON-NLS-1$
+        .setProperty(Environment.USER, "sa") //$NON-NLS-1$
+        .setProperty(Environment.HBM2DDL_AUTO, "create") //$NON-NLS-1$
+        .setProperty(Environment.USE_SECOND_LEVEL_CACHE, "false") //$NON-NLS-1$
+        .setProperty(Environment.USE_QUERY_CACHE, "false") //$NON-NLS-1$
+        .setProperty(Environment.GENERATE_STATISTICS, "true"); //$NON-NLS-1$
+    for (String resource : MAPPING_RESOURCES) {
+      configuration.addResource(resource);
+    }
+    configure(configuration);
+    sessionFactory = configuration.buildSessionFactory();
+
+    hibernateUserRoleDao = new HibernateUserRoleDao();
+    hibernateUserRoleDao.setSessionFactory(sessionFactory);
+    hibernateUserRoleDao.afterPropertiesSet();
+
+    transactionTemplate = new TransactionTemplate(new HibernateTransactionManager(sessionFactory));
+    userRoleDao = new UserRoleDaoTransactionDecorator();
+    userRoleDao.setTransactionTemplate(transactionTemplate);
+    userRoleDao.setUserRoleDao(hibernateUserRoleDao);
+  }
+
+  @After
+  public void tearDownSessionFactory() {
+    if (sessionFactory != null) {
+      sessionFactory.close();
+    }
+  }
+
+  /**
+   * Lets a test change the configuration before the session factory is built.
+   */
+  protected void configure(final Configuration configuration) {
+  }
+
+  /**
+   * Turns the second-level cache on, with Hibernate's in-memory cache provider.
+   */
+  protected static void enableSecondLevelCache(final Configuration configuration) {
+    configuration.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true") //$NON-NLS-1$
+        .setProperty(Environment.CACHE_PROVIDER, HashtableCacheProvider.class.getName());
+  }
+
+  /**
+   * Starts counting statements from zero.
+   */
+  protected void resetStatementCount() {
+    sessionFactory.getStatistics().clear();
+  }
+
+  /**
+   * @return the number of JDBC statements Hibernate prepared since the last {@link #resetStatementCount()}
+   */
+  protected long getStatementCount() {
+    return sessionFactory.getStatistics().getPrepareStatementCount();
+  }
+
+  private static synchronized int nextDatabaseNumber() {
+    return databaseCount++;
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.hibernate.Cache;
+import org.hibernate.cfg.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Which second-level cache entries the bulk writes evict.
+ */
+public class HibernateUserRoleDaoCacheTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  protected void configure(final Configuration configuration) {
+    enableSecondLevelCache(configuration);
+  }
+
+  @Before
+  public void createUsers() {
+    for (String username : new String[] { "joe", "suzy", "pat" }) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      userRoleDao.createUser(new CustomUser(username, "password", null, true)); //$NON-NLS-1$
+      userRoleDao.getUser(username);
+    }
+  }
+
+  @Test
+  public void testDeleteUsersEvictsOnlyTheDeletedUsers() {
+    Cache cache = sessionFactory.getCache();
+    assertTrue(cache.containsEntity(CustomUser.class, "suzy")); //$NON-NLS-1$
+
+    BatchResult result = userRoleDao.deleteUsers(Arrays.<IUser> asList(new CustomUser("joe"), //$NON-NLS-1$
+        new CustomUser("nobody"))); //$NON-NLS-1$
+
+    assertEquals(BatchResult.Outcome.DELETED, result.getOutcome("joe")); //$NON-NLS-1$
+    assertEquals(BatchResult.Outcome.NOT_FOUND, result.getOutcome("nobody")); //$NON-NLS-1$
+    assertFalse(cache.containsEntity(CustomUser.class, "joe")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomUser.class, "suzy")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomUser.class, "pat")); //$NON-NLS-1$
+    assertEquals(2, userRoleDao.getUsers().size());
+  }
+
+  @Test
+  public void testDeleteRoleEvictsOnlyTheDeletedRole() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.setRoleMembers("Admin", Arrays.asList("joe", "suzy")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    userRoleDao.getRole("Admin"); //$NON-NLS-1$
+    userRoleDao.getRole("Authenticated"); //$NON-NLS-1$
+    assertTrue(userRoleDao.getUser("joe").getRoles().contains(new CustomRole("Admin"))); //$NON-NLS-1$ //$NON-NLS-2$
+    Cache cache = sessionFactory.getCache();
+    assertTrue(cache.containsEntity(CustomRole.class, "Authenticated")); //$NON-NLS-1$
+
+    userRoleDao.deleteRole(new CustomRole("Admin")); //$NON-NLS-1$
+
+    assertNull(userRoleDao.getRole("Admin")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomRole.class, "Authenticated")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomUser.class, "joe")); //$NON-NLS-1$
+    assertTrue(userRoleDao.getUser("joe").getRoles().isEmpty()); //$NON-NLS-1$
+    assertEquals(0, userRoleDao.countUsersInRole("Admin")); //$NON-NLS-1$
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link IUserRoleDao#getUserCredentials(String)} reads the credentials with one statement, without loading entities.
+ */
+public class HibernateUserRoleDaoCredentialsTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createUsers() {
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    CustomUser joe = new CustomUser("joe", "password", "description", true); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    joe.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+    CustomUser suzy = new CustomUser("suzy", "secret", null, false); //$NON-NLS-1$ //$NON-NLS-2$
+    suzy.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createUser(suzy);
+    userRoleDao.createUser(new CustomUser("pat", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testCredentialsAreReadWithOneStatement() {
+    resetStatementCount();
+
+    UserCredentials joe = userRoleDao.getUserCredentials("joe"); //$NON-NLS-1$
+
+    assertEquals(1, getStatementCount());
+    assertEquals(0, sessionFactory.getStatistics().getEntityLoadCount());
+    assertEquals("joe", joe.getUsername()); //$NON-NLS-1$
+    assertEquals("password", joe.getPassword()); //$NON-NLS-1$
+    assertTrue(joe.isEnabled());
+    assertEquals(Arrays.asList("Admin", "Authenticated"), joe.getRoleNames()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testDisabledUserHasCredentials() {
+    UserCredentials suzy = userRoleDao.getUserCredentials("suzy"); //$NON-NLS-1$
+
+    assertFalse(suzy.isEnabled());
+    assertEquals("secret", suzy.getPassword()); //$NON-NLS-1$
+    assertEquals(Collections.singletonList("Authenticated"), suzy.getRoleNames()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUserWithoutRolesHasNoRoleNames() {
+    UserCredentials pat = userRoleDao.getUserCredentials("pat"); //$NON-NLS-1$
+
+    assertEquals("password", pat.getPassword()); //$NON-NLS-1$
+    assertTrue(pat.getRoleNames().isEmpty());
+  }
+
+  @Test
+  public void testMissingUserHasNoCredentials() {
+    assertNull(userRoleDao.getUserCredentials("nobody")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testRoleNamesCannotBeChanged() {
+    UserCredentials joe = userRoleDao.getUserCredentials("joe"); //$NON-NLS-1$
+    try {
+      joe.getRoleNames().add("Guest"); //$NON-NLS-1$
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testToStringHidesPassword() {
+    assertFalse(userRoleDao.getUserCredentials("joe").toString().contains("=password")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testChangesEarlierInUnitOfWorkAreSeen() {
+    userRoleDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        CustomUser sam = new CustomUser("sam", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+        sam.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+        dao.createUser(sam);
+        IUser joe = dao.getUser("joe"); //$NON-NLS-1$
+        joe.setPassword("changed"); //$NON-NLS-1$
+        dao.updateUser(joe);
+
+        assertEquals(Collections.singletonList("Authenticated"), //$NON-NLS-1$
+            dao.getUserCredentials("sam").getRoleNames()); //$NON-NLS-1$
+        assertEquals("changed", dao.getUserCredentials("joe").getPassword()); //$NON-NLS-1$ //$NON-NLS-2$
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void testBlankUsernameIsRejected() {
+    try {
+      userRoleDao.getUserCredentials(""); //$NON-NLS-1$
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.platform.authentication.hibernate.HibernateUserRoleDao.RoleFetchMode;
+
+/**
+ * Counts the statements <code>getUsers</code> issues in each {@link RoleFetchMode}, and those of the scrolls.
+ */
+public class HibernateUserRoleDaoFetchTest extends HibernateTestSupport {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  /**
+   * Hibernate loads the last, partial batch with the largest of its batch sizes (50, 25, 12, 10, 9, ...) that does not 
+   * exceed it, so a count that leaves a remainder of 25 gives one statement per batch.
+   */
+  private static final int USER_COUNT = 125;
+
+  /**
+   * The <code>batch-size</code> of the <code>roles</code> set in <code>CustomUser.hbm.xml</code>.
+   */
+  private static final int ROLES_BATCH_SIZE = 50;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createUsers() {
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    List<IUser> users = new ArrayList<IUser>();
+    for (int i = 0; i < USER_COUNT; i++) {
+      CustomUser user = new CustomUser("user" + i, "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+      user.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+      if (i % 10 == 0) {
+        user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+      }
+      users.add(user);
+    }
+    userRoleDao.createUsers(users);
+  }
+
+  @Test
+  public void testJoinFetchReadsUsersAndRolesWithOneStatement() {
+    hibernateUserRoleDao.setRoleFetchMode(RoleFetchMode.JOIN);
+    resetStatementCount();
+
+    List<IUser> users = userRoleDao.getUsers();
+
+    assertEquals(1, getStatementCount());
+    assertUsersAndRoles(users);
+  }
+
+  @Test
+  public void testBatchFetchReadsRolesInBatches() {
+    hibernateUserRoleDao.setRoleFetchMode(RoleFetchMode.BATCH);
+    resetStatementCount();
+
+    List<IUser> users = userRoleDao.getUsers();
+
+    int batches = (USER_COUNT + ROLES_BATCH_SIZE - 1) / ROLES_BATCH_SIZE;
+    assertEquals(batches + 1, getStatementCount());
+    assertUsersAndRoles(users);
+  }
+
+  @Test
+  public void testScrollReadsUsersAndRolesWithOneStatement() {
+    userRoleDao.createUser(new CustomUser("zed", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    final List<IUser> users = new ArrayList<IUser>();
+    resetStatementCount();
+
+    userRoleDao.scrollUsers(new IUserRoleDao.UserHandler() {
+      public void handleUser(final IUser user) {
+        users.add(user);
+      }
+    });
+
+    assertEquals(1, getStatementCount());
+    IUser last = users.remove(users.size() - 1);
+    assertEquals("zed", last.getUsername()); //$NON-NLS-1$
+    assertEquals(0, last.getRoles().size());
+    assertEquals(Long.valueOf(0), last.getVersion());
+    assertUsersAndRoles(users);
+  }
+
+  @Test
+  public void testScrollUsernamesReadsThemInOrderWithOneStatement() {
+    userRoleDao.createUser(new CustomUser("zed", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    final List<String> usernames = new ArrayList<String>();
+    resetStatementCount();
+
+    userRoleDao.scrollUsernames(new IUserRoleDao.UsernameHandler() {
+      public void handleUsername(final String username) {
+        usernames.add(username);
+      }
+    });
+
+    assertEquals(1, getStatementCount());
+    assertEquals(USER_COUNT + 1, usernames.size());
+    assertEquals("zed", usernames.get(USER_COUNT)); //$NON-NLS-1$
+  }
+
+  private static void assertUsersAndRoles(final List<IUser> users) {
+    assertEquals(USER_COUNT, users.size());
+    int admins = 0;
+    for (IUser user : users) {
+      admins += user.getRoles().size() - 1;
+    }
+    assertEquals((USER_COUNT + 9) / 10, admins);
+  }
+
+}
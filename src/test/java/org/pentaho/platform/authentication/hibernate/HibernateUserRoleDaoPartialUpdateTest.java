@@ -0,0 +1,138 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.hibernate.Cache;
+import org.hibernate.cfg.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The partial updates write one column without loading the user or role, and evict only its cache entry.
+ */
+public class HibernateUserRoleDaoPartialUpdateTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  protected void configure(final Configuration configuration) {
+    enableSecondLevelCache(configuration);
+  }
+
+  @Before
+  public void createUsers() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    CustomUser joe = new CustomUser("joe", "password", "before", true); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    userRoleDao.getUser("joe"); //$NON-NLS-1$
+    userRoleDao.getUser("suzy"); //$NON-NLS-1$
+    userRoleDao.getRole("Admin"); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testSetUserEnabledLoadsNothingAndEvictsOnlyThatUser() {
+    Long version = userRoleDao.getUser("joe").getVersion(); //$NON-NLS-1$
+    resetStatementCount();
+
+    userRoleDao.setUserEnabled("joe", false); //$NON-NLS-1$
+
+    assertEquals(0, sessionFactory.getStatistics().getEntityLoadCount());
+    assertEquals(0, sessionFactory.getStatistics().getCollectionLoadCount());
+    Cache cache = sessionFactory.getCache();
+    assertFalse(cache.containsEntity(CustomUser.class, "joe")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomUser.class, "suzy")); //$NON-NLS-1$
+    assertTrue(cache.containsEntity(CustomRole.class, "Admin")); //$NON-NLS-1$
+    IUser joe = userRoleDao.getUser("joe"); //$NON-NLS-1$
+    assertFalse(joe.isEnabled());
+    assertEquals("before", joe.getDescription()); //$NON-NLS-1$
+    assertEquals(1, joe.getRoles().size());
+    assertEquals(version.longValue() + 1, joe.getVersion().longValue());
+  }
+
+  @Test
+  public void testSetUsersEnabledReportsEachUser() {
+    BatchResult result = userRoleDao.setUsersEnabled(
+        Arrays.asList("joe", "suzy", "nobody"), false); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(BatchResult.Outcome.UPDATED, result.getOutcome("joe")); //$NON-NLS-1$
+    assertEquals(BatchResult.Outcome.UPDATED, result.getOutcome("suzy")); //$NON-NLS-1$
+    assertEquals(BatchResult.Outcome.NOT_FOUND, result.getOutcome("nobody")); //$NON-NLS-1$
+    assertFalse(userRoleDao.getUser("joe").isEnabled()); //$NON-NLS-1$
+    assertFalse(userRoleDao.getUser("suzy").isEnabled()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testChangePasswordMakesEarlierCopiesStale() {
+    IUser loaded = userRoleDao.getUser("joe"); //$NON-NLS-1$
+
+    userRoleDao.changePassword("joe", "changed"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals("changed", userRoleDao.getUserCredentials("joe").getPassword()); //$NON-NLS-1$ //$NON-NLS-2$
+    loaded.setDescription("after"); //$NON-NLS-1$
+    try {
+      userRoleDao.updateUser(loaded);
+      fail();
+    } catch (ConcurrentUpdateException e) {
+      // expected
+    }
+    assertEquals("changed", userRoleDao.getUser("joe").getPassword()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testSetUserDescriptionOfMissingUserFails() {
+    try {
+      userRoleDao.setUserDescription("nobody", "after"); //$NON-NLS-1$ //$NON-NLS-2$
+      fail();
+    } catch (NotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSetRoleDescriptionKeepsTheMembers() {
+    userRoleDao.setRoleDescription("Admin", "administrators"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals("administrators", userRoleDao.getRole("Admin").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(1, userRoleDao.countUsersInRole("Admin")); //$NON-NLS-1$
+    assertTrue(userRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testPartialUpdateIsSeenLaterInTheSameUnitOfWork() {
+    String description = userRoleDao.execute(new IUserRoleDaoCallback<String>() {
+      public String doInUserRoleDao(final IUserRoleDao dao) {
+        // the session now holds joe, which must neither hide nor overwrite the update
+        dao.getUser("joe"); //$NON-NLS-1$
+        dao.setUserDescription("joe", "after"); //$NON-NLS-1$ //$NON-NLS-2$
+        return dao.getUser("joe").getDescription(); //$NON-NLS-1$
+      }
+    });
+
+    assertEquals("after", description); //$NON-NLS-1$
+    assertEquals("after", userRoleDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keyset pagination over the members of a role, read as {@link UserSummary} projections.
+ */
+public class HibernateUserRoleDaoRoleMembersTest extends HibernateTestSupport {
+
+  // ~ Static fields/initializers ======================================================================================
+
+  /**
+   * The members of Admin, in username order.
+   */
+  private static final List<String> MEMBERS = Arrays.asList("ann", "bob", //$NON-NLS-1$ //$NON-NLS-2$
+      "cat", "dan", "eve"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createUsers() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Guest")); //$NON-NLS-1$
+    for (String username : MEMBERS) {
+      CustomUser user = new CustomUser(username, "password", null, true); //$NON-NLS-1$
+      user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+      userRoleDao.createUser(user);
+    }
+    userRoleDao.createUser(new CustomUser("abe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    userRoleDao.setUserDescription("bob", "builder"); //$NON-NLS-1$ //$NON-NLS-2$
+    userRoleDao.setUserEnabled("cat", false); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testPagesFollowEachOther() {
+    resetStatementCount();
+
+    List<UserSummary> first = userRoleDao.getUsersInRole("Admin", null, 2); //$NON-NLS-1$
+    List<UserSummary> second = userRoleDao.getUsersInRole("Admin", "bob", 2); //$NON-NLS-1$ //$NON-NLS-2$
+    List<UserSummary> third = userRoleDao.getUsersInRole("Admin", "dan", 2); //$NON-NLS-1$ //$NON-NLS-2$
+    List<UserSummary> fourth = userRoleDao.getUsersInRole("Admin", "eve", 2); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(4, getStatementCount());
+    assertEquals(0, sessionFactory.getStatistics().getEntityLoadCount());
+    assertEquals(Arrays.asList("ann", "bob"), getUsernames(first)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(Arrays.asList("cat", "dan"), getUsernames(second)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(Arrays.asList("eve"), getUsernames(third)); //$NON-NLS-1$
+    assertTrue(fourth.isEmpty());
+  }
+
+  @Test
+  public void testPageStartsAfterUsernameThatIsNotMember() {
+    List<UserSummary> page = userRoleDao.getUsersInRole("Admin", "bz", 10); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(Arrays.asList("cat", "dan", "eve"), getUsernames(page)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  }
+
+  @Test
+  public void testLimitLargerThanRoleReturnsEveryMember() {
+    List<UserSummary> page = userRoleDao.getUsersInRole("Admin", null, 100); //$NON-NLS-1$
+
+    // abe is not a member
+    assertEquals(MEMBERS, getUsernames(page));
+  }
+
+  @Test
+  public void testLimitOfOne() {
+    List<UserSummary> page = userRoleDao.getUsersInRole("Admin", null, 1); //$NON-NLS-1$
+
+    assertEquals(Arrays.asList("ann"), getUsernames(page)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testLimitMustBePositive() {
+    try {
+      userRoleDao.getUsersInRole("Admin", null, 0); //$NON-NLS-1$
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRoleNameMustNotBeBlank() {
+    try {
+      userRoleDao.getUsersInRole("", null, 10); //$NON-NLS-1$
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRoleWithoutMembers() {
+    assertTrue(userRoleDao.getUsersInRole("Guest", null, 10).isEmpty()); //$NON-NLS-1$
+    assertEquals(0, userRoleDao.countUsersInRole("Guest")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testMissingRole() {
+    assertTrue(userRoleDao.getUsersInRole("nothing", null, 10).isEmpty()); //$NON-NLS-1$
+    assertEquals(0, userRoleDao.countUsersInRole("nothing")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCountUsersInRole() {
+    resetStatementCount();
+
+    assertEquals(5, userRoleDao.countUsersInRole("Admin")); //$NON-NLS-1$
+    assertEquals(1, getStatementCount());
+  }
+
+  @Test
+  public void testSummaryHoldsDescriptionAndEnabledFlag() {
+    List<UserSummary> page = userRoleDao.getUsersInRole("Admin", "ann", 2); //$NON-NLS-1$ //$NON-NLS-2$
+
+    UserSummary bob = page.get(0);
+    assertEquals("bob", bob.getUsername()); //$NON-NLS-1$
+    assertEquals("builder", bob.getDescription()); //$NON-NLS-1$
+    assertTrue(bob.isEnabled());
+    UserSummary cat = page.get(1);
+    assertNull(cat.getDescription());
+    assertFalse(cat.isEnabled());
+  }
+
+  private static List<String> getUsernames(final List<UserSummary> summaries) {
+    List<String> usernames = new ArrayList<String>();
+    for (UserSummary summary : summaries) {
+      usernames.add(summary.getUsername());
+    }
+    return usernames;
+  }
+
+}
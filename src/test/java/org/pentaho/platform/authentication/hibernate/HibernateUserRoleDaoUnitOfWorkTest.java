@@ -0,0 +1,111 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The operations of a unit of work run by {@link IUserRoleDao#execute(IUserRoleDaoCallback)} share one transaction 
+ * and one session.
+ */
+public class HibernateUserRoleDaoUnitOfWorkTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createUsers() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testResultIsReturned() {
+    String result = userRoleDao.execute(new IUserRoleDaoCallback<String>() {
+      public String doInUserRoleDao(final IUserRoleDao dao) {
+        return dao.getUser("joe").getUsername(); //$NON-NLS-1$
+      }
+    });
+
+    assertEquals("joe", result); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testOperationsShareOneTransactionAndSession() {
+    resetStatementCount();
+
+    userRoleDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        IUser joe = dao.getUser("joe"); //$NON-NLS-1$
+        // the second lookup finds the user in the session
+        assertSame(joe, dao.getUser("joe")); //$NON-NLS-1$
+        dao.setUserDescription("joe", "changed"); //$NON-NLS-1$ //$NON-NLS-2$
+        dao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+        return null;
+      }
+    });
+
+    assertEquals(1, sessionFactory.getStatistics().getTransactionCount());
+    assertEquals(1, sessionFactory.getStatistics().getEntityLoadCount());
+    assertEquals("changed", userRoleDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("suzy", userRoleDao.getUser("suzy").getUsername()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testFailureRollsBackEveryOperation() {
+    final IllegalStateException failure = new IllegalStateException();
+    try {
+      userRoleDao.execute(new IUserRoleDaoCallback<Object>() {
+        public Object doInUserRoleDao(final IUserRoleDao dao) {
+          dao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+          dao.setUserDescription("joe", "changed"); //$NON-NLS-1$ //$NON-NLS-2$
+          dao.setRoleMembers("Admin", Collections.singleton("joe")); //$NON-NLS-1$ //$NON-NLS-2$
+          dao.deleteRole(dao.getRole("Admin")); //$NON-NLS-1$
+          throw failure;
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+
+    assertNull(userRoleDao.getUser("suzy")); //$NON-NLS-1$
+    assertNull(userRoleDao.getUser("joe").getDescription()); //$NON-NLS-1$
+    assertEquals("Admin", userRoleDao.getRole("Admin").getName()); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(userRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testCallbackIsRequired() {
+    try {
+      hibernateUserRoleDao.execute(null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
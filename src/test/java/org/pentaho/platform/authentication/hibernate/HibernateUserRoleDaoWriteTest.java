@@ -0,0 +1,290 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes of users that refer to roles the caller built itself, rather than loaded.
+ */
+public class HibernateUserRoleDaoWriteTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createRoles() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCreateUserWithNewRoleReference() {
+    CustomUser user = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+
+    userRoleDao.createUser(user);
+
+    assertNull(user.getVersion());
+    assertEquals(user.getRoles(), userRoleDao.getUser("joe").getRoles()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCreateUsersWithNewRoleReferences() {
+    CustomUser joe = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    CustomUser suzy = new CustomUser("suzy", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    suzy.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+
+    userRoleDao.createUsers(Arrays.<IUser> asList(joe, suzy));
+
+    assertEquals(joe.getRoles(), userRoleDao.getUser("joe").getRoles()); //$NON-NLS-1$
+    assertEquals(suzy.getRoles(), userRoleDao.getUser("suzy").getRoles()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUpdateUserFromCache() {
+    CustomUser user = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    user.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createUser(user);
+    UserRoleDaoCachingDecorator cachingDao = new UserRoleDaoCachingDecorator();
+    cachingDao.setUserRoleDao(userRoleDao);
+    cachingDao.getUser("joe"); //$NON-NLS-1$
+
+    // a cache hit rebuilds the user, with roles that were not loaded
+    IUser cached = cachingDao.getUser("joe"); //$NON-NLS-1$
+    cached.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    Long version = cached.getVersion();
+    cachingDao.updateUser(cached);
+
+    IUser stored = cachingDao.getUser("joe"); //$NON-NLS-1$
+    assertEquals(2, stored.getRoles().size());
+    assertTrue(stored.getVersion().longValue() > version.longValue());
+    assertEquals(stored.getVersion(), cached.getVersion());
+  }
+
+  @Test
+  public void testUpdateSameUserTwice() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    IUser user = userRoleDao.getUser("joe"); //$NON-NLS-1$
+
+    user.setDescription("first"); //$NON-NLS-1$
+    userRoleDao.updateUser(user);
+    user.setDescription("second"); //$NON-NLS-1$
+    userRoleDao.updateUser(user);
+
+    IUser stored = userRoleDao.getUser("joe"); //$NON-NLS-1$
+    assertEquals("second", stored.getDescription()); //$NON-NLS-1$
+    assertEquals(stored.getVersion(), user.getVersion());
+  }
+
+  @Test
+  public void testUpdateSameRoleTwice() {
+    IRole role = userRoleDao.getRole("Admin"); //$NON-NLS-1$
+
+    role.setDescription("first"); //$NON-NLS-1$
+    userRoleDao.updateRole(role);
+    role.setDescription("second"); //$NON-NLS-1$
+    userRoleDao.updateRole(role);
+
+    IRole stored = userRoleDao.getRole("Admin"); //$NON-NLS-1$
+    assertEquals("second", stored.getDescription()); //$NON-NLS-1$
+    assertEquals(stored.getVersion(), role.getVersion());
+  }
+
+  @Test
+  public void testStaleUpdateInUnitOfWorkIsNotFlushedAgain() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    final IUser stale = userRoleDao.getUser("joe"); //$NON-NLS-1$
+    IUser current = userRoleDao.getUser("joe"); //$NON-NLS-1$
+    current.setDescription("current"); //$NON-NLS-1$
+    userRoleDao.updateUser(current);
+
+    userRoleDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        stale.setDescription("stale"); //$NON-NLS-1$
+        try {
+          dao.updateUser(stale);
+          fail();
+        } catch (ConcurrentUpdateException e) {
+          // expected
+        }
+        dao.setRoleDescription("Admin", "administrators"); //$NON-NLS-1$ //$NON-NLS-2$
+        return null;
+      }
+    });
+
+    assertEquals("current", userRoleDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("administrators", userRoleDao.getRole("Admin").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testUpdateUsersWithNewRoleReferences() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    CustomUser user = new CustomUser("joe", "changed", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+
+    userRoleDao.updateUsers(Arrays.<IUser> asList(user));
+
+    assertNull(user.getVersion());
+    assertEquals(user.getRoles(), userRoleDao.getUser("joe").getRoles()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUpdateRoleLeavesVersionAlone() {
+    CustomRole role = new CustomRole("Admin", "administrators"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    userRoleDao.updateRole(role);
+
+    assertNull(role.getVersion());
+    assertEquals("administrators", userRoleDao.getRole("Admin").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testCreateRolesSavesCopies() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    CustomRole role = new CustomRole("Power User"); //$NON-NLS-1$
+    role.addUser(new CustomUser("joe", null, null, true)); //$NON-NLS-1$
+
+    userRoleDao.createRoles(Arrays.<IRole> asList(role));
+
+    assertNull(role.getVersion());
+    assertEquals(1, role.getUsers().size());
+    assertEquals(1, userRoleDao.countUsersInRole("Power User")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCreateRolesWithMissingMemberCreatesNothing() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    CustomRole first = new CustomRole("Power User"); //$NON-NLS-1$
+    first.addUser(new CustomUser("joe", null, null, true)); //$NON-NLS-1$
+    CustomRole second = new CustomRole("Guest"); //$NON-NLS-1$
+    second.addUser(new CustomUser("nobody", null, null, true)); //$NON-NLS-1$
+
+    try {
+      userRoleDao.createRoles(Arrays.<IRole> asList(first, second));
+      fail();
+    } catch (NotFoundException e) {
+      // expected
+    }
+
+    assertNull(userRoleDao.getRole("Power User")); //$NON-NLS-1$
+    assertNull(userRoleDao.getRole("Guest")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCreateRoleWithMissingMemberCreatesNothing() {
+    CustomRole role = new CustomRole("Guest"); //$NON-NLS-1$
+    role.addUser(new CustomUser("nobody", null, null, true)); //$NON-NLS-1$
+
+    try {
+      userRoleDao.createRole(role);
+      fail();
+    } catch (NotFoundException e) {
+      // expected
+    }
+
+    assertNull(role.getVersion());
+    assertNull(userRoleDao.getRole("Guest")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCreateRoleForUserCreatedInSameUnitOfWork() {
+    userRoleDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        dao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+        CustomRole role = new CustomRole("Guest"); //$NON-NLS-1$
+        role.addUser(new CustomUser("joe")); //$NON-NLS-1$
+        dao.createRole(role);
+        return null;
+      }
+    });
+
+    assertTrue(userRoleDao.isUserInRole("joe", "Guest")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testUpdateLoadedRoleKeepsItsMembers() {
+    CustomUser user = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(user);
+
+    IRole role = userRoleDao.getRole("Admin"); //$NON-NLS-1$
+    role.setDescription("administrators"); //$NON-NLS-1$
+    userRoleDao.updateRole(role);
+
+    assertEquals(1, userRoleDao.countUsersInRole("Admin")); //$NON-NLS-1$
+    assertTrue(userRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testSetRoleMembersReplacesTheMembers() {
+    CustomUser joe = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+
+    userRoleDao.setRoleMembers("Admin", Arrays.asList("suzy")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertFalse(userRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(userRoleDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testSetRoleMembersWithMissingUserChangesNothing() {
+    CustomUser joe = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+
+    try {
+      userRoleDao.setRoleMembers("Admin", Arrays.asList("nobody")); //$NON-NLS-1$ //$NON-NLS-2$
+      fail();
+    } catch (NotFoundException e) {
+      // expected
+    }
+
+    assertTrue(userRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testRemoveUserDeletesOnlyTheMembership() {
+    CustomUser user = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    user.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(user);
+    resetStatementCount();
+
+    hibernateUserRoleDao.removeUser(new CustomRole("Admin"), "joe"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(1, getStatementCount());
+    assertFalse(userRoleDao.getUser("joe").getRoles().contains(new CustomRole("Admin"))); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test(expected = NotFoundException.class)
+  public void testRemoveUserThatDoesNotExist() {
+    hibernateUserRoleDao.removeUser(new CustomRole("Admin"), "nobody"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Bucketing and percentile estimates of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  // ~ Methods =========================================================================================================
+
+  @Test
+  public void testBucketMidpointIsWithinPrecision() {
+    int previous = -1;
+    for (long value = 0; value < 1L << 36; value = value * 5 / 4 + 1) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(String.valueOf(value), index >= previous);
+      long midpoint = LatencyHistogram.bucketMidpoint(index);
+      assertTrue(String.valueOf(value), Math.abs(midpoint - value) <= value / 16.0);
+      previous = index;
+    }
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    for (int value = 0; value < 16; value++) {
+      assertEquals(value, LatencyHistogram.bucketMidpoint(LatencyHistogram.bucketIndex(value)));
+    }
+  }
+
+  @Test
+  public void testVeryLongDurationIsCounted() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE / 2);
+
+    assertEquals(1, histogram.getCount());
+    assertEquals(Long.MAX_VALUE / 2, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500.5, histogram.getMeanMicros(), 0.001);
+    assertEquals(1000, histogram.getMaxMicros());
+    assertWithinPrecision(500, histogram.getPercentileMicros(50));
+    assertWithinPrecision(990, histogram.getPercentileMicros(99));
+    assertEquals(1000, histogram.getPercentileMicros(100));
+  }
+
+  @Test
+  public void testNegativeDurationIsRecordedAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+
+    assertEquals(0, histogram.getPercentileMicros(50));
+    assertEquals(0, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void testResetForgetsEverything() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxMicros());
+    assertEquals(0, histogram.getMeanMicros(), 0);
+    assertEquals(0, histogram.getPercentileMicros(50));
+  }
+
+  private static void assertWithinPrecision(final long expected, final long actual) {
+    assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected / 16.0); //$NON-NLS-1$
+  }
+
+}
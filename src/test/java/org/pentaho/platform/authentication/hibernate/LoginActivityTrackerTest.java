@@ -0,0 +1,90 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lockouts, and how often {@link LoginActivityTracker} reads the database to decide them.
+ */
+public class LoginActivityTrackerTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private LoginActivityTracker tracker;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createTracker() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    tracker = new LoginActivityTracker();
+    tracker.setSessionFactory(sessionFactory);
+    tracker.setTransactionTemplate(transactionTemplate);
+    tracker.setMaxFailedLogins(2);
+  }
+
+  @Test
+  public void testUnknownUsernameIsReadOnce() {
+    resetStatementCount();
+
+    tracker.loginFailed("nobody"); //$NON-NLS-1$
+    tracker.loginFailed("nobody"); //$NON-NLS-1$
+    assertFalse(tracker.isLocked("nobody")); //$NON-NLS-1$
+
+    assertEquals(1, getStatementCount());
+    assertEquals(1, tracker.getUnknownUsernameCount());
+    assertEquals(0, tracker.getTrackedUserCount());
+  }
+
+  @Test
+  public void testCreatedUserIsTrackedOnceReported() {
+    tracker.loginFailed("suzy"); //$NON-NLS-1$
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    tracker.usersChanged(Collections.singleton("suzy")); //$NON-NLS-1$
+
+    tracker.loginFailed("suzy"); //$NON-NLS-1$
+    tracker.loginFailed("suzy"); //$NON-NLS-1$
+
+    assertTrue(tracker.isLocked("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testFailuresAreWrittenAndReadBack() {
+    tracker.loginFailed("joe"); //$NON-NLS-1$
+    tracker.loginFailed("joe"); //$NON-NLS-1$
+    tracker.flush();
+
+    LoginActivityTracker other = new LoginActivityTracker();
+    other.setSessionFactory(sessionFactory);
+    other.setTransactionTemplate(transactionTemplate);
+    other.setMaxFailedLogins(2);
+    assertTrue(other.isLocked("joe")); //$NON-NLS-1$
+
+    tracker.loginSucceeded("joe"); //$NON-NLS-1$
+    assertFalse(tracker.isLocked("joe")); //$NON-NLS-1$
+  }
+
+}
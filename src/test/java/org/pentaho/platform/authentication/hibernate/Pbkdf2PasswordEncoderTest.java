@@ -0,0 +1,98 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Which stored passwords {@link Pbkdf2PasswordEncoder} agrees to hash.
+ */
+public class Pbkdf2PasswordEncoderTest {
+
+  // ~ Instance fields =================================================================================================
+
+  private Pbkdf2PasswordEncoder encoder;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createEncoder() throws Exception {
+    encoder = new Pbkdf2PasswordEncoder();
+    encoder.setIterations(1000);
+    encoder.setThreads(1);
+    encoder.init();
+  }
+
+  @After
+  public void destroyEncoder() {
+    encoder.destroy();
+  }
+
+  @Test
+  public void testEncodedPasswordIsValid() {
+    String encoded = encoder.encodePassword("password", null); //$NON-NLS-1$
+
+    assertTrue(encoder.isPasswordValid(encoded, "password", null)); //$NON-NLS-1$
+    assertFalse(encoder.isPasswordValid(encoded, "wrong", null)); //$NON-NLS-1$
+    assertEquals(10000, encoder.getMaxIterations());
+  }
+
+  @Test
+  public void testUnknownAlgorithmIsRejected() {
+    String encoded = encoder.encodePassword("password", null); //$NON-NLS-1$
+
+    assertFalse(encoder.isPasswordValid(encoded.replace(Pbkdf2PasswordEncoder.DEFAULT_ALGORITHM, "NoSuchAlgorithm"), //$NON-NLS-1$
+        "password", null)); //$NON-NLS-1$
+    assertFalse(encoder.isPasswordValid(encoded.replace(Pbkdf2PasswordEncoder.DEFAULT_ALGORITHM, "PBEWithMD5AndDES"), //$NON-NLS-1$
+        "password", null)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testTooManyIterationsAreRejected() {
+    String encoded = encoder.encodePassword("password", null); //$NON-NLS-1$
+
+    assertFalse(encoder.isPasswordValid(encoded.replace("}1000$", "}10001$"), "password", null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    assertFalse(encoder.isPasswordValid(encoded.replace("}1000$", "}2147483647$"), "password", null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  }
+
+  @Test
+  public void testHashingBeforeInitFails() {
+    Pbkdf2PasswordEncoder uninitialized = new Pbkdf2PasswordEncoder();
+    uninitialized.setIterations(1000);
+    try {
+      uninitialized.encodePassword("password", null); //$NON-NLS-1$
+      fail();
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("init()")); //$NON-NLS-1$
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAlgorithmMustBeAllowed() throws Exception {
+    Pbkdf2PasswordEncoder other = new Pbkdf2PasswordEncoder();
+    other.setAlgorithm("PBEWithMD5AndDES"); //$NON-NLS-1$
+    other.init();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Normalization of names by {@link SearchKeys}, and prefix searches of the database with its patterns.
+ */
+public class SearchKeysTest extends HibernateTestSupport {
+
+  // ~ Methods =========================================================================================================
+
+  @Test
+  public void testNormalizeIgnoresDefaultLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR")); //$NON-NLS-1$ //$NON-NLS-2$
+    try {
+      assertEquals("title", SearchKeys.normalize("TITLE")); //$NON-NLS-1$ //$NON-NLS-2$
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+    assertNull(SearchKeys.normalize(null));
+  }
+
+  @Test
+  public void testPrefixPatternEscapesWildcards() {
+    assertEquals("joe%", SearchKeys.prefixPattern("Joe")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("a!_b!%c!!%", SearchKeys.prefixPattern("a_b%c!")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("%", SearchKeys.prefixPattern("")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testFindUsersMatchesWildcardsLiterally() {
+    for (String username : new String[] { "a_b", "axb", "a%b", "a!b", "A_C" }) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+      userRoleDao.createUser(new CustomUser(username, "password", null, true)); //$NON-NLS-1$
+    }
+
+    assertEquals("[a_b, A_C]", findUsernames("a_")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("[a%b]", findUsernames("A%")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("[a!b]", findUsernames("a!")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("[a!b, a%b, a_b, A_C, axb]", findUsernames("a")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private String findUsernames(final String prefix) {
+    List<String> usernames = new ArrayList<String>();
+    for (UserSummary user : userRoleDao.findUsers(prefix, 10)) {
+      usernames.add(user.getUsername());
+    }
+    return usernames.toString();
+  }
+
+}
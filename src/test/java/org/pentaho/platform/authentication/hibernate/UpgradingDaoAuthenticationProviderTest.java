@@ -0,0 +1,101 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.providers.UsernamePasswordAuthenticationToken;
+
+/**
+ * Upgrades of legacy passwords by {@link UpgradingDaoAuthenticationProvider}, and the user cache afterwards.
+ */
+public class UpgradingDaoAuthenticationProviderTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private Pbkdf2PasswordEncoder passwordEncoder;
+
+  private ExpiringUserCache userCache;
+
+  private UpgradingDaoAuthenticationProvider provider;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createProvider() throws Exception {
+    passwordEncoder = new Pbkdf2PasswordEncoder();
+    passwordEncoder.setIterations(1000);
+    passwordEncoder.setThreads(1);
+    passwordEncoder.setLegacyPasswordEncoder(new Base64PasswordEncoder());
+    passwordEncoder.init();
+
+    UserRoleDaoUserDetailsService userDetailsService = new UserRoleDaoUserDetailsService();
+    userDetailsService.setUserRoleDao(userRoleDao);
+    userDetailsService.afterPropertiesSet();
+
+    userCache = new ExpiringUserCache();
+    provider = new UpgradingDaoAuthenticationProvider();
+    provider.setUserDetailsService(userDetailsService);
+    provider.setPasswordEncoder(passwordEncoder);
+    provider.setUserCache(userCache);
+    provider.setUserRoleDao(userRoleDao);
+    provider.afterPropertiesSet();
+
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    CustomUser user = new CustomUser("joe", new Base64PasswordEncoder().encodePassword("password", null), null, //$NON-NLS-1$ //$NON-NLS-2$
+        true);
+    user.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createUser(user);
+  }
+
+  @After
+  public void destroyPasswordEncoder() {
+    passwordEncoder.destroy();
+  }
+
+  @Test
+  public void testUpgradedUserIsNotLeftInCache() {
+    provider.authenticate(new UsernamePasswordAuthenticationToken("joe", "password")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    String upgraded = userRoleDao.getUserCredentials("joe").getPassword(); //$NON-NLS-1$
+    assertFalse(passwordEncoder.isUpgradeNeeded(upgraded));
+    assertNull(userCache.getUserFromCache("joe")); //$NON-NLS-1$
+
+    provider.authenticate(new UsernamePasswordAuthenticationToken("joe", "password")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(upgraded, userCache.getUserFromCache("joe").getPassword()); //$NON-NLS-1$
+    assertEquals(upgraded, userRoleDao.getUserCredentials("joe").getPassword()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testCurrentPasswordIsNotUpgraded() {
+    userRoleDao.changePassword("joe", passwordEncoder.encodePassword("password", null)); //$NON-NLS-1$ //$NON-NLS-2$
+    String current = userRoleDao.getUserCredentials("joe").getPassword(); //$NON-NLS-1$
+
+    provider.authenticate(new UsernamePasswordAuthenticationToken("joe", "password")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(current, userRoleDao.getUserCredentials("joe").getPassword()); //$NON-NLS-1$
+    assertTrue(userCache.getUserFromCache("joe") != null); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Change records written by {@link HibernateUserRoleDao}, as purged by it and read by {@link UserRoleChangePoller}.
+ */
+public class UserRoleChangePollerTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleChangePoller poller;
+
+  private final Set<String> changedUsernames = new LinkedHashSet<String>();
+
+  private final Set<String> changedRoleNames = new LinkedHashSet<String>();
+
+  private int allChangedCount;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createPoller() {
+    hibernateUserRoleDao.setChangeTrackingEnabled(true);
+    poller = new UserRoleChangePoller();
+    poller.setSessionFactory(sessionFactory);
+    List<IUserRoleChangeListener> listeners = new ArrayList<IUserRoleChangeListener>();
+    listeners.add(new IUserRoleChangeListener() {
+      public void usersChanged(final Set<String> usernames) {
+        changedUsernames.addAll(usernames);
+      }
+
+      public void rolesChanged(final Set<String> roleNames) {
+        changedRoleNames.addAll(roleNames);
+      }
+
+      public void allChanged() {
+        allChangedCount++;
+      }
+    });
+    poller.setListeners(listeners);
+  }
+
+  @Test
+  public void testPollDispatchesChangedUsers() {
+    createUsers(3);
+
+    poller.poll();
+
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("user0", "user1", "user2")), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        changedUsernames);
+    assertEquals(0, allChangedCount);
+    assertEquals(3, poller.getGeneration());
+  }
+
+  @Test
+  public void testGapWithinBatchInvalidatesEverything() {
+    createUsers(3);
+    executeSql("delete from USER_ROLE_CHANGES where GENERATION = 2", false); //$NON-NLS-1$
+
+    poller.poll();
+
+    assertEquals(1, allChangedCount);
+    assertEquals(Collections.<String> emptySet(), changedUsernames);
+  }
+
+  @Test
+  public void testPurgeKeepsRetainedGenerations() {
+    hibernateUserRoleDao.setChangeRetentionGenerations(10);
+
+    createUsers(100);
+
+    assertEquals(10, executeSql("select count(*) from USER_ROLE_CHANGES", true)); //$NON-NLS-1$
+    assertEquals(91, executeSql("select min(GENERATION) from USER_ROLE_CHANGES", true)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testDeleteRoleRecordsOnlyTheRole() {
+    createUsers(3);
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.setRoleMembers("Admin", Arrays.asList("user0", "user1", "user2")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    poller.poll();
+    changedUsernames.clear();
+    changedRoleNames.clear();
+    long changeCount = executeSql("select count(*) from USER_ROLE_CHANGES", true); //$NON-NLS-1$
+
+    userRoleDao.deleteRole(new CustomRole("Admin")); //$NON-NLS-1$
+    poller.poll();
+
+    assertEquals(changeCount + 1, executeSql("select count(*) from USER_ROLE_CHANGES", true)); //$NON-NLS-1$
+    assertEquals(Collections.<String> emptySet(), changedUsernames);
+    assertEquals(Collections.singleton("Admin"), changedRoleNames); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testRequiresNewTransactionWritesItsOwnChanges() {
+    createUsers(1);
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    poller.poll();
+    changedUsernames.clear();
+    final TransactionTemplate requiresNew = new TransactionTemplate(transactionTemplate.getTransactionManager());
+    requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      protected void doInTransactionWithoutResult(final TransactionStatus status) {
+        hibernateUserRoleDao.setRoleDescription("Admin", "administrators"); //$NON-NLS-1$ //$NON-NLS-2$
+        requiresNew.execute(new TransactionCallbackWithoutResult() {
+          protected void doInTransactionWithoutResult(final TransactionStatus innerStatus) {
+            hibernateUserRoleDao.setUserDescription("user0", "changed"); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+        });
+        status.setRollbackOnly();
+      }
+    });
+    poller.poll();
+
+    assertEquals(Collections.singleton("user0"), changedUsernames); //$NON-NLS-1$
+  }
+
+  private void createUsers(final int count) {
+    for (int i = 0; i < count; i++) {
+      userRoleDao.createUser(new CustomUser("user" + i, "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /**
+   * @return the single numeric result of a query, or the update count of any other statement
+   */
+  private long executeSql(final String sql, final boolean query) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      long result = query ? ((Number) session.createSQLQuery(sql).uniqueResult()).longValue()
+          : session.createSQLQuery(sql).executeUpdate();
+      session.getTransaction().commit();
+      return result;
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Role writes through the index adjust it in memory, and units of work only reload what they wrote.
+ */
+public class UserRoleDaoAuthorizationIndexDecoratorTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleDaoAuthorizationIndexDecorator indexDao;
+
+  private final AtomicInteger scanCount = new AtomicInteger();
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createIndex() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    UserRoleDaoDecoratorSupport scanningDao = new UserRoleDaoDecoratorSupport() {
+      public void scrollUsers(final UserHandler handler) {
+        scanCount.incrementAndGet();
+        super.scrollUsers(handler);
+      }
+    };
+    scanningDao.setUserRoleDao(userRoleDao);
+    indexDao = new UserRoleDaoAuthorizationIndexDecorator();
+    indexDao.setUserRoleDao(scanningDao);
+    indexDao.init();
+  }
+
+  @Test
+  public void testRoleWritesUpdateTheIndex() {
+    CustomRole admin = new CustomRole("Admin"); //$NON-NLS-1$
+    admin.addUser(new CustomUser("joe")); //$NON-NLS-1$
+    indexDao.createRole(admin);
+
+    assertTrue(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    admin = new CustomRole("Admin"); //$NON-NLS-1$
+    admin.addUser(new CustomUser("suzy")); //$NON-NLS-1$
+    indexDao.updateRole(admin);
+
+    assertTrue(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    indexDao.setRoleMembers("Admin", Arrays.asList("suzy")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertFalse(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(hibernateUserRoleDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(hibernateUserRoleDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testRoleChangeReloadsItsMembers() {
+    CustomRole admin = new CustomRole("Admin"); //$NON-NLS-1$
+    admin.addUser(new CustomUser("joe")); //$NON-NLS-1$
+    indexDao.createRole(admin);
+
+    // deleted behind the index, and reported as a change of the role only
+    userRoleDao.deleteRole(new CustomRole("Admin")); //$NON-NLS-1$
+    indexDao.rolesChanged(Collections.singleton("Admin")); //$NON-NLS-1$
+
+    assertFalse(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testFailedRoleWriteLeavesTheIndexAlone() {
+    CustomRole admin = new CustomRole("Admin"); //$NON-NLS-1$
+    admin.addUser(new CustomUser("joe")); //$NON-NLS-1$
+    admin.addUser(new CustomUser("nobody")); //$NON-NLS-1$
+    try {
+      indexDao.createRole(admin);
+    } catch (NotFoundException e) {
+      // the transaction was rolled back
+    }
+
+    assertFalse(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testDeletingRoleTakesItFromMembersAddedByUserWrites() {
+    indexDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    CustomUser suzy = new CustomUser("suzy", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    suzy.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    indexDao.updateUser(suzy);
+    assertTrue(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    indexDao.deleteRole(new CustomRole("Admin")); //$NON-NLS-1$
+
+    assertFalse(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testExecuteReloadsOnlyWhatItWrote() {
+    indexDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        CustomRole admin = new CustomRole("Admin"); //$NON-NLS-1$
+        admin.addUser(new CustomUser("joe")); //$NON-NLS-1$
+        dao.createRole(admin);
+        CustomUser bob = new CustomUser("bob", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+        bob.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+        dao.createUser(bob);
+        return null;
+      }
+    });
+
+    assertTrue(indexDao.isUserInRole("joe", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(indexDao.isUserInRole("bob", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(indexDao.isUserInRole("suzy", "Admin")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(1, scanCount.get());
+  }
+
+  @Test
+  public void testCreateRolesToleratesAWrappedDaoThatAcceptsNull() {
+    UserRoleDaoDecoratorSupport lenientDao = new UserRoleDaoDecoratorSupport() {
+      public BatchResult createRoles(final Collection<IRole> newRoles) {
+        return newRoles != null ? super.createRoles(newRoles) : new BatchResult();
+      }
+    };
+    lenientDao.setUserRoleDao(userRoleDao);
+    indexDao.setUserRoleDao(lenientDao);
+
+    assertEquals(0, indexDao.createRoles(null).size());
+  }
+
+}
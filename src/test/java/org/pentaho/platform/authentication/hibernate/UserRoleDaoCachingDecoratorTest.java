@@ -0,0 +1,143 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Invalidation of the caching decorator by writes, including writes that race with a load.
+ */
+public class UserRoleDaoCachingDecoratorTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleDaoCachingDecorator cachingDao;
+
+  /**
+   * Counted down by a gated load once it has read the user.
+   */
+  private CountDownLatch loaded;
+
+  /**
+   * Awaited by a gated load before it returns.
+   */
+  private CountDownLatch proceed;
+
+  private ExecutorService executor;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createCachingDao() {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    CustomUser joe = new CustomUser("joe", "password", "before", true); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+
+    UserRoleDaoDecoratorSupport gate = new UserRoleDaoDecoratorSupport() {
+      public IUser getUser(final String username) {
+        IUser user = super.getUser(username);
+        if (loaded != null) {
+          loaded.countDown();
+          await(proceed);
+        }
+        return user;
+      }
+    };
+    gate.setUserRoleDao(userRoleDao);
+    cachingDao = new UserRoleDaoCachingDecorator();
+    cachingDao.setUserRoleDao(gate);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testWriteInvalidatesTheUser() {
+    IUser user = cachingDao.getUser("joe"); //$NON-NLS-1$
+    user.setDescription("after"); //$NON-NLS-1$
+
+    cachingDao.updateUser(user);
+
+    assertEquals("after", cachingDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testWriteInvalidatesTheCredentials() {
+    cachingDao.getUserCredentials("joe"); //$NON-NLS-1$
+
+    cachingDao.changePassword("joe", "changed"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals("changed", cachingDao.getUserCredentials("joe").getPassword()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testStaleLoadRacingAWriteIsNotCached() throws Exception {
+    loaded = new CountDownLatch(1);
+    proceed = new CountDownLatch(1);
+    Future<IUser> load = executor.submit(new Callable<IUser>() {
+      public IUser call() {
+        return cachingDao.getUser("joe"); //$NON-NLS-1$
+      }
+    });
+    await(loaded);
+    cachingDao.setUserDescription("joe", "after"); //$NON-NLS-1$ //$NON-NLS-2$
+    proceed.countDown();
+
+    assertEquals("before", load.get(10, TimeUnit.SECONDS).getDescription()); //$NON-NLS-1$
+    loaded = null;
+    assertEquals("after", cachingDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void testRoleChangeDropsTheUsersHoldingIt() {
+    cachingDao.getUser("joe"); //$NON-NLS-1$
+    cachingDao.getUserCredentials("joe"); //$NON-NLS-1$
+    userRoleDao.deleteRole(new CustomRole("Admin")); //$NON-NLS-1$
+
+    cachingDao.rolesChanged(Collections.singleton("Admin")); //$NON-NLS-1$
+
+    assertTrue(cachingDao.getUser("joe").getRoles().isEmpty()); //$NON-NLS-1$
+    assertTrue(cachingDao.getUserCredentials("joe").getRoleNames().isEmpty()); //$NON-NLS-1$
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lookups joining a load in flight, and the cases where they must not share it.
+ */
+public class UserRoleDaoCoalescingDecoratorTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleDaoCoalescingDecorator coalescingDao;
+
+  /**
+   * Whether the next load is held until {@link #proceed} is counted down.
+   */
+  private final AtomicBoolean gated = new AtomicBoolean();
+
+  /**
+   * Counted down by a gated load once it has read the user.
+   */
+  private final CountDownLatch loaded = new CountDownLatch(1);
+
+  private final CountDownLatch proceed = new CountDownLatch(1);
+
+  /**
+   * Thrown by the gated load instead of returning, if set.
+   */
+  private volatile RuntimeException failure;
+
+  private ExecutorService executor;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createCoalescingDao() {
+    userRoleDao.createRole(new CustomRole("Admin", "before")); //$NON-NLS-1$ //$NON-NLS-2$
+    CustomUser joe = new CustomUser("joe", "password", "before", true); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+
+    UserRoleDaoDecoratorSupport gate = new UserRoleDaoDecoratorSupport() {
+      public IUser getUser(final String username) {
+        IUser user = super.getUser(username);
+        if (gated.compareAndSet(true, false)) {
+          loaded.countDown();
+          await(proceed);
+          if (failure != null) {
+            throw failure;
+          }
+        }
+        return user;
+      }
+    };
+    gate.setUserRoleDao(userRoleDao);
+    coalescingDao = new UserRoleDaoCoalescingDecorator();
+    coalescingDao.setUserRoleDao(gate);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentLookupsShareOneLoad() throws Exception {
+    Future<IUser> first = startGatedLoad();
+    Future<IUser> second = submitGetUser();
+    awaitCoalesced();
+    proceed.countDown();
+
+    IUser firstUser = first.get(10, TimeUnit.SECONDS);
+    IUser secondUser = second.get(10, TimeUnit.SECONDS);
+    assertEquals("joe", firstUser.getUsername()); //$NON-NLS-1$
+    assertEquals("joe", secondUser.getUsername()); //$NON-NLS-1$
+    assertEquals(1, coalescingDao.getLoadCount());
+  }
+
+  @Test
+  public void testSharedLoadGivesEachCallerItsOwnCopy() throws Exception {
+    Future<IUser> first = startGatedLoad();
+    Future<IUser> second = submitGetUser();
+    awaitCoalesced();
+    proceed.countDown();
+
+    IUser firstUser = first.get(10, TimeUnit.SECONDS);
+    IUser secondUser = second.get(10, TimeUnit.SECONDS);
+    assertNotSame(firstUser, secondUser);
+    IRole firstRole = firstUser.getRoles().iterator().next();
+    IRole secondRole = secondUser.getRoles().iterator().next();
+    assertNotSame(firstRole, secondRole);
+    firstRole.setDescription("changed"); //$NON-NLS-1$
+    assertEquals("before", secondRole.getDescription()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testFailedLoadFailsEveryCallerSharingIt() throws Exception {
+    failure = new UncategorizedUserRoleDaoException("failed"); //$NON-NLS-1$
+    Future<IUser> first = startGatedLoad();
+    Future<IUser> second = submitGetUser();
+    awaitCoalesced();
+    proceed.countDown();
+
+    assertFailedWith(failure, first);
+    assertFailedWith(failure, second);
+    assertEquals(1, coalescingDao.getLoadCount());
+  }
+
+  @Test
+  public void testLookupAfterOwnWriteDoesNotShareAnOlderLoad() throws Exception {
+    Future<IUser> stale = startGatedLoad();
+
+    coalescingDao.setUserDescription("joe", "after"); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("after", coalescingDao.getUser("joe").getDescription()); //$NON-NLS-1$ //$NON-NLS-2$
+
+    proceed.countDown();
+    assertEquals("before", stale.get(10, TimeUnit.SECONDS).getDescription()); //$NON-NLS-1$
+    assertEquals(0, coalescingDao.getCoalescedCount());
+  }
+
+  /**
+   * Starts a lookup of joe that holds its load until {@link #proceed} is counted down.
+   */
+  private Future<IUser> startGatedLoad() {
+    gated.set(true);
+    Future<IUser> load = submitGetUser();
+    await(loaded);
+    return load;
+  }
+
+  private Future<IUser> submitGetUser() {
+    return executor.submit(new Callable<IUser>() {
+      public IUser call() {
+        return coalescingDao.getUser("joe"); //$NON-NLS-1$
+      }
+    });
+  }
+
+  /**
+   * Waits until a lookup has joined the load in flight; there is no event to wait for, so the count is polled.
+   */
+  private void awaitCoalesced() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (coalescingDao.getCoalescedCount() == 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void assertFailedWith(final RuntimeException expected, final Future<IUser> lookup) throws Exception {
+    try {
+      lookup.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertSame(expected, e.getCause());
+    }
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
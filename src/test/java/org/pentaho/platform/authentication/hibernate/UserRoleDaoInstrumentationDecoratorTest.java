@@ -0,0 +1,93 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Registration of the MBeans of {@link UserRoleDaoInstrumentationDecorator}.
+ */
+public class UserRoleDaoInstrumentationDecoratorTest {
+
+  // ~ Instance fields =================================================================================================
+
+  private MBeanServer mbeanServer;
+
+  private ObjectName allNames;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createMBeanServer() throws Exception {
+    mbeanServer = MBeanServerFactory.newMBeanServer();
+    allNames = new ObjectName(UserRoleDaoInstrumentationDecorator.DEFAULT_OBJECT_NAME_PREFIX + ",*"); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testSecondInstanceWithSamePrefixFailsAndRegistersNothing() throws Exception {
+    UserRoleDaoInstrumentationDecorator first = createDecorator();
+    first.init();
+    int registered = mbeanServer.queryNames(allNames, null).size();
+
+    try {
+      createDecorator().init();
+      fail();
+    } catch (InstanceAlreadyExistsException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("objectNamePrefix")); //$NON-NLS-1$
+    }
+
+    assertEquals(registered, mbeanServer.queryNames(allNames, null).size());
+    first.destroy();
+    assertEquals(0, mbeanServer.queryNames(allNames, null).size());
+  }
+
+  @Test
+  public void testFailedInitUnregistersWhatItRegistered() throws Exception {
+    // taken by someone else, so that registration fails part way through
+    ObjectName taken = new ObjectName(UserRoleDaoInstrumentationDecorator.DEFAULT_OBJECT_NAME_PREFIX
+        + ",method=getUser"); //$NON-NLS-1$
+    mbeanServer.registerMBean(new MethodStatistics("getUser"), taken); //$NON-NLS-1$
+
+    try {
+      createDecorator().init();
+      fail();
+    } catch (InstanceAlreadyExistsException e) {
+      // expected
+    }
+
+    assertEquals(1, mbeanServer.queryNames(allNames, null).size());
+    assertTrue(mbeanServer.isRegistered(taken));
+  }
+
+  private UserRoleDaoInstrumentationDecorator createDecorator() {
+    UserRoleDaoInstrumentationDecorator decorator = new UserRoleDaoInstrumentationDecorator();
+    decorator.setMbeanServer(mbeanServer);
+    return decorator;
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Bloom filter of {@link UserRoleDaoNegativeCacheDecorator} never rejects a user that exists.
+ */
+public class UserRoleDaoNegativeCacheDecoratorTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleDaoNegativeCacheDecorator negativeCacheDao;
+
+  private final AtomicInteger scanCount = new AtomicInteger();
+
+  /**
+   * Counted down when a scan starts; a scan then waits for {@link #proceed}, if set.
+   */
+  private final CountDownLatch scanStarted = new CountDownLatch(2);
+
+  private volatile CountDownLatch proceed;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createDecorator() {
+    userRoleDao.createUser(new CustomUser("joe", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    UserRoleDaoDecoratorSupport scanningDao = new UserRoleDaoDecoratorSupport() {
+      public void scrollUsernames(final UsernameHandler handler) {
+        scanCount.incrementAndGet();
+        scanStarted.countDown();
+        await(proceed);
+        super.scrollUsernames(handler);
+      }
+    };
+    scanningDao.setUserRoleDao(userRoleDao);
+    negativeCacheDao = new UserRoleDaoNegativeCacheDecorator();
+    negativeCacheDao.setUserRoleDao(scanningDao);
+    // few counters, so that the hashes of different users overlap
+    negativeCacheDao.setExpectedUserCount(1);
+    negativeCacheDao.setFalsePositiveProbability(0.5);
+    negativeCacheDao.init();
+  }
+
+  @After
+  public void destroyDecorator() {
+    negativeCacheDao.destroy();
+  }
+
+  @Test
+  public void testUserCreatedDuringRebuild() {
+    // the rebuild runs after the user was added to the filter in use but before its row is written
+    UserRoleDaoDecoratorSupport rebuildingDao = new UserRoleDaoDecoratorSupport() {
+      public void createUser(final IUser newUser) {
+        negativeCacheDao.rebuild();
+        super.createUser(newUser);
+      }
+    };
+    rebuildingDao.setUserRoleDao(negativeCacheDao.getUserRoleDao());
+    negativeCacheDao.setUserRoleDao(rebuildingDao);
+
+    negativeCacheDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertNotNull(negativeCacheDao.getUser("suzy")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testExecuteAddsCreatedUsersWithoutRebuilding() {
+    negativeCacheDao.execute(new IUserRoleDaoCallback<Object>() {
+      public Object doInUserRoleDao(final IUserRoleDao dao) {
+        dao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+        return null;
+      }
+    });
+
+    assertNotNull(negativeCacheDao.getUser("suzy")); //$NON-NLS-1$
+    assertNull(negativeCacheDao.getUser("nobody")); //$NON-NLS-1$
+    assertEquals(1, negativeCacheDao.getRejectedCount());
+    assertEquals(1, scanCount.get());
+  }
+
+  @Test
+  public void testAllChangedRebuildsInTheBackground() throws Exception {
+    proceed = new CountDownLatch(1);
+
+    // returns while the scan waits, so the scan does not run on this thread
+    negativeCacheDao.allChanged();
+    assertTrue(scanStarted.await(10, TimeUnit.SECONDS));
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertNotNull(negativeCacheDao.getUser("suzy")); //$NON-NLS-1$
+    proceed.countDown();
+    // the rebuild holds the decorator's monitor until it has switched to the new filter
+    synchronized (negativeCacheDao) {
+      assertEquals(2, scanCount.get());
+    }
+
+    assertNotNull(negativeCacheDao.getUser("suzy")); //$NON-NLS-1$
+    assertNull(negativeCacheDao.getUser("nobody")); //$NON-NLS-1$
+    assertEquals(1, negativeCacheDao.getRejectedCount());
+  }
+
+  @Test
+  public void testDeletingUnknownUserKeepsOthers() {
+    // created behind the decorator's back, so the filter does not hold it
+    userRoleDao.createUser(new CustomUser("suzy", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+    negativeCacheDao.deleteUser(new CustomUser("suzy")); //$NON-NLS-1$
+
+    assertNotNull(negativeCacheDao.getUser("joe")); //$NON-NLS-1$
+  }
+
+  private static void await(final CountDownLatch latch) {
+    if (latch == null) {
+      return;
+    }
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2007 - 2009 Pentaho Corporation.  All rights reserved.
+ *
+*/
+package org.pentaho.platform.authentication.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.userdetails.UserDetails;
+import org.springframework.security.userdetails.UsernameNotFoundException;
+
+/**
+ * Users loaded by {@link UserRoleDaoUserDetailsService} from the credentials projection.
+ */
+public class UserRoleDaoUserDetailsServiceTest extends HibernateTestSupport {
+
+  // ~ Instance fields =================================================================================================
+
+  private UserRoleDaoUserDetailsService userDetailsService;
+
+  // ~ Methods =========================================================================================================
+
+  @Before
+  public void createUsers() throws Exception {
+    userRoleDao.createRole(new CustomRole("Admin")); //$NON-NLS-1$
+    userRoleDao.createRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    CustomUser joe = new CustomUser("joe", "password", null, true); //$NON-NLS-1$ //$NON-NLS-2$
+    joe.addRole(new CustomRole("Admin")); //$NON-NLS-1$
+    joe.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createUser(joe);
+    CustomUser suzy = new CustomUser("suzy", "secret", null, false); //$NON-NLS-1$ //$NON-NLS-2$
+    suzy.addRole(new CustomRole("Authenticated")); //$NON-NLS-1$
+    userRoleDao.createUser(suzy);
+    userRoleDao.createUser(new CustomUser("pat", "password", null, true)); //$NON-NLS-1$ //$NON-NLS-2$
+
+    userDetailsService = new UserRoleDaoUserDetailsService();
+    userDetailsService.setUserRoleDao(userRoleDao);
+    userDetailsService.afterPropertiesSet();
+  }
+
+  @Test
+  public void testUserIsLoadedWithOneStatement() {
+    resetStatementCount();
+
+    UserDetails joe = userDetailsService.loadUserByUsername("joe"); //$NON-NLS-1$
+
+    assertEquals(1, getStatementCount());
+    assertEquals("joe", joe.getUsername()); //$NON-NLS-1$
+    assertEquals("password", joe.getPassword()); //$NON-NLS-1$
+    assertTrue(joe.isEnabled());
+    assertTrue(joe.isAccountNonLocked());
+    assertEquals(2, joe.getAuthorities().length);
+    assertTrue(hasAuthority(joe, "Admin")); //$NON-NLS-1$
+    assertTrue(hasAuthority(joe, "Authenticated")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testDisabledUserIsLoaded() {
+    UserDetails suzy = userDetailsService.loadUserByUsername("suzy"); //$NON-NLS-1$
+
+    assertFalse(suzy.isEnabled());
+    assertEquals("secret", suzy.getPassword()); //$NON-NLS-1$
+    assertEquals(1, suzy.getAuthorities().length);
+  }
+
+  @Test
+  public void testUserWithoutRolesIsNotFound() {
+    try {
+      userDetailsService.loadUserByUsername("pat"); //$NON-NLS-1$
+      fail();
+    } catch (UsernameNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMissingUserIsNotFound() {
+    try {
+      userDetailsService.loadUserByUsername("nobody"); //$NON-NLS-1$
+      fail();
+    } catch (UsernameNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBlankUsernameIsNotFoundWithoutStatement() {
+    resetStatementCount();
+    try {
+      userDetailsService.loadUserByUsername(""); //$NON-NLS-1$
+      fail();
+    } catch (UsernameNotFoundException e) {
+      // expected
+    }
+
+    assertEquals(0, getStatementCount());
+  }
+
+  @Test
+  public void testAuthoritiesAreSharedAndCopied() {
+    UserDetails joe = userDetailsService.loadUserByUsername("joe"); //$NON-NLS-1$
+    UserDetails suzy = userDetailsService.loadUserByUsername("suzy"); //$NON-NLS-1$
+
+    assertSame(getAuthority(joe, "Authenticated"), getAuthority(suzy, "Authenticated")); //$NON-NLS-1$ //$NON-NLS-2$
+    GrantedAuthority[] authorities = joe.getAuthorities();
+    assertNotSame(authorities, joe.getAuthorities());
+    authorities[0] = null;
+    assertEquals(2, joe.getAuthorities().length);
+    assertTrue(hasAuthority(joe, "Admin")); //$NON-NLS-1$
+    assertTrue(hasAuthority(joe, "Authenticated")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testLockedUserIsReportedAsTrackerDecides() {
+    LoginActivityTracker tracker = new LoginActivityTracker();
+    tracker.setSessionFactory(sessionFactory);
+    tracker.setTransactionTemplate(transactionTemplate);
+    tracker.setMaxFailedLogins(2);
+    userDetailsService.setLoginActivityTracker(tracker);
+    UserDetails joe = userDetailsService.loadUserByUsername("joe"); //$NON-NLS-1$
+    assertTrue(joe.isAccountNonLocked());
+
+    tracker.loginFailed("joe"); //$NON-NLS-1$
+    tracker.loginFailed("joe"); //$NON-NLS-1$
+
+    // the user loaded before the failures is locked too
+    assertFalse(joe.isAccountNonLocked());
+    assertFalse(userDetailsService.loadUserByUsername("joe").isAccountNonLocked()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testUserRoleDaoIsRequired() throws Exception {
+    try {
+      new UserRoleDaoUserDetailsService().afterPropertiesSet();
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static boolean hasAuthority(final UserDetails user, final String roleName) {
+    return getAuthority(user, roleName) != null;
+  }
+
+  private static GrantedAuthority getAuthority(final UserDetails user, final String roleName) {
+    for (GrantedAuthority authority : user.getAuthorities()) {
+      if (authority != null && roleName.equals(authority.getAuthority())) {
+        return authority;
+      }
+    }
+    return null;
+  }
+
+}